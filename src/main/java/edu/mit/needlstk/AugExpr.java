@@ -97,6 +97,14 @@ public class AugExpr {
     this.binop = binopFromText(op);
   }
 
+  /// Constructor for combinational expressions with an operator of the Binop enum, which, unlike
+  /// the one above, also takes shifts
+  public AugExpr(AugExpr op1, AugExpr op2, Binop binop) {
+    this.type = AugExprType.EXPR_COMB;
+    this.children = new ArrayList<>(Arrays.asList(op1, op2));
+    this.binop = binop;
+  }
+
   /// Default constructor for inheritance
   public AugExpr() { }
 
@@ -257,6 +265,30 @@ public class AugExpr {
     return (getAffineCoefficients(var).size() == 2);
   }
 
+  /// Whether the expression is a non-decreasing function of the identifier provided, and of no
+  /// other identifier. As with affine detection, this is sound but incomplete: the expression must
+  /// be the identifier, shifted by a constant (var + c, c + var, var - c), or divided by a positive
+  /// constant (var / c, or var >> c once divisions are transformed into shifts), recursively.
+  public boolean isMonotoneIn(String var) {
+    if (isSingleIdentExpr(var)) return true;
+    if (! (type == AugExprType.EXPR_COMB)) return false;
+    AugExpr child0 = this.children.get(0);
+    AugExpr child1 = this.children.get(1);
+    switch(binop) {
+      case BINOP_ADD:
+        return ((child0.isMonotoneIn(var) && child1.isValueExpr()) ||
+                (child1.isMonotoneIn(var) && child0.isValueExpr()));
+      case BINOP_SUB:
+        return child0.isMonotoneIn(var) && child1.isValueExpr();
+      case BINOP_DIV:
+        return child0.isMonotoneIn(var) && child1.isValueExpr() && child1.value > 0;
+      case BINOP_RSHIFT:
+        return child0.isMonotoneIn(var) && child1.isValueExpr() && child1.value >= 0;
+      default:
+        return false;
+    }
+  }
+
   /// Printing for inspection on console
   public String print() {
     if(type == AugExprType.EXPR_ID) {
@@ -171,6 +171,24 @@ public class AugPred {
     }
   }
 
+  /// This predicate with every occurrence of the identifier `id` replaced by `replacement`
+  public AugPred substitute(String id, AugPred replacement) {
+    switch(type) {
+      case PRED_ID:
+        return predId.equals(id) ? replacement : this;
+      case PRED_AND:
+        return childPreds.get(0).substitute(id, replacement).and(
+            childPreds.get(1).substitute(id, replacement));
+      case PRED_OR:
+        return childPreds.get(0).substitute(id, replacement).or(
+            childPreds.get(1).substitute(id, replacement));
+      case PRED_NOT:
+        return childPreds.get(0).substitute(id, replacement).not();
+      default:
+        return this;
+    }
+  }
+
   /// Helper for constructing lists of child predicates from two inputs
   private List<AugPred> makePredChildren(AugPred childLeft, AugPred childRight) {
     List<AugPred> childList = new ArrayList<AugPred>();
@@ -0,0 +1,110 @@
+package edu.mit.needlstk;
+import java.util.List;
+
+/// Backing store for the values evicted from the register table of a groupby (see CacheSimulator).
+/// Every eviction hands over a partial value: the fold applied to a run of packets of the key,
+/// starting from the initial (all-zero) state. Registers whose update was rewritten into the
+/// linear-in-state form state = _s_a * state + _s_b (see Linear.adjustLinearInState) are merged
+/// exactly: if A is the product of the _s_a coefficients over the run, the run maps a state s to
+/// A * s + partial, so the stored value becomes A * stored + partial. Other registers cannot be
+/// merged in general; the store keeps the latest partial value (which is correct for states of
+/// bounded packet history, e.g., last_time = tin) and marks the key unmergeable.
+public class BackingStore {
+  public enum MergePolicy {
+    LINEAR,      // merged with the A coefficient of the partial value
+    UNMERGEABLE  // latest partial value wins; the key is marked if a merge was needed
+  }
+
+  private MergePolicy[] policies;
+  /// Merged value of each key evicted at least once
+  private GroupbyTable store;
+  /// Keys for which an unmergeable register had to be merged (no state)
+  private GroupbyTable unmergeable;
+  private long merges;
+  private int[] stored;
+
+  public BackingStore(PipeStage stage) {
+    this.policies = policiesOf(stage);
+    int keyWidth = ((FoldConfigInfo)stage.getConfigInfo()).getKeyFields().size();
+    this.store = new GroupbyTable(keyWidth, policies.length);
+    this.unmergeable = new GroupbyTable(keyWidth, 0);
+    this.merges = 0;
+    this.stored = new int[policies.length];
+  }
+
+  /// Merge policy for each register of a groupby stage, in the order of StageRunner.registersOf()
+  public static MergePolicy[] policiesOf(PipeStage stage) {
+    List<String> registers = StageRunner.registersOf(stage);
+    MergePolicy[] policies = new MergePolicy[registers.size()];
+    for (int r = 0; r < policies.length; r++) {
+      boolean linear = stage.getConfigInfo().getSymTab().containsKey(Linear.aCoeff(registers.get(r)));
+      policies[r] = linear ? MergePolicy.LINEAR : MergePolicy.UNMERGEABLE;
+    }
+    return policies;
+  }
+
+  /// Merge the evicted partial `value` of `key`. `aProd` holds the product of the A coefficients over
+  /// the packets that produced `value` (only used for LINEAR registers).
+  public void merge(int[] key, int[] value, int[] aProd) {
+    int entry = store.find(key);
+    if (entry < 0) {
+      /// First eviction: the partial value started from the initial state, so it is exact.
+      store.writeState(store.insert(key), value);
+      return;
+    }
+    merges++;
+    store.readState(entry, stored);
+    if (combine(stored, value, aProd, stored)) {
+      unmergeable.insert(key);
+    }
+    store.writeState(entry, stored);
+  }
+
+  /// Combine a stored value with a later partial value into `out` (which may alias `stored`).
+  /// Returns whether some register could not be merged exactly.
+  public boolean combine(int[] stored, int[] partial, int[] aProd, int[] out) {
+    boolean lossy = false;
+    for (int r = 0; r < policies.length; r++) {
+      if (policies[r] == MergePolicy.LINEAR) {
+        out[r] = aProd[r] * stored[r] + partial[r];
+      } else {
+        out[r] = partial[r];
+        lossy = true;
+      }
+    }
+    return lossy;
+  }
+
+  /// Copy the stored value of `key` into `out`. Returns false if the key was never evicted.
+  public boolean lookup(int[] key, int[] out) {
+    int entry = store.find(key);
+    if (entry < 0) {
+      return false;
+    }
+    store.readState(entry, out);
+    return true;
+  }
+
+  public boolean isUnmergeable(int[] key) {
+    return unmergeable.find(key) >= 0;
+  }
+
+  public MergePolicy[] getPolicies() {
+    return policies;
+  }
+
+  /// Number of keys in the store
+  public int size() {
+    return store.size();
+  }
+
+  /// Number of evictions merged into an existing value
+  public long getMerges() {
+    return merges;
+  }
+
+  /// Number of keys with an inexact merge of an unmergeable register
+  public int getUnmergeableKeys() {
+    return unmergeable.size();
+  }
+}
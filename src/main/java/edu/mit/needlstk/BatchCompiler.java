@@ -0,0 +1,158 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.ANTLRFileStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/// Compile many query programs at once, e.g., every program of a directory, concurrently on a pool
+/// of threads. Each program is compiled as Compiler.main() compiles a single one, but its P4 and
+/// Domino programs are written to <query>.p4 and <query>-domino.c in the output directory rather
+/// than to output.p4 and domino-full.c, and the compiler's progress output of each program is kept
+/// apart (ThreadOutput) and discarded, or written to <query>.log with -logs.
+public class BatchCompiler {
+  private static String USAGE =
+      "Usage: BatchCompiler (directory | query.sql) ... [-out directory] [-threads N] [-logs]\n" +
+      "Compiles every .sql file of each directory, and each query.sql, into <query>.p4 and\n" +
+      "<query>-domino.c in the output directory (default: the current directory). -threads\n" +
+      "defaults to the number of processors; -logs writes each compilation's progress output to\n" +
+      "<query>.log.";
+
+  /// Outcome of compiling one program
+  private static class Result {
+    String file;
+    long nanos;
+    /// Why the program failed to compile, or null
+    Throwable failure;
+  }
+
+  private String outDir;
+  private boolean logs;
+
+  public BatchCompiler(String outDir, boolean logs) {
+    this.outDir = outDir;
+    this.logs = logs;
+    ThreadOutput.install();
+  }
+
+  /// Compile `file` on the calling thread, and write its artifacts to the output directory.
+  private Result compile(String file) throws IOException {
+    Result res = new Result();
+    res.file = file;
+    String name = Paths.get(file).getFileName().toString().replaceAll("\\.sql$", "");
+    ByteArrayOutputStream log = logs ? new ByteArrayOutputStream() : null;
+    long start = System.nanoTime();
+    ThreadOutput.redirect(logs ? log : ThreadOutput.DISCARD);
+    try {
+      PipeConstructor pc = Compiler.buildPipe(new ANTLRFileStream(file));
+      String p4 = CodeFragmentPrinter.renderP4(pc, pc.getPipe());
+      String domino = CodeFragmentPrinter.renderDominoMonolithic(pc, pc.getPipe());
+      Files.write(Paths.get(outDir, name + ".p4"), p4.getBytes(StandardCharsets.UTF_8));
+      Files.write(Paths.get(outDir, name + "-domino.c"), domino.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException | RuntimeException | AssertionError | StackOverflowError e) {
+      res.failure = e;
+    } finally {
+      ThreadOutput.redirect(null);
+    }
+    res.nanos = System.nanoTime() - start;
+    if (logs) {
+      if (res.failure != null) {
+        res.failure.printStackTrace(new PrintStream(log, true));
+      }
+      Files.write(Paths.get(outDir, name + ".log"), log.toByteArray());
+    }
+    return res;
+  }
+
+  /// Compile every file of `files` on `numThreads` threads, and print the outcome of each (in the
+  /// order of `files`). Returns the number of programs that failed to compile.
+  public int compileAll(List<String> files, int numThreads) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<Result>> pending = new ArrayList<>();
+    long start = System.nanoTime();
+    try {
+      for (String file: files) {
+        pending.add(executor.submit(() -> compile(file)));
+      }
+      int failures = 0;
+      long busyNanos = 0;
+      for (Future<Result> f: pending) {
+        Result res = f.get();
+        busyNanos += res.nanos;
+        if (res.failure == null) {
+          System.out.println(String.format("%s: compiled in %.1f ms", res.file, res.nanos / 1e6));
+        } else {
+          failures++;
+          System.out.println(res.file + ": " + res.failure);
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("Compiled %d programs (%d failed) in %.2f s on %d threads" +
+                                       " (%.1f ms per program, %.2f s of compile time)",
+                                       files.size(), failures, seconds, numThreads,
+                                       seconds * 1e3 / Math.max(1, files.size()), busyNanos / 1e9));
+      return failures;
+    } catch (ExecutionException e) {
+      throw new IOException("Could not write compiler logs to " + outDir, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /// The .sql files of each directory of `paths` (sorted by name), and every other path as is
+  public static List<String> listPrograms(List<String> paths) {
+    List<String> files = new ArrayList<>();
+    for (String path: paths) {
+      File dir = new File(path);
+      if (! dir.isDirectory()) {
+        files.add(path);
+        continue;
+      }
+      String[] names = dir.list((d, name) -> name.endsWith(".sql"));
+      Arrays.sort(names);
+      for (String name: names) {
+        files.add(new File(dir, name).getPath());
+      }
+    }
+    return files;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String outDir = ".";
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    boolean logs = false;
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-out")) {
+        outDir = args[++i];
+      } else if (args[i].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-logs")) {
+        logs = true;
+      } else if (! args[i].startsWith("-")) {
+        paths.add(args[i]);
+      } else {
+        System.err.println(USAGE);
+        System.exit(1);
+      }
+    }
+    if (paths.isEmpty() || numThreads < 1) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    List<String> files = listPrograms(paths);
+    Files.createDirectories(Paths.get(outDir));
+    int failures = new BatchCompiler(outDir, logs).compileAll(files, numThreads);
+    System.exit((failures == 0) ? 0 : 1);
+  }
+}
@@ -0,0 +1,244 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/// Column-at-a-time evaluator for the code of a stateless stage (filter, map, zip) over a
+/// PacketBatch. Statements are executed in order, but each statement is evaluated over every row of
+/// the batch before moving on to the next one, with one tight loop per operator. For instance,
+/// `tout - tin > 1` runs one subtraction loop and one comparison loop over int[] columns, which the
+/// JIT can unroll and vectorize. Semantics are identical to StageInterpreter run on each row.
+public class BatchStageInterpreter {
+  /// Preamble, body and postamble of the stage, flattened into one list
+  private ArrayList<ThreeOpStmt> stmts;
+  private SlotLayout layout;
+  /// Scratch columns for intermediate results; scratch[0..top) are in use by the current statement.
+  private int[][] scratch;
+  private int top;
+
+  public BatchStageInterpreter(PipeStage stage, SlotLayout layout) {
+    assert (stage.getOp() != OperationType.GROUPBY); // Only stateless stages run column-at-a-time
+    PipeConfigInfo ci = stage.getConfigInfo();
+    this.stmts = new ArrayList<>(ci.getPreamble().getStmts());
+    this.stmts.addAll(ci.getCode().getStmts());
+    this.stmts.addAll(ci.getPostamble().getStmts());
+    this.layout = layout;
+    this.scratch = new int[0][];
+    this.top = 0;
+  }
+
+  public void exec(PacketBatch b) {
+    if (scratch.length > 0 && scratch[0].length < b.capacity()) {
+      scratch = new int[0][];
+    }
+    for (ThreeOpStmt stmt: stmts) {
+      top = 0;
+      int slot = layout.slotOf(stmt.getDefinedVar());
+      int[] out = b.isBitmap(slot) ? alloc(b) : b.col(slot);
+      if (stmt.isPredAssign()) {
+        testInto(stmt.getPred(), b, out);
+      } else if (stmt.isExprAssign()) {
+        evalInto(stmt.getExpr(), b, out);
+      } else {
+        assert (stmt.isTernary());
+        int[] pred = read(stmt.getPredVarOfTernary(), b);
+        int[] ifVals = operand(stmt.getExprIf(), b);
+        int[] elseVals = operand(stmt.getExprElse(), b);
+        int n = b.size();
+        for (int i = 0; i < n; i++) {
+          out[i] = (pred[i] != 0) ? ifVals[i] : elseVals[i];
+        }
+      }
+      if (b.isBitmap(slot)) {
+        b.pack(slot, out);
+      }
+    }
+  }
+
+  /// Hand out a scratch column, growing the pool as needed.
+  private int[] alloc(PacketBatch b) {
+    if (top == scratch.length) {
+      scratch = Arrays.copyOf(scratch, top + 1);
+      scratch[top] = new int[b.capacity()];
+    }
+    return scratch[top++];
+  }
+
+  /// Values of identifier `id` for every row. Bitmaps are expanded into a scratch column.
+  private int[] read(String id, PacketBatch b) {
+    int slot = layout.slotOf(id);
+    if (b.isBitmap(slot)) {
+      int[] out = alloc(b);
+      b.unpack(slot, out);
+      return out;
+    } else {
+      return b.col(slot);
+    }
+  }
+
+  /// Values of `expr` for every row, without copying if `expr` is an identifier. The result must not
+  /// be written to.
+  private int[] operand(AugExpr expr, PacketBatch b) {
+    if (expr.getType() == AugExpr.AugExprType.EXPR_ID) {
+      return read(expr.ident, b);
+    }
+    int[] out = alloc(b);
+    evalInto(expr, b, out);
+    return out;
+  }
+
+  private void evalInto(AugExpr expr, PacketBatch b, int[] out) {
+    int n = b.size();
+    switch (expr.getType()) {
+      case EXPR_ID:
+        System.arraycopy(read(expr.ident, b), 0, out, 0, n);
+        return;
+      case EXPR_VAL:
+        Arrays.fill(out, 0, n, expr.value);
+        return;
+      case EXPR_COMB:
+        int[] left = operand(expr.children.get(0), b);
+        AugExpr rightExpr = expr.children.get(1);
+        if (rightExpr.getType() == AugExpr.AugExprType.EXPR_VAL) {
+          binopConst(expr.binop, left, rightExpr.value, out, n);
+        } else {
+          binop(expr.binop, left, operand(rightExpr, b), out, n);
+        }
+        return;
+      default:
+        assert (false); // Expecting a new expression type?
+    }
+  }
+
+  private static void binop(AugExpr.Binop op, int[] l, int[] r, int[] out, int n) {
+    switch (op) {
+      case BINOP_ADD:
+        for (int i = 0; i < n; i++) out[i] = l[i] + r[i];
+        return;
+      case BINOP_SUB:
+        for (int i = 0; i < n; i++) out[i] = l[i] - r[i];
+        return;
+      case BINOP_MUL:
+        for (int i = 0; i < n; i++) out[i] = l[i] * r[i];
+        return;
+      case BINOP_DIV:
+        for (int i = 0; i < n; i++) out[i] = l[i] / r[i];
+        return;
+      case BINOP_RSHIFT:
+        for (int i = 0; i < n; i++) out[i] = l[i] >> r[i];
+        return;
+      default:
+        assert (false); // Expecting a new binary operator?
+    }
+  }
+
+  /// Same as binop(), with a constant right operand
+  private static void binopConst(AugExpr.Binop op, int[] l, int k, int[] out, int n) {
+    switch (op) {
+      case BINOP_ADD:
+        for (int i = 0; i < n; i++) out[i] = l[i] + k;
+        return;
+      case BINOP_SUB:
+        for (int i = 0; i < n; i++) out[i] = l[i] - k;
+        return;
+      case BINOP_MUL:
+        for (int i = 0; i < n; i++) out[i] = l[i] * k;
+        return;
+      case BINOP_DIV:
+        for (int i = 0; i < n; i++) out[i] = l[i] / k;
+        return;
+      case BINOP_RSHIFT:
+        for (int i = 0; i < n; i++) out[i] = l[i] >> k;
+        return;
+      default:
+        assert (false); // Expecting a new binary operator?
+    }
+  }
+
+  /// Evaluate `pred` for every row into `out`, as 0/1 values.
+  private void testInto(AugPred pred, PacketBatch b, int[] out) {
+    int n = b.size();
+    switch (pred.type) {
+      case PRED_TRUE:
+        Arrays.fill(out, 0, n, 1);
+        return;
+      case PRED_FALSE:
+        Arrays.fill(out, 0, n, 0);
+        return;
+      case PRED_ID:
+        int[] vals = read(pred.predId, b);
+        for (int i = 0; i < n; i++) out[i] = (vals[i] != 0) ? 1 : 0;
+        return;
+      case PRED_EQ:
+      case PRED_NE:
+      case PRED_GT:
+      case PRED_LT:
+        int[] left = operand(pred.childExprs.get(0), b);
+        AugExpr rightExpr = pred.childExprs.get(1);
+        if (rightExpr.getType() == AugExpr.AugExprType.EXPR_VAL) {
+          compareConst(pred.type, left, rightExpr.value, out, n);
+        } else {
+          compare(pred.type, left, operand(rightExpr, b), out, n);
+        }
+        return;
+      case PRED_AND:
+      case PRED_OR:
+        /// `out` may be the column of a variable that the second operand reads (e.g., p = q && p),
+        /// so it is only written once both operands are evaluated.
+        int[] first = alloc(b);
+        testInto(pred.childPreds.get(0), b, first);
+        int[] second = alloc(b);
+        testInto(pred.childPreds.get(1), b, second);
+        if (pred.type == AugPred.AugPredType.PRED_AND) {
+          for (int i = 0; i < n; i++) out[i] = first[i] & second[i];
+        } else {
+          for (int i = 0; i < n; i++) out[i] = first[i] | second[i];
+        }
+        return;
+      case PRED_NOT:
+        testInto(pred.childPreds.get(0), b, out);
+        for (int i = 0; i < n; i++) out[i] ^= 1;
+        return;
+      default:
+        assert (false); // Expecting a new predicate type?
+    }
+  }
+
+  private static void compare(AugPred.AugPredType type, int[] l, int[] r, int[] out, int n) {
+    switch (type) {
+      case PRED_EQ:
+        for (int i = 0; i < n; i++) out[i] = (l[i] == r[i]) ? 1 : 0;
+        return;
+      case PRED_NE:
+        for (int i = 0; i < n; i++) out[i] = (l[i] != r[i]) ? 1 : 0;
+        return;
+      case PRED_GT:
+        for (int i = 0; i < n; i++) out[i] = (l[i] > r[i]) ? 1 : 0;
+        return;
+      case PRED_LT:
+        for (int i = 0; i < n; i++) out[i] = (l[i] < r[i]) ? 1 : 0;
+        return;
+      default:
+        assert (false); // Not a comparison
+    }
+  }
+
+  /// Same as compare(), with a constant right operand
+  private static void compareConst(AugPred.AugPredType type, int[] l, int k, int[] out, int n) {
+    switch (type) {
+      case PRED_EQ:
+        for (int i = 0; i < n; i++) out[i] = (l[i] == k) ? 1 : 0;
+        return;
+      case PRED_NE:
+        for (int i = 0; i < n; i++) out[i] = (l[i] != k) ? 1 : 0;
+        return;
+      case PRED_GT:
+        for (int i = 0; i < n; i++) out[i] = (l[i] > k) ? 1 : 0;
+        return;
+      case PRED_LT:
+        for (int i = 0; i < n; i++) out[i] = (l[i] < k) ? 1 : 0;
+        return;
+      default:
+        assert (false); // Not a comparison
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package edu.mit.needlstk;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/// Writer for binary packet logs, the persistent input format of the software execution engine.
+/// A log is a header followed by one fixed-width record per packet:
+///  - header: magic "MPKT", format version (int32), header length in bytes (int32), number of fields
+///    (int32), then the name of each field (length as one byte, then UTF-8), zero-padded to a
+///    multiple of 8 bytes;
+///  - record: one int32 per field, in the order of the header, which is the order of Fields.fields.
+/// All integers are little-endian. See MappedPacketLog for the reader.
+public class BinaryPacketLogWriter implements Closeable {
+  public static final int MAGIC = 0x544b504d; // "MPKT" read as a little-endian int32
+  public static final int VERSION = 1;
+  private static int BUFFER_BYTES = 1 << 20;
+
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private int numFields;
+
+  public BinaryPacketLogWriter(String path) throws IOException {
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    this.numFields = Fields.fields.size();
+    writeHeader();
+  }
+
+  /// Length of the header for the current Fields.fields
+  public static int headerLength() {
+    int len = 16;
+    for (String field: Fields.fields) {
+      len += 1 + field.getBytes(StandardCharsets.UTF_8).length;
+    }
+    return (len + 7) & ~7;
+  }
+
+  private void writeHeader() throws IOException {
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(headerLength());
+    buffer.putInt(numFields);
+    for (String field: Fields.fields) {
+      byte[] name = field.getBytes(StandardCharsets.UTF_8);
+      buffer.put((byte)name.length);
+      buffer.put(name);
+    }
+    while (buffer.position() < headerLength()) {
+      buffer.put((byte)0);
+    }
+  }
+
+  /// Append one packet; `tuple` holds the fields in the order of Fields.fields.
+  public void write(int[] tuple) throws IOException {
+    if (buffer.remaining() < 4 * numFields) {
+      flush();
+    }
+    for (int f = 0; f < numFields; f++) {
+      buffer.putInt(tuple[f]);
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+
+  /// Convert a text packet log (see TextPacketSource), or `-n` random packets, to a binary log.
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2 && ! (args.length == 3 && args[0].equals("-n"))) {
+      System.err.println("Usage: BinaryPacketLogWriter (packet_log.txt | -n num_random_packets)" +
+                         " out.plog");
+      System.exit(1);
+    }
+    PacketSource src = (args.length == 2) ? new TextPacketSource(new FileReader(args[0]))
+                                          : new RandomPacketSource(Long.parseLong(args[1]), 0);
+    int[] tuple = new int[Fields.fields.size()];
+    long packets = 0;
+    try (BinaryPacketLogWriter writer = new BinaryPacketLogWriter(args[args.length - 1])) {
+      while (src.next(tuple)) {
+        writer.write(tuple);
+        packets++;
+      }
+    }
+    System.out.println("Wrote " + packets + " packets to " + args[args.length - 1]);
+  }
+}
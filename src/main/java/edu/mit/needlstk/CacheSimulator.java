@@ -0,0 +1,268 @@
+package edu.mit.needlstk;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/// Run a groupby stage on a simulation of the switch's register table, as generated from
+/// groupby.tmpl: a direct-mapped table of stage.getTableSize() entries, indexed by the crc32 of
+/// the key fields (as 32-bit big-endian words, like the P4 key struct). Just like the generated
+/// action, every packet
+///  - reads the key and value stored at its index,
+///  - starts from the stored value if the stored key matches or no key is present (all key fields 0),
+///    and otherwise evicts the stored key and value into evictedKey / evictedValue and starts from 0,
+///  - runs the fold, and writes its key and value back to the index.
+/// Downstream stages see the values of the simulated table. Evicted values are merged into a
+/// BackingStore; for this, each entry also tracks the product of the _s_a coefficients of its
+/// linear-in-state registers since the key was inserted. The exact state of every key is kept
+/// alongside (see GroupbyRunner), to measure the accuracy lost to evictions, with and without the
+/// backing store.
+public class CacheSimulator extends GroupbyRunner {
+  private int tableSize;
+  private int[] regK;
+  private int[] regV;
+  /// Product of the A coefficients of each register, for LINEAR registers (1 otherwise)
+  private int[] regA;
+  /// Frame slot of the A coefficient of each register, or -1 if the register is not LINEAR
+  private int[] aSlots;
+  private CRC32 crc;
+  private byte[] keyBytes;
+  /// Key and value evicted by the last packet, valid if `evicted` is set
+  protected int[] evictedKey;
+  protected int[] evictedValue;
+  protected int[] evictedAProd;
+  protected boolean evicted;
+  private BackingStore backingStore;
+  /// Copy of the packet frame, for the exact fold
+  private int[] shadow;
+  /// Keys evicted at least once (no state)
+  private GroupbyTable evictedKeys;
+
+  private long packets;
+  private long evictions;
+  /// First and last tin seen (as unsigned ticks), and whether tin never went backwards
+  private int tinSlot = Fields.fields.indexOf(Fields.tinHdr);
+  private long firstTin;
+  private long lastTin;
+  private boolean tinOrdered = true;
+
+  public CacheSimulator(PipeStage stage, SlotLayout layout, StageFunction fn) {
+    super(stage, layout, fn);
+    this.tableSize = stage.getTableSize();
+    this.regK = new int[tableSize * key.length];
+    this.regV = new int[tableSize * regs.length];
+    this.regA = new int[tableSize * regs.length];
+    Arrays.fill(regA, 1);
+    this.backingStore = new BackingStore(stage);
+    List<String> registers = StageRunner.registersOf(stage);
+    this.aSlots = new int[regs.length];
+    for (int r = 0; r < regs.length; r++) {
+      boolean linear = backingStore.getPolicies()[r] == BackingStore.MergePolicy.LINEAR;
+      aSlots[r] = linear ? layout.slotOf(Linear.aCoeff(registers.get(r))) : -1;
+    }
+    this.crc = new CRC32();
+    this.keyBytes = new byte[4 * key.length];
+    this.evictedKey = new int[key.length];
+    this.evictedValue = new int[regs.length];
+    this.evictedAProd = new int[regs.length];
+    this.shadow = new int[layout.size()];
+    this.evictedKeys = new GroupbyTable(key.length, 0);
+  }
+
+  @Override public void process(int[] pkt) {
+    long tin = pkt[tinSlot] & 0xffffffffL;
+    if (packets == 0) {
+      firstTin = tin;
+    } else if (tin < lastTin) {
+      tinOrdered = false;
+    }
+    lastTin = tin;
+    System.arraycopy(pkt, 0, shadow, 0, pkt.length);
+    super.process(shadow);
+
+    for (int i = 0; i < keySlots.length; i++) {
+      key[i] = pkt[keySlots[i]];
+    }
+    int index = indexOf(key);
+    int kBase = index * key.length;
+    int vBase = index * regs.length;
+    boolean noKeyPresent = true;
+    boolean keyMatches = true;
+    for (int f = 0; f < key.length; f++) {
+      noKeyPresent &= (regK[kBase + f] == 0);
+      keyMatches &= (regK[kBase + f] == key[f]);
+    }
+    evicted = ! (keyMatches || noKeyPresent);
+    if (evicted) {
+      System.arraycopy(regK, kBase, evictedKey, 0, key.length);
+      System.arraycopy(regV, vBase, evictedValue, 0, regs.length);
+      System.arraycopy(regA, vBase, evictedAProd, 0, regs.length);
+      Arrays.fill(regs, 0);
+      Arrays.fill(regA, vBase, vBase + regs.length, 1);
+      evictions++;
+      evictedKeys.insert(evictedKey);
+      backingStore.merge(evictedKey, evictedValue, evictedAProd);
+    } else {
+      System.arraycopy(regV, vBase, regs, 0, regs.length);
+    }
+    fn.exec(pkt, regs);
+    System.arraycopy(key, 0, regK, kBase, key.length);
+    System.arraycopy(regs, 0, regV, vBase, regs.length);
+    for (int r = 0; r < regs.length; r++) {
+      if (aSlots[r] >= 0) {
+        regA[vBase + r] *= pkt[aSlots[r]];
+      }
+    }
+    packets++;
+  }
+
+  /// hash(hash_table_index, HashAlgorithm.crc32, 32w0, inKey, 32wTableSize)
+  private int indexOf(int[] k) {
+    for (int f = 0; f < k.length; f++) {
+      keyBytes[4 * f]     = (byte)(k[f] >>> 24);
+      keyBytes[4 * f + 1] = (byte)(k[f] >>> 16);
+      keyBytes[4 * f + 2] = (byte)(k[f] >>> 8);
+      keyBytes[4 * f + 3] = (byte)k[f];
+    }
+    crc.reset();
+    crc.update(keyBytes, 0, keyBytes.length);
+    return (int)(crc.getValue() % tableSize);
+  }
+
+  /// Copy the value the simulated table holds for `k` into `out`, and the product of its A
+  /// coefficients into `aProd`. Returns false (and leaves both alone) if `k` is not resident.
+  public boolean lookupCached(int[] k, int[] out, int[] aProd) {
+    int index = indexOf(k);
+    for (int f = 0; f < k.length; f++) {
+      if (regK[index * k.length + f] != k[f]) {
+        return false;
+      }
+    }
+    System.arraycopy(regV, index * out.length, out, 0, out.length);
+    System.arraycopy(regA, index * aProd.length, aProd, 0, aProd.length);
+    return true;
+  }
+
+  /// Final value of `k` as seen by a collector that reads the switch table and the backing store:
+  /// the resident partial value merged into the stored one. Returns false if neither has the key.
+  public boolean lookupMerged(int[] k, int[] out, int[] scratch, int[] aProd) {
+    boolean stored = backingStore.lookup(k, out);
+    if (lookupCached(k, scratch, aProd)) {
+      if (stored) {
+        backingStore.combine(out, scratch, aProd, out);
+      } else {
+        System.arraycopy(scratch, 0, out, 0, out.length);
+      }
+      return true;
+    }
+    return stored;
+  }
+
+  public BackingStore getBackingStore() {
+    return backingStore;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /// Number of distinct keys evicted at least once
+  public int getEvictedKeys() {
+    return evictedKeys.size();
+  }
+
+  /// Compare the simulated table, alone and merged with the backing store, against the exact state
+  /// of every key. A key missing from both counts as holding all zeros. Evictions per second are
+  /// measured over the time of the trace, from the first to the last tin, in ticks of `tickNanos`;
+  /// if tin stays constant or goes backwards (e.g., random packets), the trace is taken to have no
+  /// timestamps, and packets per eviction are given instead.
+  public String accuracyReport(long tickNanos) {
+    int[] k = new int[key.length];
+    int[] exact = new int[regs.length];
+    int[] cached = new int[regs.length];
+    int[] merged = new int[regs.length];
+    int[] scratch = new int[regs.length];
+    int[] aProd = new int[regs.length];
+    long resident = 0;
+    long evictedExactKeys = 0;
+    ErrorStats cacheErrors = new ErrorStats(regs.length);
+    ErrorStats mergedErrors = new ErrorStats(regs.length);
+    for (int entry = 0; entry < table.capacity(); entry++) {
+      if (! table.isUsed(entry)) continue;
+      table.readKey(entry, k);
+      table.readState(entry, exact);
+      if (evictedKeys.find(k) >= 0) {
+        evictedExactKeys++;
+      }
+      if (lookupCached(k, cached, aProd)) {
+        resident++;
+      } else {
+        Arrays.fill(cached, 0);
+      }
+      if (! lookupMerged(k, merged, scratch, aProd)) {
+        Arrays.fill(merged, 0);
+      }
+      cacheErrors.add(exact, cached);
+      mergedErrors.add(exact, merged);
+    }
+    long keys = cacheErrors.keys;
+    double traceSeconds = tinOrdered ? (lastTin - firstTin) * tickNanos / 1e9 : 0;
+    String rate;
+    if (traceSeconds > 0) {
+      rate = String.format("%.1f per second of trace", evictions / traceSeconds);
+    } else if (evictions > 0) {
+      rate = String.format("one per %.1f packets, no timestamps", (double)packets / evictions);
+    } else {
+      rate = "no timestamps";
+    }
+    String res = String.format(
+        "Cache %s (%d entries): %d evictions (%.4f per packet, %s), " +
+        "%.2f%% of %d keys evicted, %.2f%% resident",
+        stage.getPipeName(), tableSize, evictions, ratio(evictions, packets), rate,
+        100 * ratio(evictedExactKeys, keys), keys, 100 * ratio(resident, keys));
+    res += "\n Switch table only: " + cacheErrors.format();
+    res += String.format("\n With backing store (%d merges, %d unmergeable keys, policies %s): ",
+                         backingStore.getMerges(), backingStore.getUnmergeableKeys(),
+                         Arrays.toString(backingStore.getPolicies()));
+    res += mergedErrors.format();
+    return res;
+  }
+
+  /// Per-register error of an estimate of the state of each key
+  private class ErrorStats {
+    long keys;
+    long exactKeys;
+    double[] absErr;
+    double[] relErr;
+
+    ErrorStats(int width) {
+      this.absErr = new double[width];
+      this.relErr = new double[width];
+    }
+
+    void add(int[] exact, int[] estimate) {
+      keys++;
+      boolean allExact = true;
+      for (int r = 0; r < exact.length; r++) {
+        double err = Math.abs((double)exact[r] - estimate[r]);
+        absErr[r] += err;
+        relErr[r] += err / Math.max(Math.abs((double)exact[r]), 1.0);
+        allExact &= (err == 0);
+      }
+      if (allExact) exactKeys++;
+    }
+
+    String format() {
+      String res = String.format("%.2f%% of keys exact", 100 * ratio(exactKeys, keys));
+      for (int r = 0; r < absErr.length; r++) {
+        res += String.format("\n  %s: mean abs error %.3f, mean rel error %.4f",
+                             StageRunner.registersOf(stage).get(r),
+                             ratio(absErr[r], keys), ratio(relErr[r], keys));
+      }
+      return res;
+    }
+  }
+
+  private static double ratio(double num, double den) {
+    return (den == 0) ? 0 : num / den;
+  }
+}
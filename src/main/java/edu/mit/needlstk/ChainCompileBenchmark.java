@@ -0,0 +1,124 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Compile time of generated chains of queries, as a function of the number of statements. Each
+/// program is compiled up to the stitched pipeline (Compiler.buildPipe()) on a thread with a small
+/// stack, to check that compiler passes run in constant stack depth however long the chain is.
+/// Shapes of chain:
+///  - map: R_i = map(R_i-1, [x], [x + i]), which keeps the schema of every query the same size;
+///  - filter: R_i = filter(R_i-1, x > i);
+///  - diamond: A_i = map(R_i-1, ...); B_i = filter(R_i-1, ...); R_i = zip(A_i, B_i);
+///  - columns: R_i = map(R_i-1, [c_i], [c_i-1 + 1]), whose schemas grow along the chain, so that
+///    the total size of the pipeline (and its compile time) is quadratic in the length.
+public class ChainCompileBenchmark {
+  private static String USAGE =
+      "Usage: ChainCompileBenchmark [-shapes map,filter,diamond,columns]\n" +
+      "       [-lengths 1000,2000,5000,10000] [-stack kilobytes]";
+  private static String[] SHAPES = {"map", "filter", "diamond", "columns"};
+
+  public static void main(String[] args) throws Exception {
+    String[] shapes = SHAPES;
+    String[] lengths = {"1000", "2000", "5000", "10000"};
+    long stackBytes = 256 << 10;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-shapes")) {
+        shapes = args[++i].split(",");
+      } else if (args[i].equals("-lengths")) {
+        lengths = args[++i].split(",");
+      } else if (args[i].equals("-stack")) {
+        stackBytes = Long.parseLong(args[++i]) << 10;
+      } else {
+        System.err.println(USAGE);
+        System.exit(1);
+      }
+    }
+    /// Warm up the JIT on a short chain of every shape.
+    for (String shape: shapes) {
+      compile(chain(shape, 200), stackBytes);
+    }
+    System.out.println(String.format("Compile time up to the stitched pipeline, on a %d KB stack",
+                                     stackBytes >> 10));
+    System.out.println(String.format("%-8s %10s %8s %10s %12s",
+                                     "shape", "statements", "stages", "ms", "us/statement"));
+    for (String shape: shapes) {
+      for (String length: lengths) {
+        String program = chain(shape, Integer.parseInt(length));
+        int statements = program.split(";").length - 1;
+        long start = System.nanoTime();
+        int stages = compile(program, stackBytes);
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%-8s %10d %8d %10.0f %12.1f",
+                                         shape, statements, stages, ms, ms * 1e3 / statements));
+      }
+    }
+  }
+
+  /// A chain of about `length` statements of the given shape
+  public static String chain(String shape, int length) {
+    StringBuilder sb = new StringBuilder();
+    if (shape.equals("columns")) {
+      sb.append("R0 = map(T, [c0], [tin]);\n");
+      for (int i = 1; i < length; i++) {
+        sb.append(String.format("R%d = map(R%d, [c%d], [c%d + 1]);\n", i, i - 1, i, i - 1));
+      }
+      return sb.toString();
+    }
+    sb.append("R0 = map(T, [x], [tin]);\n");
+    if (shape.equals("map")) {
+      for (int i = 1; i < length; i++) {
+        sb.append(String.format("R%d = map(R%d, [x], [x + %d]);\n", i, i - 1, i));
+      }
+    } else if (shape.equals("filter")) {
+      for (int i = 1; i < length; i++) {
+        sb.append(String.format("R%d = filter(R%d, x > %d);\n", i, i - 1, i));
+      }
+    } else if (shape.equals("diamond")) {
+      for (int i = 1; 3 * i < length; i++) {
+        sb.append(String.format("A%d = map(R%d, [x], [x + %d]);\n", i, i - 1, i));
+        sb.append(String.format("B%d = filter(R%d, x > %d);\n", i, i - 1, i));
+        sb.append(String.format("R%d = zip(A%d, B%d);\n", i, i, i));
+      }
+    } else {
+      throw new RuntimeException("Unknown chain shape " + shape);
+    }
+    return sb.toString();
+  }
+
+  /// Compile `program` on a thread with a stack of `stackBytes`, without the compiler's progress
+  /// output (on both System.out and System.err), and return the number of stages of its pipeline.
+  private static int compile(String program, long stackBytes) throws InterruptedException {
+    List<PipeStage> pipe = new ArrayList<>();
+    Throwable[] failure = new Throwable[1];
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream quiet = new PrintStream(new OutputStream() {
+      @Override public void write(int b) {}
+      @Override public void write(byte[] b, int off, int len) {}
+    });
+    System.setOut(quiet);
+    System.setErr(quiet);
+    try {
+      Thread compiler = new Thread(null, () -> {
+        try {
+          pipe.addAll(Compiler.buildPipe(new ANTLRInputStream(program)).getPipe());
+        } catch (RuntimeException | Error e) {
+          failure[0] = e;
+        }
+      }, "compile", stackBytes);
+      compiler.start();
+      compiler.join();
+    } finally {
+      System.setOut(out);
+      System.setErr(err);
+    }
+    if (failure[0] != null) {
+      throw new RuntimeException("Compiling a chain of " + (program.split(";").length - 1) +
+                                 " statements failed", failure[0]);
+    }
+    return pipe.size();
+  }
+}
@@ -0,0 +1,364 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/// Chaos primitives and the scenarios built from them (see chaos_monkey.txt), on top of the traffic
+/// of a TrafficGenerator. A primitive hooks into the generator as packets enter the network (to
+/// reroute them) and as they reach a switch (to drop them, or to slow down the queue). A scenario
+/// configures a generator with primitives and injected flows at known times, and keeps a record of
+/// what it did, to check query results against.
+public class ChaosMonkey {
+  /// Hooks called by TrafficGenerator; the defaults leave packets alone.
+  public interface Primitive {
+    /// Path taken by a packet of `flow` entering the network at `time`, currently `path`
+    default int route(int flow, int path, long time) {
+      return path;
+    }
+
+    /// Whether a packet of `flow` arriving at switch `sw` at `time`, to leave on `outport`, is lost
+    default boolean drop(int sw, int outport, int flow, long time) {
+      return false;
+    }
+
+    /// Factor applied to the drain rate of the queue of `sw` and `outport` at `time`
+    default double drainScale(int sw, int outport, long time) {
+      return 1;
+    }
+  }
+
+  /// Packet loss: packets at switch `sw` are lost with `probability` during [start, end).
+  public static class PacketLoss implements Primitive {
+    private int sw;
+    private double probability;
+    private long start;
+    private long end;
+    private SplittableRandom rng;
+
+    public PacketLoss(int sw, double probability, long start, long end, long seed) {
+      this.sw = sw;
+      this.probability = probability;
+      this.start = start;
+      this.end = end;
+      this.rng = new SplittableRandom(seed);
+    }
+
+    @Override public boolean drop(int sw, int outport, int flow, long time) {
+      return sw == this.sw && time >= start && time < end && rng.nextDouble() < probability;
+    }
+  }
+
+  /// Link failure: the link from switch `from` to switch `to` goes down at `start`, and packets sent
+  /// over it are lost. Routes reconverge after `reconvergence` ticks: from then on, packets that
+  /// enter the network take a detour through another switch instead of the failed link.
+  public static class LinkFailure implements Primitive {
+    private int from;
+    private int to;
+    private long start;
+    private long reconverged;
+    /// Replacement of each path that uses the link, or -1
+    private int[] detour;
+
+    public LinkFailure(TrafficGenerator gen, int from, int to, long start, long reconvergence) {
+      this.from = from;
+      this.to = to;
+      this.start = start;
+      this.reconverged = start + reconvergence;
+      this.detour = new int[gen.getNumPaths()];
+      for (int p = 0; p < detour.length; p++) {
+        detour[p] = -1;
+        int[] path = gen.getPath(p);
+        for (int h = 0; h + 1 < path.length; h++) {
+          if (path[h] == from && path[h + 1] == to) {
+            int[] around = new int[path.length + 1];
+            System.arraycopy(path, 0, around, 0, h + 1);
+            around[h + 1] = otherSwitch(gen, from, to, -1);
+            System.arraycopy(path, h + 1, around, h + 2, path.length - h - 1);
+            detour[p] = gen.addPath(around);
+            break;
+          }
+        }
+      }
+    }
+
+    @Override public int route(int flow, int path, long time) {
+      return (time >= reconverged && path < detour.length && detour[path] >= 0) ? detour[path]
+                                                                                : path;
+    }
+
+    @Override public boolean drop(int sw, int outport, int flow, long time) {
+      return sw == from && outport == to && time >= start;
+    }
+
+    public int[] getDetours() {
+      return detour;
+    }
+  }
+
+  /// Switch failure: switch `sw` loses every packet from `start`. Routes reconverge after
+  /// `reconvergence` ticks: from then on, paths through `sw` go through another switch instead.
+  public static class SwitchFailure implements Primitive {
+    private int sw;
+    private long start;
+    private long reconverged;
+    private int[] detour;
+
+    public SwitchFailure(TrafficGenerator gen, int sw, long start, long reconvergence) {
+      this.sw = sw;
+      this.start = start;
+      this.reconverged = start + reconvergence;
+      this.detour = new int[gen.getNumPaths()];
+      for (int p = 0; p < detour.length; p++) {
+        int[] path = gen.getPath(p).clone();
+        boolean uses = false;
+        for (int h = 0; h < path.length; h++) {
+          if (path[h] == sw) {
+            path[h] = otherSwitch(gen, (h > 0) ? path[h - 1] : sw,
+                                  (h + 1 < path.length) ? path[h + 1] : sw, sw);
+            uses = true;
+          }
+        }
+        detour[p] = uses ? gen.addPath(path) : -1;
+      }
+    }
+
+    @Override public int route(int flow, int path, long time) {
+      return (time >= reconverged && path < detour.length && detour[path] >= 0) ? detour[path]
+                                                                                : path;
+    }
+
+    @Override public boolean drop(int sw, int outport, int flow, long time) {
+      return sw == this.sw && time >= start;
+    }
+  }
+
+  /// Reroute: during [start, end), packets that would take path `from` take path `to` instead,
+  /// e.g., a path with a routing loop.
+  public static class Reroute implements Primitive {
+    private int from;
+    private int to;
+    private long start;
+    private long end;
+
+    public Reroute(int from, int to, long start, long end) {
+      this.from = from;
+      this.to = to;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override public int route(int flow, int path, long time) {
+      return (path == from && time >= start && time < end) ? to : path;
+    }
+  }
+
+  /// Latency spikes (or pauses, as with RDMA PFC): for `duration` ticks out of every `period`, the
+  /// queue of switch `sw` and `outport` drains at `factor` times its usual rate.
+  public static class LatencySpike implements Primitive {
+    private int sw;
+    private int outport;
+    private long period;
+    private long duration;
+    private double factor;
+
+    public LatencySpike(int sw, int outport, long period, long duration, double factor) {
+      this.sw = sw;
+      this.outport = outport;
+      this.period = period;
+      this.duration = duration;
+      this.factor = factor;
+    }
+
+    @Override public double drainScale(int sw, int outport, long time) {
+      return (sw == this.sw && outport == this.outport && time % period < duration) ? factor : 1;
+    }
+  }
+
+  /// A switch other than `a`, `b` and `c`
+  private static int otherSwitch(TrafficGenerator gen, int a, int b, int c) {
+    for (int sw = 1; sw <= gen.getConfig().switches; sw++) {
+      if (sw != a && sw != b && sw != c) return sw;
+    }
+    throw new RuntimeException("Not enough switches for a detour; use more switches");
+  }
+
+  /// A generator set up for one scenario, and what the scenario did to it
+  public static class Scenario {
+    private String name;
+    private TrafficGenerator gen;
+    private List<String> events = new ArrayList<>();
+
+    Scenario(String name, TrafficGenerator gen) {
+      this.name = name;
+      this.gen = gen;
+    }
+
+    public TrafficGenerator getGenerator() {
+      return gen;
+    }
+
+    void event(String e) {
+      events.add(e);
+    }
+
+    /// What the scenario injected, and what the generator counted; valid once it has been run.
+    public String groundTruth() {
+      String res = "Scenario " + name + ":";
+      for (String e: events) {
+        res += "\n  " + e;
+      }
+      res += String.format("\n  %d packets (%d injected), %d rerouted, %d lost to faults," +
+                           " %d lost to full queues", gen.getPackets(), gen.getInjected(),
+                           gen.getRerouted(), gen.getFaultDrops(), gen.getDrops());
+      for (int sw = 1; sw <= gen.getConfig().switches; sw++) {
+        if (gen.getDropsAt(sw) > 0) {
+          res += "\n  switch " + sw + ": " + gen.getDropsAt(sw) + " packets lost";
+        }
+      }
+      return res;
+    }
+  }
+
+  public static List<String> scenarios = Arrays.asList(
+      "packet-loss", "link-failure", "switch-failure", "udp-flood", "ecmp-imbalance",
+      "routing-loop", "latency-spike", "incast", "outcast");
+
+  /// Ticks for routes to reconverge after a failure
+  private static long RECONVERGENCE = 1000;
+  /// Epoch of the incast and outcast queries, in ticks
+  private static long EPOCH = 128;
+
+  /// Set up scenario `name` over `numPackets` packets of background traffic from `config`. Faults
+  /// start halfway through the background traffic.
+  public static Scenario create(String name, TrafficGenerator.Config config, long numPackets,
+                                long seed) {
+    if (name.equals("link-failure") || name.equals("switch-failure") ||
+        name.equals("routing-loop")) {
+      config.hops = Math.max(config.hops, 3);
+    }
+    if (name.equals("ecmp-imbalance")) {
+      config.switches = Math.max(config.switches, 6);
+    }
+    config.switches = Math.max(config.switches, 4);
+    TrafficGenerator gen = new TrafficGenerator(config, numPackets, seed);
+    Scenario sc = new Scenario(name, gen);
+    long duration = (long)(numPackets * config.interArrival);
+    long mid = duration / 2;
+    int[] path0 = gen.getPath(0);
+    switch (name) {
+      case "packet-loss": {
+        gen.addPrimitive(new PacketLoss(path0[0], 0.01, 0, Long.MAX_VALUE, seed));
+        sc.event("switch " + path0[0] + " loses 1% of its packets");
+        break;
+      }
+      case "link-failure": {
+        LinkFailure lf = new LinkFailure(gen, path0[0], path0[1], mid, RECONVERGENCE);
+        gen.addPrimitive(lf);
+        sc.event("link " + path0[0] + " -> " + path0[1] + " fails at tick " + mid +
+                 ", routes reconverge at tick " + (mid + RECONVERGENCE));
+        for (int p = 0; p < lf.getDetours().length; p++) {
+          if (lf.getDetours()[p] >= 0) {
+            sc.event("pktpath " + p + " " + Arrays.toString(gen.getPath(p)) + " becomes " +
+                     lf.getDetours()[p] + " " + Arrays.toString(gen.getPath(lf.getDetours()[p])));
+          }
+        }
+        break;
+      }
+      case "switch-failure": {
+        gen.addPrimitive(new SwitchFailure(gen, path0[1], mid, RECONVERGENCE));
+        sc.event("switch " + path0[1] + " fails at tick " + mid + ", routes reconverge at tick " +
+                 (mid + RECONVERGENCE));
+        break;
+      }
+      case "udp-flood": {
+        /// One UDP flow at twice the drain rate of a queue, for a tenth of the run
+        int flow = gen.addFlow(0x0b000001, 0x0b000002, 6666, 6666, 17, 0);
+        double interval = 1500 / (2 * config.bytesPerTick);
+        gen.inject(new int[] {flow}, mid, mid + duration / 10, interval, 1500);
+        sc.event("UDP flow 11.0.0.1:6666 -> 11.0.0.2:6666 on pktpath 0 " + Arrays.toString(path0) +
+                 " at twice the link rate from tick " + mid + " to " + (mid + duration / 10));
+        break;
+      }
+      case "ecmp-imbalance": {
+        /// Four equal-cost paths from switch 1 to switch 2, with 55% of the flows hashed to one
+        double[] weights = {0.55, 0.15, 0.15, 0.15};
+        int[] paths = new int[weights.length];
+        for (int i = 0; i < paths.length; i++) {
+          paths[i] = gen.addPath(1, 3 + i, 2);
+        }
+        int[] flowsOn = new int[paths.length];
+        for (int f = 0; f < config.flows; f++) {
+          double u = (GroupbyTable.hash(new int[] {f}) & 0xffffffffL) / (double)(1L << 32);
+          int i = 0;
+          while (i + 1 < weights.length && u >= weights[i]) {
+            u -= weights[i++];
+          }
+          gen.setFlowPath(f, paths[i]);
+          flowsOn[i]++;
+        }
+        for (int i = 0; i < paths.length; i++) {
+          sc.event("pktpath " + paths[i] + " " + Arrays.toString(gen.getPath(paths[i])) + ": " +
+                   flowsOn[i] + " flows (weight " + weights[i] + ")");
+        }
+        break;
+      }
+      case "routing-loop": {
+        int[] loop = new int[16];
+        loop[0] = path0[0];
+        for (int h = 1; h < loop.length; h++) {
+          loop[h] = (h % 2 == 1) ? path0[1] : path0[2];
+        }
+        int looping = gen.addPath(loop);
+        gen.addPrimitive(new Reroute(0, looping, mid, mid + RECONVERGENCE));
+        sc.event("pktpath 0 loops between switches " + path0[1] + " and " + path0[2] +
+                 " (pktpath " + looping + ") from tick " + mid + " to " + (mid + RECONVERGENCE));
+        break;
+      }
+      case "latency-spike": {
+        int outport = (path0.length > 1) ? path0[1] : 0;
+        gen.addPrimitive(new LatencySpike(path0[0], outport, 10000, 200, 0.05));
+        sc.event("queue " + outport + " of switch " + path0[0] + " drains at 5% of its rate for" +
+                 " 200 ticks out of every 10000");
+        break;
+      }
+      case "incast": {
+        /// 100 senders to one receiver behind the last switch, in bursts of 3 packets each
+        int path = gen.addPath(2, 1);
+        int[] flows = new int[100];
+        for (int i = 0; i < flows.length; i++) {
+          flows[i] = gen.addFlow(0x0c000000 + i, 0x0c010001, 10000 + i, 5000, 6, path);
+        }
+        for (int b = 1; b <= 5; b++) {
+          long t = (duration * b / 6) / EPOCH * EPOCH;
+          gen.inject(flows, t, t + EPOCH, EPOCH / (3.0 * flows.length), 1500);
+          sc.event("incast of 100 flows into queue 0 of switch 1 in epoch " + (t / EPOCH));
+        }
+        break;
+      }
+      case "outcast": {
+        /// 60 flows through switch 3 and 2 flows through switch 4 share queue 0 of switch 1; the
+        /// 2 flows are the victims. Each burst saturates the link from switch 3 for long enough
+        /// that, with the background traffic, the shared queue builds up.
+        int many = gen.addPath(3, 1);
+        int few = gen.addPath(4, 1);
+        int[] flows = new int[62];
+        for (int i = 0; i < flows.length; i++) {
+          flows[i] = gen.addFlow(0x0d000000 + i, 0x0d010001, 10000 + i, 5000, 6,
+                                 (i < 60) ? many : few);
+        }
+        for (int b = 1; b <= 5; b++) {
+          long t = (duration * b / 6) / EPOCH * EPOCH;
+          gen.inject(flows, t, t + 5 * EPOCH, 5 * EPOCH / (20.0 * flows.length), 1500);
+          sc.event("outcast at switch 1 from epoch " + (t / EPOCH) + " to " + (t / EPOCH + 4) +
+                   ": 60 flows from inport 3, 2 from inport 4");
+        }
+        break;
+      }
+      default:
+        throw new RuntimeException("Unknown chaos scenario " + name + "; scenarios are " +
+                                   scenarios);
+    }
+    return sc;
+  }
+}
@@ -1,5 +1,6 @@
 package edu.mit.needlstk;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.HashSet;
 import java.io.PrintWriter;
@@ -21,32 +22,26 @@ public class CodeFragmentPrinter {
     }
   }
 
+  /// Compiled templates by resource name. A template is read and compiled once per thread, which
+  /// matters to long-running compilers (see CompilerDaemon); every use gets its own instance to fill
+  /// in. Templates are not shared between threads, because filling in an instance of a template
+  /// defines its attributes on the compiled template that all its instances share.
+  private static ThreadLocal<HashMap<String, ST>> templates = ThreadLocal.withInitial(HashMap::new);
+
+  public static ST getTemplate(String resource) throws IOException {
+    ST proto = templates.get().get(resource);
+    if (proto == null) {
+      InputStream is = CodeFragmentPrinter.class.getClassLoader().getResourceAsStream(resource);
+      proto = new ST(IOUtils.toString(is, "UTF-8"), '$', '$');
+      templates.get().put(resource, proto);
+    }
+    return new ST(proto);
+  }
+
   public static boolean writeP4(PipeConstructor pc, ArrayList<PipeStage> pipe) {
     try {
       PrintWriter writer = new PrintWriter("output.p4", "UTF-8"); // unhardcode
-      InputStream is = CodeFragmentPrinter.class.getClassLoader().getResourceAsStream("p4.tmpl");
-      ST p4_template = new ST(IOUtils.toString(is, "UTF-8"), '$', '$');
-      p4_template.add("SwitchId", 666);         // Unhardcode this.
-
-      // XXX: Restoring NG's old code using getPacketFieldDeclList
-      // Need to find out how this differs from getAllPacketFields
-      ArrayList<ThreeOpDecl> decls = pc.getPacketFieldDeclList(pipe);
-      List<String> res = new ArrayList<String>();
-      for (ThreeOpDecl decl: decls) {
-        res.add(decl.getP4());
-      }
-      p4_template.add("QueryMetadata", res); // Query metadata
-
-      List<GroupbyStruct> groupby_structs = new ArrayList<GroupbyStruct>();// groupby structs
-      for (PipeStage stage: pipe) {
-        if (stage.getOp() == OperationType.GROUPBY) {
-          groupby_structs.add(new GroupbyStruct("Key_"+stage.getPipeName(), stage.getQualifiedKeyFields()));
-          groupby_structs.add(new GroupbyStruct("Value_"+stage.getPipeName(), stage.getValueFields()));
-        }
-      }
-      p4_template.add("GroupbyStructs", groupby_structs);
-      p4_template.add("Stages", pipe);    // Add every stage's information
-      writer.print(p4_template.render()); // render template
+      writer.print(renderP4(pc, pipe));
       writer.close();
       return true;
     } catch (IOException e) {
@@ -57,28 +52,40 @@ public class CodeFragmentPrinter {
     }
   }
 
+  /// The P4 program of `pipe`
+  public static String renderP4(PipeConstructor pc, ArrayList<PipeStage> pipe) throws IOException {
+    ST p4_template = getTemplate("p4.tmpl");
+    p4_template.add("SwitchId", 666);         // Unhardcode this.
+
+    // XXX: Restoring NG's old code using getPacketFieldDeclList
+    // Need to find out how this differs from getAllPacketFields
+    ArrayList<ThreeOpDecl> decls = pc.getPacketFieldDeclList(pipe);
+    List<String> res = new ArrayList<String>();
+    for (ThreeOpDecl decl: decls) {
+      res.add(decl.getP4());
+    }
+    p4_template.add("QueryMetadata", res); // Query metadata
+
+    List<GroupbyStruct> groupby_structs = new ArrayList<GroupbyStruct>();// groupby structs
+    for (PipeStage stage: pipe) {
+      if (stage.getOp() == OperationType.GROUPBY) {
+        groupby_structs.add(new GroupbyStruct("Key_"+stage.getPipeName(), stage.getQualifiedKeyFields()));
+        groupby_structs.add(new GroupbyStruct("Value_"+stage.getPipeName(), stage.getValueFields()));
+      }
+    }
+    p4_template.add("GroupbyStructs", groupby_structs);
+    p4_template.add("Stages", pipe);    // Add every stage's information
+    return p4_template.render();        // render template
+  }
+
   public static boolean writeDominoMonolithic(PipeConstructor pc, ArrayList<PipeStage> pipe) {
     String fPrefix = "domino-";
     String fSuffix = ".c";
     try {
       /// Print final output for inspection
-      String decls = pc.getNonRegisterDeclsDomino(pipe);
-      String regs  = pc.getAllRegisterDeclsDomino(pipe);
       String fileName = fPrefix + "full" + fSuffix;
       PrintWriter writer = new PrintWriter(fileName, "UTF-8");
-      writer.print("// Packet fields\n");
-      writer.print("struct Packet {\n");
-      writer.print(decls);
-      writer.print("};\n\n");
-      writer.print("// State declarations\n");
-      writer.print(regs);
-      writer.print("\n");
-      writer.print("// Fold function definition\n");
-      writer.print("void func(struct Packet pkt) {\n");
-      for (PipeStage stage: pipe) {
-        writer.print(stage.getDominoFragment());
-      }
-      writer.print("}\n");
+      writer.print(renderDominoMonolithic(pc, pipe));
       writer.close();
       return true;
     } catch (IOException e) {
@@ -86,4 +93,25 @@ public class CodeFragmentPrinter {
       return false;
     }
   }
+
+  /// The Domino program of `pipe`, as a single packet transaction
+  public static String renderDominoMonolithic(PipeConstructor pc, ArrayList<PipeStage> pipe) {
+    String decls = pc.getNonRegisterDeclsDomino(pipe);
+    String regs  = pc.getAllRegisterDeclsDomino(pipe);
+    StringBuilder sb = new StringBuilder();
+    sb.append("// Packet fields\n");
+    sb.append("struct Packet {\n");
+    sb.append(decls);
+    sb.append("};\n\n");
+    sb.append("// State declarations\n");
+    sb.append(regs);
+    sb.append("\n");
+    sb.append("// Fold function definition\n");
+    sb.append("void func(struct Packet pkt) {\n");
+    for (PipeStage stage: pipe) {
+      sb.append(stage.getDominoFragment());
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
 }
@@ -0,0 +1,268 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/// Constant folding and algebraic simplification of the code of every stage of a pipeline. Each
+/// stage runs its preamble, body and postamble in a straight line, so that a variable assigned a
+/// constant (e.g., the coefficients _x_a = 1 and _x_b = 0 set up by Linear, or the outermost
+/// predicate _pred_1 = true of an aggregation function over the packet log) holds it until it is
+/// assigned again. Within each statement:
+///  - uses of such variables are replaced by the constant;
+///  - operators over constants are evaluated as the stage would evaluate them at run time;
+///  - identities are removed: x + 0, x - 0, x * 1, x / 1 and x >> 0 are x, and x * 0 is 0;
+///  - predicates are simplified through AugPred.and(), or() and not(), and !!p is p;
+///  - ternaries p ? x : y with a constant p, or with the same x and y, become plain assignments.
+/// Statements are never removed, except assignments of a variable to itself: the values they
+/// assign may be read by later stages or by software runners (e.g., the coefficients of linear
+/// updates, see PartialGroupbyRunner).
+public class CodeSimplifier {
+  private ArrayList<PipeStage> pipe;
+  /// Number of operators evaluated by the pipeline, before and after simplification
+  private int opsBefore = 0;
+  private int opsAfter = 0;
+
+  /// Constant held by each variable at the statement being simplified
+  private HashMap<String, AugExpr> constants;
+
+  public CodeSimplifier(ArrayList<PipeStage> pipe) {
+    this.pipe = pipe;
+  }
+
+  public void simplify() {
+    for (PipeStage stage: pipe) {
+      PipeConfigInfo info = stage.getConfigInfo();
+      constants = new HashMap<>();
+      info.preamble = simplify(info.preamble);
+      info.code = simplify(info.code);
+      info.postamble = simplify(info.postamble);
+    }
+  }
+
+  public String report() {
+    return "Simplified code from " + opsBefore + " to " + opsAfter + " operations";
+  }
+
+  private ThreeOpCode simplify(ThreeOpCode code) {
+    ArrayList<ThreeOpStmt> stmts = new ArrayList<>();
+    for (ThreeOpStmt stmt: code.getStmts()) {
+      opsBefore += countOps(stmt);
+      ThreeOpStmt res = simplify(stmt);
+      if (res.isEmit()) {
+        stmts.add(res);
+        continue;
+      }
+      String var = res.getDefinedVar();
+      constants.remove(var);
+      if (res.isExprAssign() && res.getExpr().isValueExpr()) {
+        constants.put(var, res.getExpr());
+      } else if (res.isPredAssign() && isConstant(res.getPred())) {
+        constants.put(var, new AugExpr(res.getPred().isIdenticallyTrue() ? 1 : 0,
+                                       P4Printer.BOOL_WIDTH));
+      }
+      if (! isSelfAssign(res)) {
+        opsAfter += countOps(res);
+        stmts.add(res);
+      }
+    }
+    return new ThreeOpCode(new ArrayList<>(code.getDecls()), stmts);
+  }
+
+  private ThreeOpStmt simplify(ThreeOpStmt stmt) {
+    if (stmt.isExprAssign()) {
+      return new ThreeOpStmt(stmt.getDefinedVar(), simplify(stmt.getExpr()));
+    } else if (stmt.isPredAssign()) {
+      return new ThreeOpStmt(stmt.getDefinedVar(), simplify(stmt.getPred()));
+    } else if (stmt.isTernary()) {
+      AugExpr exprIf = simplify(stmt.getExprIf());
+      AugExpr exprElse = simplify(stmt.getExprElse());
+      AugExpr predVal = constants.get(stmt.getPredVarOfTernary());
+      if (predVal != null) {
+        return new ThreeOpStmt(stmt.getDefinedVar(), (predVal.value != 0) ? exprIf : exprElse);
+      } else if (exprIf.print().equals(exprElse.print())) {
+        return new ThreeOpStmt(stmt.getDefinedVar(), exprIf);
+      }
+      return new ThreeOpStmt(stmt.getDefinedVar(), stmt.getPredVarOfTernary(), exprIf, exprElse);
+    }
+    return stmt;
+  }
+
+  private AugExpr simplify(AugExpr expr) {
+    switch (expr.getType()) {
+      case EXPR_ID:
+        AugExpr val = constants.get(expr.ident);
+        return (val != null) ? new AugExpr(val.value, val.width) : expr;
+      case EXPR_VAL:
+        return expr;
+      default:
+        break;
+    }
+    AugExpr left = simplify(expr.children.get(0));
+    AugExpr right = simplify(expr.children.get(1));
+    if (left.isValueExpr() && right.isValueExpr()) {
+      Integer folded = fold(expr.binop, left.value, right.value);
+      if (folded != null) {
+        return new AugExpr(folded);
+      }
+    }
+    switch (expr.binop) {
+      case BINOP_ADD:
+        if (isValue(left, 0)) return right;
+        if (isValue(right, 0)) return left;
+        break;
+      case BINOP_SUB:
+        if (isValue(right, 0)) return left;
+        break;
+      case BINOP_MUL:
+        if (isValue(left, 1)) return right;
+        if (isValue(right, 1)) return left;
+        if (isValue(left, 0) || isValue(right, 0)) return new AugExpr(0);
+        break;
+      case BINOP_DIV:
+        if (isValue(right, 1)) return left;
+        break;
+      case BINOP_RSHIFT:
+        if (isValue(right, 0)) return left;
+        break;
+      default:
+        break;
+    }
+    if (left == expr.children.get(0) && right == expr.children.get(1)) {
+      return expr;
+    }
+    return new AugExpr(left, right, expr.binop);
+  }
+
+  /// Value of `left` `binop` `right` as evaluated at run time (see StageInterpreter), or null if
+  /// it is not folded: divisions are only folded by powers of 2, which DivisorChecker turns into
+  /// shifts, and results are only folded if they can be printed as an unsigned constant.
+  private static Integer fold(AugExpr.Binop binop, int left, int right) {
+    long res;
+    switch (binop) {
+      case BINOP_ADD:
+        res = (long)left + right;
+        break;
+      case BINOP_SUB:
+        res = (long)left - right;
+        break;
+      case BINOP_MUL:
+        res = (long)left * right;
+        break;
+      case BINOP_DIV:
+        if (right <= 0 || (right & (right - 1)) != 0) return null;
+        res = left >> Integer.numberOfTrailingZeros(right);
+        break;
+      case BINOP_RSHIFT:
+        res = left >> right;
+        break;
+      default:
+        return null;
+    }
+    return (res >= 0 && res <= Integer.MAX_VALUE) ? (int)res : null;
+  }
+
+  private AugPred simplify(AugPred pred) {
+    switch (pred.type) {
+      case PRED_TRUE:
+      case PRED_FALSE:
+        return pred;
+      case PRED_ID:
+        AugExpr val = constants.get(pred.predId);
+        return (val != null) ? new AugPred(val.value != 0) : pred;
+      case PRED_AND:
+        return simplify(pred.childPreds.get(0)).and(simplify(pred.childPreds.get(1)));
+      case PRED_OR:
+        return simplify(pred.childPreds.get(0)).or(simplify(pred.childPreds.get(1)));
+      case PRED_NOT:
+        AugPred child = simplify(pred.childPreds.get(0));
+        if (child.type == AugPred.AugPredType.PRED_NOT) {
+          return child.childPreds.get(0);
+        }
+        return child.not();
+      default:
+        break;
+    }
+    AugExpr left = simplify(pred.childExprs.get(0));
+    AugExpr right = simplify(pred.childExprs.get(1));
+    if (left.isValueExpr() && right.isValueExpr()) {
+      switch (pred.type) {
+        case PRED_EQ:
+          return new AugPred(left.value.intValue() == right.value.intValue());
+        case PRED_NE:
+          return new AugPred(left.value.intValue() != right.value.intValue());
+        case PRED_GT:
+          return new AugPred(left.value > right.value);
+        case PRED_LT:
+          return new AugPred(left.value < right.value);
+        default:
+          break;
+      }
+    }
+    if (left == pred.childExprs.get(0) && right == pred.childExprs.get(1)) {
+      return pred;
+    }
+    List<AugExpr> children = new ArrayList<>();
+    children.add(left);
+    children.add(right);
+    return new AugPred(pred.type, children);
+  }
+
+  private static boolean isValue(AugExpr expr, int value) {
+    return expr.isValueExpr() && expr.value == value;
+  }
+
+  private static boolean isConstant(AugPred pred) {
+    return pred.isIdenticallyTrue() || pred.isIdenticallyFalse();
+  }
+
+  /// Whether a statement assigns a variable to itself
+  private static boolean isSelfAssign(ThreeOpStmt stmt) {
+    if (stmt.isPredAssign()) {
+      AugPred pred = stmt.getPred();
+      return pred.type == AugPred.AugPredType.PRED_ID && pred.predId.equals(stmt.getDefinedVar());
+    } else if (stmt.isExprAssign()) {
+      AugExpr expr = stmt.getExpr();
+      return expr.getType() == AugExpr.AugExprType.EXPR_ID && expr.ident.equals(stmt.getDefinedVar());
+    }
+    return false;
+  }
+
+  /// Number of operators a statement evaluates: arithmetic, comparisons, connectives and selects
+  private static int countOps(ThreeOpStmt stmt) {
+    if (stmt.isExprAssign()) {
+      return countOps(stmt.getExpr());
+    } else if (stmt.isPredAssign()) {
+      return countOps(stmt.getPred());
+    } else if (stmt.isTernary()) {
+      return 1 + countOps(stmt.getExprIf()) + countOps(stmt.getExprElse());
+    }
+    return 0;
+  }
+
+  private static int countOps(AugExpr expr) {
+    if (expr.getType() != AugExpr.AugExprType.EXPR_COMB) return 0;
+    return 1 + countOps(expr.children.get(0)) + countOps(expr.children.get(1));
+  }
+
+  private static int countOps(AugPred pred) {
+    int ops = 1;
+    switch (pred.type) {
+      case PRED_TRUE:
+      case PRED_FALSE:
+      case PRED_ID:
+        return 0;
+      case PRED_AND:
+      case PRED_OR:
+      case PRED_NOT:
+        for (AugPred child: pred.childPreds) {
+          ops += countOps(child);
+        }
+        return ops;
+      default:
+        for (AugExpr child: pred.childExprs) {
+          ops += countOps(child);
+        }
+        return ops;
+    }
+  }
+}
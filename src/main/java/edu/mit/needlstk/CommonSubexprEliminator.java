@@ -0,0 +1,348 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/// Common-subexpression elimination over the body of every stage of a pipeline. Within a stage,
+/// compound expressions and predicates are hash-consed into value numbers: two subtrees get the same
+/// number if they apply the same operator to operands of the same numbers, where an identifier is
+/// numbered by its name and by how many times the stage has assigned it so far, and the operands of
+/// commutative operators are taken in any order. A value computed more than once is then computed
+/// once, into a new temporary, or into the variable of the statement computing it first if that
+/// variable still holds it at every later use. For instance:
+///   _b = (tout - tin) + x;  _p = (tout - tin) > 5;
+/// becomes
+///   _cse_1 = tout - tin;  _b = _cse_1 + x;  _p = _cse_1 > 5;
+/// Preambles and postambles only move validity between fields and temporaries, and are left as is.
+public class CommonSubexprEliminator {
+  private static String TMP_PREFIX = "_cse_";
+
+  private ArrayList<PipeStage> pipe;
+  /// Number of temporaries introduced so far, used to name them uniquely across the pipeline
+  private int numTmps = 0;
+  /// Number of evaluations of subexpressions eliminated so far
+  private int numEliminated = 0;
+
+  /// Per-stage state: value number of each structural key, and what is known of each value number
+  private HashMap<String, Integer> numbers;
+  private ArrayList<Value> values;
+  /// Assignments made so far to each identifier of the stage
+  private HashMap<String, Integer> versions;
+  /// Value number of every compound subtree of the statement being processed
+  private IdentityHashMap<Object, Integer> nums;
+
+  /// What is known of a value number
+  private static class Value {
+    /// Evaluations of the value left once every repeated evaluation is eliminated
+    int count = 0;
+    /// If the value is first evaluated as the whole right-hand side of a statement, the variable the
+    /// statement assigns, and the version of that variable holding the value
+    String var = null;
+    int varVersion;
+    /// Whether `var` still holds the value wherever it is evaluated again
+    boolean varHolds = true;
+    /// Variable holding the value, once computed
+    String holder = null;
+  }
+
+  public CommonSubexprEliminator(ArrayList<PipeStage> pipe) {
+    this.pipe = pipe;
+  }
+
+  public void eliminate() {
+    for (PipeStage stage: pipe) {
+      eliminate(stage.getConfigInfo());
+    }
+  }
+
+  /// Number of evaluations of subexpressions eliminated from the pipeline
+  public String report() {
+    return "Eliminated " + numEliminated + " repeated subexpressions with " + numTmps +
+           " new temporaries";
+  }
+
+  private void eliminate(PipeConfigInfo info) {
+    List<ThreeOpStmt> stmts = info.code.getStmts();
+    numbers = new HashMap<>();
+    values = new ArrayList<>();
+
+    /// Count evaluations. Once a value has been evaluated, later evaluations of it are replaced
+    /// wholesale, so that the subtrees below them are not counted again.
+    versions = new HashMap<>();
+    for (ThreeOpStmt stmt: stmts) {
+      nums = new IdentityHashMap<>();
+      for (Object root: rootsOf(stmt)) {
+        number(root);
+        count(root, (root == wholeRhsOf(stmt)) ? stmt.getDefinedVar() : null);
+      }
+      define(stmt);
+    }
+    boolean repeated = false;
+    for (Value val: values) {
+      if (val.count > 1) {
+        repeated = true;
+        numEliminated += val.count - 1;
+      }
+    }
+    if (! repeated) return;
+
+    /// Rewrite the statements with the same numbering, computing each repeated value once.
+    HashMap<String, AggFunVarType> symTab = new HashMap<>(info.getSymTab());
+    ArrayList<ThreeOpDecl> decls = new ArrayList<>(info.code.getDecls());
+    ArrayList<ThreeOpStmt> newStmts = new ArrayList<>();
+    versions = new HashMap<>();
+    for (ThreeOpStmt stmt: stmts) {
+      nums = new IdentityHashMap<>();
+      for (Object root: rootsOf(stmt)) {
+        number(root);
+      }
+      String wholeVar = (wholeRhsOf(stmt) != null) ? stmt.getDefinedVar() : null;
+      ThreeOpStmt newStmt;
+      if (stmt.isPredAssign()) {
+        newStmt = new ThreeOpStmt(wholeVar,
+                                  rewritePred(stmt.getPred(), wholeVar, newStmts, decls, symTab));
+      } else if (stmt.isExprAssign()) {
+        newStmt = new ThreeOpStmt(wholeVar,
+                                  rewriteExpr(stmt.getExpr(), wholeVar, newStmts, decls, symTab));
+      } else if (stmt.isTernary()) {
+        newStmt = new ThreeOpStmt(stmt.getDefinedVar(), stmt.getPredVarOfTernary(),
+                                  rewriteExpr(stmt.getExprIf(), null, newStmts, decls, symTab),
+                                  rewriteExpr(stmt.getExprElse(), null, newStmts, decls, symTab));
+      } else {
+        newStmt = stmt;
+      }
+      /// Drop assignments of a variable to itself, left where the variable already holds the value.
+      if (! isSelfAssign(newStmt)) {
+        newStmts.add(newStmt);
+      }
+      define(stmt);
+    }
+    info.code = new ThreeOpCode(decls, newStmts);
+    info.symTab = symTab;
+  }
+
+  /// Whether a statement assigns a variable to itself
+  private static boolean isSelfAssign(ThreeOpStmt stmt) {
+    if (stmt.isPredAssign()) {
+      AugPred pred = stmt.getPred();
+      return pred.type == AugPred.AugPredType.PRED_ID && pred.predId.equals(stmt.getDefinedVar());
+    } else if (stmt.isExprAssign()) {
+      AugExpr expr = stmt.getExpr();
+      return expr.getType() == AugExpr.AugExprType.EXPR_ID && expr.ident.equals(stmt.getDefinedVar());
+    }
+    return false;
+  }
+
+  /// Expressions and predicates evaluated by a statement
+  private static List<Object> rootsOf(ThreeOpStmt stmt) {
+    if (stmt.isPredAssign()) {
+      return Arrays.asList(stmt.getPred());
+    } else if (stmt.isExprAssign()) {
+      return Arrays.asList(stmt.getExpr());
+    } else if (stmt.isTernary()) {
+      return Arrays.asList(stmt.getExprIf(), stmt.getExprElse());
+    } else {
+      return new ArrayList<>();
+    }
+  }
+
+  /// The expression or predicate assigned by a statement, or null for ternaries and emits
+  private static Object wholeRhsOf(ThreeOpStmt stmt) {
+    if (stmt.isPredAssign()) {
+      return stmt.getPred();
+    } else if (stmt.isExprAssign()) {
+      return stmt.getExpr();
+    } else {
+      return null;
+    }
+  }
+
+  private int versionOf(String id) {
+    return versions.getOrDefault(id, 0);
+  }
+
+  private void define(ThreeOpStmt stmt) {
+    if (! stmt.isEmit()) {
+      versions.put(stmt.getDefinedVar(), versionOf(stmt.getDefinedVar()) + 1);
+    }
+  }
+
+  private int numberOf(String key) {
+    Integer num = numbers.get(key);
+    if (num == null) {
+      num = values.size();
+      numbers.put(key, num);
+      values.add(new Value());
+    }
+    return num;
+  }
+
+  /// Key of a binary operator, with the operands of commutative operators in a canonical order
+  private static String binaryKey(String op, int num0, int num1, boolean commutative) {
+    if (commutative && num1 < num0) {
+      return op + " " + num1 + " " + num0;
+    }
+    return op + " " + num0 + " " + num1;
+  }
+
+  /// Number `node` (an AugExpr or an AugPred) and its compound subtrees, recording the numbers of
+  /// the latter in `nums`.
+  private int number(Object node) {
+    if (node instanceof AugExpr) {
+      AugExpr expr = (AugExpr)node;
+      switch (expr.getType()) {
+        case EXPR_ID:
+          return numberOf("id " + expr.ident + " " + versionOf(expr.ident));
+        case EXPR_VAL:
+          return numberOf("val " + expr.value + " " + expr.width);
+        default:
+          int num0 = number(expr.children.get(0));
+          int num1 = number(expr.children.get(1));
+          boolean commutative = (expr.binop == AugExpr.Binop.BINOP_ADD ||
+                                 expr.binop == AugExpr.Binop.BINOP_MUL);
+          int num = numberOf(binaryKey(expr.binop.toString(), num0, num1, commutative));
+          nums.put(expr, num);
+          return num;
+      }
+    }
+    AugPred pred = (AugPred)node;
+    int num;
+    switch (pred.type) {
+      case PRED_TRUE:
+      case PRED_FALSE:
+        return numberOf(pred.type.toString());
+      case PRED_ID:
+        return numberOf("id " + pred.predId + " " + versionOf(pred.predId));
+      case PRED_NOT:
+        num = numberOf("not " + number(pred.childPreds.get(0)));
+        break;
+      case PRED_AND:
+      case PRED_OR:
+        num = numberOf(binaryKey(pred.type.toString(), number(pred.childPreds.get(0)),
+                                 number(pred.childPreds.get(1)), true));
+        break;
+      case PRED_GT:
+        /// a > b is b < a
+        num = numberOf(binaryKey("PRED_LT", number(pred.childExprs.get(1)),
+                                 number(pred.childExprs.get(0)), false));
+        break;
+      default:
+        num = numberOf(binaryKey(pred.type.toString(), number(pred.childExprs.get(0)),
+                                 number(pred.childExprs.get(1)),
+                                 pred.type != AugPred.AugPredType.PRED_LT));
+        break;
+    }
+    nums.put(pred, num);
+    return num;
+  }
+
+  /// Compound subtrees of a node
+  private static List<?> childrenOf(Object node) {
+    if (node instanceof AugExpr) {
+      return ((AugExpr)node).children;
+    }
+    AugPred pred = (AugPred)node;
+    return (pred.childPreds != null) ? pred.childPreds : pred.childExprs;
+  }
+
+  /// Count the evaluation of `node` in the current statement, and of its subtrees if `node` is
+  /// evaluated for the first time. `wholeVar` is the variable `node` is assigned to, if any.
+  private void count(Object node, String wholeVar) {
+    Integer num = nums.get(node);
+    if (num == null) return; // Identifiers and constants
+    Value val = values.get(num);
+    val.count++;
+    if (val.count > 1) {
+      if (val.var != null && versionOf(val.var) != val.varVersion) {
+        val.varHolds = false;
+      }
+      return;
+    }
+    if (wholeVar != null) {
+      val.var = wholeVar;
+      val.varVersion = versionOf(wholeVar) + 1;
+    }
+    for (Object child: childrenOf(node)) {
+      count(child, null);
+    }
+  }
+
+  /// Variable to compute the value of `node` into, where `node` is evaluated for the first time,
+  /// and the value is evaluated again later. Returns null if `node` is assigned to `wholeVar`, which
+  /// then holds the value.
+  private String holderOf(Value val, String wholeVar, HashMap<String, AggFunVarType> symTab,
+                          ArrayList<ThreeOpDecl> decls, boolean isPred) {
+    if (wholeVar != null && wholeVar.equals(val.var) && val.varHolds) {
+      val.holder = wholeVar;
+      return null;
+    }
+    numTmps++;
+    val.holder = TMP_PREFIX + numTmps;
+    if (isPred) {
+      decls.add(new ThreeOpDecl(P4Printer.BOOL_WIDTH, P4Printer.BOOL_TYPE, val.holder));
+      symTab.put(val.holder, AggFunVarType.PRED_VAR);
+    } else {
+      decls.add(new ThreeOpDecl(P4Printer.INT_WIDTH, P4Printer.INT_TYPE, val.holder));
+      symTab.put(val.holder, AggFunVarType.FN_VAR);
+    }
+    return val.holder;
+  }
+
+  private AugExpr rewriteExpr(AugExpr expr, String wholeVar, ArrayList<ThreeOpStmt> out,
+                              ArrayList<ThreeOpDecl> decls, HashMap<String, AggFunVarType> symTab) {
+    Integer num = nums.get(expr);
+    if (num == null) return expr;
+    Value val = values.get(num);
+    if (val.holder != null) {
+      return new AugExpr(val.holder);
+    }
+    AugExpr child0 = rewriteExpr(expr.children.get(0), null, out, decls, symTab);
+    AugExpr child1 = rewriteExpr(expr.children.get(1), null, out, decls, symTab);
+    AugExpr res = (child0 == expr.children.get(0) && child1 == expr.children.get(1)) ? expr :
+                  new AugExpr(child0, child1, expr.binop);
+    if (val.count > 1) {
+      String tmp = holderOf(val, wholeVar, symTab, decls, false);
+      if (tmp != null) {
+        out.add(new ThreeOpStmt(tmp, res));
+        return new AugExpr(tmp);
+      }
+    }
+    return res;
+  }
+
+  private AugPred rewritePred(AugPred pred, String wholeVar, ArrayList<ThreeOpStmt> out,
+                              ArrayList<ThreeOpDecl> decls, HashMap<String, AggFunVarType> symTab) {
+    Integer num = nums.get(pred);
+    if (num == null) return pred;
+    Value val = values.get(num);
+    if (val.holder != null) {
+      return new AugPred(val.holder);
+    }
+    boolean changed = false;
+    List<Object> children = new ArrayList<>();
+    if (pred.childPreds != null) {
+      for (AugPred child: pred.childPreds) {
+        AugPred newChild = rewritePred(child, null, out, decls, symTab);
+        changed |= (newChild != child);
+        children.add(newChild);
+      }
+    } else {
+      for (AugExpr child: pred.childExprs) {
+        AugExpr newChild = rewriteExpr(child, null, out, decls, symTab);
+        changed |= (newChild != child);
+        children.add(newChild);
+      }
+    }
+    AugPred res = changed ? new AugPred(pred.type, children) : pred;
+    if (val.count > 1) {
+      String tmp = holderOf(val, wholeVar, symTab, decls, true);
+      if (tmp != null) {
+        out.add(new ThreeOpStmt(tmp, res));
+        return new AugPred(tmp);
+      }
+    }
+    return res;
+  }
+}
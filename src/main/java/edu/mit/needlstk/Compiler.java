@@ -6,14 +6,86 @@ import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.PrintWriter;
 import java.io.IOException;
 
 public class Compiler {
+  /// Settings of one compilation by buildPipe(). Each compilation has its own, so that concurrent
+  /// compilations (see BatchCompiler and CompilerDaemon) do not affect each other.
+  public static class Options {
+    /// Largest number of stitched stages fused into one stage (see PipeConstructor.fuseStages()),
+    /// which bounds the work of one P4 action and the depth of the validity predicates composed
+    /// across fused stages; 1 disables fusion.
+    public int maxFusedStages = 8;
+    /// Whether constants are folded and identity operations removed (CodeSimplifier)
+    public boolean simplifyCode = true;
+    /// Whether each repeated subexpression of a stage is computed once (CommonSubexprEliminator)
+    public boolean eliminateCommonSubexprs = true;
+    /// Whether assignments that no later stage and no output reads are removed (DeadCodeEliminator)
+    public boolean eliminateDeadCode = true;
+    /// Whether the columns of maps are only evaluated for valid packets (see
+    /// PipeConstructor.guardMaps())
+    public boolean guardMapColumns = true;
+    /// Number of entries of the register table of each groupby, in the generated P4 code and in
+    /// its simulation (see CacheSimulator)
+    public int tableSize = PipeStage.DEFAULT_TABLE_SIZE;
+  }
+
+  /// Usage: Compiler [-table-size entries] [query.sql ...]
   public static void main(String[] args) throws Exception {
-    // create a CharStream that reads from standard input
-    ANTLRInputStream input = new ANTLRInputStream(System.in);
+    Options options = new Options();
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-table-size") && i + 1 < args.length) {
+        options.tableSize = Integer.parseInt(args[++i]);
+        if (options.tableSize <= 0) {
+          throw new RuntimeException("Table size must be positive: " + args[i]);
+        }
+      } else {
+        files.add(args[i]);
+      }
+    }
+    PipeConstructor pc;
+    if (files.isEmpty()) {
+      // create a CharStream that reads from standard input
+      ANTLRInputStream input = new ANTLRInputStream(System.in);
+
+      // Run all compiler passes up to and including pipeline construction
+      pc = buildPipe(input, options);
+    } else {
+      // Merge the programs named on the command line, and compile them together
+      ProgramMerger merger = mergePrograms(files);
+      pc = buildPipe(new ANTLRInputStream(merger.getProgram()), merger.getOutputs(), options);
+      System.out.println(merger.report());
+      System.out.println("Outputs: " + merger.getOutputs());
+    }
+    ArrayList<PipeStage> fullPipe = pc.getPipe();
+
+    /// Print P4 fragments into a file
+    boolean success = CodeFragmentPrinter.writeP4(pc, fullPipe);
+    if (success) {
+      System.out.println("P4 fragments output in output.p4");// TODO: unhardcode
+    }
 
+    boolean printed = CodeFragmentPrinter.writeDominoMonolithic(pc, fullPipe);
+    if (printed) {
+      System.out.println("Domino fragments output in domino-*.c");
+    }
+  }
+
+  /// Merge the query programs in `files` (see ProgramMerger). Programs after the first are prefixed
+  /// with q1, q2, etc.
+  public static ProgramMerger mergePrograms(List<String> files) throws IOException {
+    ProgramMerger merger = new ProgramMerger();
+    for (int i = 0; i < files.size(); i++) {
+      merger.addProgram(new ANTLRFileStream(files.get(i)), "q" + i);
+    }
+    return merger;
+  }
+
+  /// Parse a query program, throwing syntax errors as RuntimeExceptions.
+  public static PerfQueryParser.ProgContext parse(CharStream input) {
     // create a lexer that feeds off of input CharStream
     PerfQueryLexer lexer = new PerfQueryLexer(input);
 
@@ -32,7 +104,34 @@ public class Compiler {
     parser.addErrorListener(new ThrowingErrorListener());
 
     // begin parsing at the prog production
-    ParseTree tree = parser.prog();
+    return parser.prog();
+  }
+
+  /// Parse a query program and run every pass up to the stitched pipeline. The returned
+  /// PipeConstructor holds the pipeline (getPipe()) as well as helpers used by the code printers.
+  public static PipeConstructor buildPipe(CharStream input) {
+    return buildPipe(input, null, new Options());
+  }
+
+  /// Same as buildPipe(input), with the settings of `options`
+  public static PipeConstructor buildPipe(CharStream input, Options options) {
+    return buildPipe(input, null, options);
+  }
+
+  /// Same as buildPipe(input), but the pipeline computes each query of `outputs` rather than only the
+  /// last query of the program.
+  public static PipeConstructor buildPipe(CharStream input, List<String> outputs) {
+    return buildPipe(input, outputs, new Options());
+  }
+
+  /// Same as buildPipe(input, outputs), with the settings of `options`
+  public static PipeConstructor buildPipe(CharStream input, List<String> outputs,
+                                          Options options) {
+    // Push filters down the query plan, ahead of the stages they commute with
+    System.out.println("Optimizing the query plan ...");
+    PlanOptimizer optimizer = new PlanOptimizer(parse(input), outputs);
+    System.out.println(optimizer.report());
+    ParseTree tree = optimizer.getParseTree();
 
     // Create a walker for the parse tree
     ParseTreeWalker walker = new ParseTreeWalker();
@@ -88,28 +187,51 @@ public class Compiler {
 
     /// Produce code for all operators
     System.out.println("Generating code for all query operators...");
-    ConfigGen cg = new ConfigGen(aggFunCode, globalSymTab, stateVars, fieldVars);
+    ConfigGen cg = new ConfigGen(aggFunCode, globalSymTab, stateVars, fieldVars,
+                                 symbolTableCreator.getAggFunAssocMap());
     cg.visit(tree);
 
     /// Pipeline the stages
     PipeConstructor pc = new PipeConstructor(cg.getQueryToPipe(),
                                              exprTreeCreator.getDepTable(),
                                              exprTreeCreator.getLastAssignedId());
-    ArrayList<PipeStage> fullPipe = pc.stitchPipe();
+    ArrayList<PipeStage> stitched = (outputs == null) ? pc.stitchPipe() : pc.stitchPipe(outputs);
+    if (options.guardMapColumns) {
+      pc.guardMaps();
+    }
+    for (PipeStage stage: stitched) {
+      stage.setTableSize(options.tableSize);
+    }
+
+    /// Fuse adjacent stateless stages, dropping the validity fields passed between them
+    ArrayList<PipeStage> fullPipe = pc.fuseStages(options.maxFusedStages);
+    System.out.println("Fused " + stitched.size() + " stages into " + fullPipe.size());
+
+    /// Fold constants and remove identity operations
+    if (options.simplifyCode) {
+      CodeSimplifier simplifier = new CodeSimplifier(fullPipe);
+      simplifier.simplify();
+      System.out.println(simplifier.report());
+    }
 
     /// A small P4-specific pass to only allow divisions by (constant) powers of 2.
     DivisorChecker dc = new DivisorChecker(fullPipe);
     dc.checkDivisor();
 
-    /// Print P4 fragments into a file
-    boolean success = CodeFragmentPrinter.writeP4(pc, fullPipe);
-    if (success) {
-      System.out.println("P4 fragments output in output.p4");// TODO: unhardcode
+    /// Compute each repeated subexpression of a stage once
+    if (options.eliminateCommonSubexprs) {
+      CommonSubexprEliminator cse = new CommonSubexprEliminator(fullPipe);
+      cse.eliminate();
+      System.out.println(cse.report());
     }
 
-    boolean printed = CodeFragmentPrinter.writeDominoMonolithic(pc, fullPipe);
-    if (printed) {
-      System.out.println("Domino fragments output in domino-*.c");
+    /// Remove assignments that no later stage and no output reads
+    if (options.eliminateDeadCode) {
+      DeadCodeEliminator dce = new DeadCodeEliminator(fullPipe, pc.getOutputs());
+      dce.eliminate();
+      System.out.println(dce.report());
     }
+
+    return pc;
   }
 }
@@ -0,0 +1,267 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Long-running compiler: compiles query programs to P4 and Domino in one warm JVM, rather than
+/// starting a JVM per program. Parsing reuses the ATN/DFA caches ANTLR keeps for the whole JVM, code
+/// generation reuses compiled StringTemplates (CodeFragmentPrinter.getTemplate()), and the JIT has
+/// long compiled the passes, so that a program compiles in milliseconds once the daemon is up.
+///
+/// Requests are read from stdin (with responses on stdout), or from connections to a TCP port on
+/// the loopback interface. Every request and response is a header line followed by a payload of
+/// the number of bytes given in the header (UTF-8 text):
+///   compile <bytes>                  program
+///   ok <p4 bytes> <domino bytes>     P4 program, then Domino program
+///   error <bytes>                    error message
+///   quit                             (no response; ends the connection)
+/// Programs are at most MAX_PROGRAM_BYTES long; a malformed header is answered with an error, and
+/// ends the connection.
+/// Connections are served concurrently; each compilation's progress output is routed to the log
+/// by ThreadOutput.
+public class CompilerDaemon {
+  private static String USAGE =
+      "Usage: CompilerDaemon [-port port] [-verbose]\n" +
+      "       CompilerDaemon -connect port [-out directory] query.sql [query.sql ...]\n" +
+      "Without -port, requests are read from stdin and responses written to stdout.\n" +
+      "-verbose prints the progress output of the compiler to stderr.\n" +
+      "-connect compiles each query with the daemon listening on port, and writes its P4 and\n" +
+      "Domino programs to <query>.p4 and <query>-domino.c in the output directory.";
+
+  /// Compiled at startup to load and JIT-compile the compiler's classes before the first request
+  private static String WARMUP_PROGRAM =
+      "def count([c], []):\n" +
+      "  c = c + 1\n" +
+      "  emit()\n" +
+      "\n" +
+      "R1 = map(T, [epoch], [tin / 128]);\n" +
+      "R2 = filter(R1, proto == 6);\n" +
+      "R3 = groupby(R2, [epoch, switch], count);\n" +
+      "R4 = zip(R3, R1);\n" +
+      "result = filter(R4, c > 10);\n";
+  private static int WARMUP_ROUNDS = 20;
+  /// Largest program accepted in a request
+  private static int MAX_PROGRAM_BYTES = 1 << 24;
+
+  /// Destination of the compiler's progress output
+  private OutputStream log;
+
+  public CompilerDaemon(boolean verbose) {
+    this.log = verbose ? new FileOutputStream(FileDescriptor.err) : ThreadOutput.DISCARD;
+    ThreadOutput.install();
+  }
+
+  /// P4 and Domino programs of a query program
+  public static class Artifacts {
+    public String p4;
+    public String domino;
+  }
+
+  /// Compile `program`. Errors in the program are thrown as RuntimeExceptions.
+  public Artifacts compile(String program) throws IOException {
+    ThreadOutput.redirect(log);
+    try {
+      PipeConstructor pc = Compiler.buildPipe(new ANTLRInputStream(program));
+      Artifacts res = new Artifacts();
+      res.p4 = CodeFragmentPrinter.renderP4(pc, pc.getPipe());
+      res.domino = CodeFragmentPrinter.renderDominoMonolithic(pc, pc.getPipe());
+      return res;
+    } finally {
+      ThreadOutput.redirect(null);
+    }
+  }
+
+  public void warmUp() throws IOException {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      compile(WARMUP_PROGRAM);
+    }
+  }
+
+  /// Answer requests from `in` on `out` until `in` ends or a quit request.
+  public void serve(InputStream in, OutputStream out) throws IOException {
+    in = new BufferedInputStream(in);
+    out = new BufferedOutputStream(out);
+    while (true) {
+      String header = readLine(in);
+      if (header == null || header.equals("quit")) break;
+      String[] words = header.split(" ");
+      int length = (words.length == 2 && words[0].equals("compile")) ? parseLength(words[1]) : -1;
+      if (length < 0) {
+        writeError(out, "Bad request: " + header);
+        /// The payload, if any, cannot be skipped without knowing its length.
+        break;
+      }
+      String program = new String(readBytes(in, length), StandardCharsets.UTF_8);
+      try {
+        Artifacts res = compile(program);
+        byte[] p4 = res.p4.getBytes(StandardCharsets.UTF_8);
+        byte[] domino = res.domino.getBytes(StandardCharsets.UTF_8);
+        out.write(("ok " + p4.length + " " + domino.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(p4);
+        out.write(domino);
+      } catch (RuntimeException | AssertionError | StackOverflowError e) {
+        writeError(out, e.toString());
+      }
+      out.flush();
+    }
+    out.flush();
+  }
+
+  /// Length of a program as given in a compile request, or -1 if it is not a number between 0 and
+  /// MAX_PROGRAM_BYTES
+  private static int parseLength(String word) {
+    try {
+      int length = Integer.parseInt(word);
+      return (length <= MAX_PROGRAM_BYTES) ? length : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void writeError(OutputStream out, String message) throws IOException {
+    byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+    out.write(("error " + msg.length + "\n").getBytes(StandardCharsets.UTF_8));
+    out.write(msg);
+    out.flush();
+  }
+
+  /// Accept connections on the loopback interface, each served on its own thread.
+  public void listen(int port) throws IOException {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    System.err.println("Compiler daemon listening on " + server.getLocalSocketAddress());
+    while (true) {
+      Socket socket = server.accept();
+      /// Responses are written in pieces; do not hold the last one back waiting for an ack.
+      socket.setTcpNoDelay(true);
+      Thread conn = new Thread(() -> {
+        try {
+          serve(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+          System.err.println("Connection failed: " + e);
+        } finally {
+          try {
+            socket.close();
+          } catch (IOException e) {
+            // Nothing left to do with the connection
+          }
+        }
+      }, "compile-" + socket.getPort());
+      conn.setDaemon(true);
+      conn.start();
+    }
+  }
+
+  /// A header line, or null at the end of the stream
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        return (line.size() == 0) ? null : line.toString("UTF-8");
+      }
+      line.write(b);
+    }
+    return line.toString("UTF-8");
+  }
+
+  private static byte[] readBytes(InputStream in, int length) throws IOException {
+    byte[] res = new byte[length];
+    for (int off = 0; off < length; ) {
+      int n = in.read(res, off, length - off);
+      if (n < 0) {
+        throw new EOFException("Payload ends after " + off + " of " + length + " bytes");
+      }
+      off += n;
+    }
+    return res;
+  }
+
+  /// Client side: compile each of `files` with the daemon on `port`, and write the results to `dir`.
+  /// Returns the number of programs that failed to compile.
+  public static int compileRemote(int port, String dir, List<String> files) throws IOException {
+    int failures = 0;
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      for (String file: files) {
+        long start = System.nanoTime();
+        byte[] program = Files.readAllBytes(Paths.get(file));
+        out.write(("compile " + program.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(program);
+        out.flush();
+        String[] header = readLine(in).split(" ");
+        String name = Paths.get(file).getFileName().toString().replaceAll("\\.sql$", "");
+        if (header[0].equals("ok")) {
+          Files.write(Paths.get(dir, name + ".p4"), readBytes(in, Integer.parseInt(header[1])));
+          Files.write(Paths.get(dir, name + "-domino.c"), readBytes(in, Integer.parseInt(header[2])));
+          System.out.println(String.format("%s: compiled in %.1f ms", file,
+                                           (System.nanoTime() - start) / 1e6));
+        } else {
+          failures++;
+          System.out.println(file + ": " + new String(readBytes(in, Integer.parseInt(header[1])),
+                                                      StandardCharsets.UTF_8));
+        }
+      }
+      out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+    return failures;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = -1;
+    int connect = -1;
+    String dir = ".";
+    boolean verbose = false;
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-port")) {
+        port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-connect")) {
+        connect = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-out")) {
+        dir = args[++i];
+      } else if (args[i].equals("-verbose")) {
+        verbose = true;
+      } else if (! args[i].startsWith("-")) {
+        files.add(args[i]);
+      } else {
+        System.err.println(USAGE);
+        System.exit(1);
+      }
+    }
+    if ((connect >= 0) != (! files.isEmpty()) || (connect >= 0 && port >= 0)) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    if (connect >= 0) {
+      System.exit((compileRemote(connect, dir, files) == 0) ? 0 : 1);
+    }
+    /// Responses go to the actual stdout, not to the System.out compiler passes print to.
+    OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+    CompilerDaemon daemon = new CompilerDaemon(verbose);
+    daemon.warmUp();
+    if (port >= 0) {
+      daemon.listen(port);
+    } else {
+      daemon.serve(System.in, stdout);
+    }
+  }
+}
@@ -13,16 +13,19 @@ public class ConfigGen extends PerfQueryBaseVisitor<PipeStage> {
   private HashMap<String, HashMap<String, AggFunVarType>> aggFunSymTab;
   private HashMap<String, List<String>> stateVars;
   private HashMap<String, List<String>> fieldVars;
+  private HashMap<String, Boolean> aggFunAssocMap;
 
   public ConfigGen(HashMap<String, ThreeOpCode> aggFunCode,
                    HashMap<String, HashMap<String, AggFunVarType>> aggFunSymTab,
                    HashMap<String, List<String>> stateVars,
-                   HashMap<String, List<String>> fieldVars) {
+                   HashMap<String, List<String>> fieldVars,
+                   HashMap<String, Boolean> aggFunAssocMap) {
     this.queryToPipe = new HashMap<>();
     this.aggFunCode = aggFunCode;
     this.aggFunSymTab = aggFunSymTab;
     this.stateVars = stateVars;
     this.fieldVars = fieldVars;
+    this.aggFunAssocMap = aggFunAssocMap;
   }
 
   @Override public PipeStage visitStreamStmt(PerfQueryParser.StreamStmtContext ctx) {
@@ -50,7 +53,8 @@ public class ConfigGen extends PerfQueryBaseVisitor<PipeStage> {
                                             aggFunCode.get(aggFun),
                                             aggFunSymTab.get(aggFun),
                                             stateVars.get(aggFun),
-                                            fieldVars.get(aggFun));
+                                            fieldVars.get(aggFun),
+                                            aggFunAssocMap.get(aggFun));
     return new PipeStage(OperationType.GROUPBY, fci);
   }
 
@@ -0,0 +1,144 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/// Liveness-based dead-code elimination over the whole stitched pipeline. Identifiers live at the
+/// end of the pipeline are the validity field and the fields of every output query (see
+/// StreamEngine). Walking the stages and their statements backwards, an assignment whose variable is
+/// not live at that point is removed, e.g., constants folded into the code that uses them (see
+/// CodeSimplifier), validity fields no later stage reads, or columns of a map no later stage uses.
+/// Every stage runs each of its statements on every packet, so that an assignment kills the variable
+/// it assigns. Groupbys keep, whether or not they are read:
+///  - the assignments of their registers, which are stored back into the table of the key;
+///  - the outermost predicate of the aggregation function, which decides whether they are stored
+///    (see GroupbyRunner);
+///  - the coefficients of linear-in-state updates, which are read to merge partial aggregates (see
+///    PartialGroupbyRunner and CacheSimulator);
+///  - their emits, which copy registers into fields of the packet, and may not happen: emitted fields
+///    stay live above the groupby.
+/// Temporaries and metadata fields that a stage no longer references are dropped from its
+/// declarations and its symbol table, and so from the packet metadata of the generated code.
+public class DeadCodeEliminator {
+  private ArrayList<PipeStage> pipe;
+  private List<String> outputs;
+  private int numStmts = 0;
+  private int numIds = 0;
+
+  public DeadCodeEliminator(ArrayList<PipeStage> pipe, List<String> outputs) {
+    this.pipe = pipe;
+    this.outputs = outputs;
+  }
+
+  public void eliminate() {
+    HashMap<String, PipeStage> stages = new HashMap<>();
+    for (PipeStage stage: pipe) {
+      stages.put(stage.getPipeName(), stage);
+    }
+    HashSet<String> live = new HashSet<>();
+    for (String output: outputs) {
+      live.add(PipeConfigInfo.fieldTransformQueryId(output));
+      live.addAll(stages.get(output).getFields());
+    }
+    for (int i = pipe.size() - 1; i >= 0; i--) {
+      eliminate(pipe.get(i), live);
+    }
+  }
+
+  public String report() {
+    return "Removed " + numStmts + " dead statements and " + numIds + " unused identifiers";
+  }
+
+  /// Remove the dead statements of `stage`, given the identifiers `live` after it, and update `live`
+  /// to the identifiers live before it.
+  private void eliminate(PipeStage stage, HashSet<String> live) {
+    PipeConfigInfo info = stage.getConfigInfo();
+    boolean isGroupby = stage.getOp() == OperationType.GROUPBY;
+    /// Registers of a groupby, which are not packet fields within the stage
+    HashSet<String> registers = isGroupby ? info.getRegisters() : new HashSet<>();
+    HashSet<String> kept = new HashSet<>(registers);
+    if (isGroupby) {
+      FoldConfigInfo fci = (FoldConfigInfo)info;
+      kept.add(fci.getOuterPredId());
+      for (String reg: registers) {
+        kept.add(Linear.aCoeff(reg));
+      }
+    }
+    info.postamble = eliminate(info.postamble, live, registers, kept);
+    info.code = eliminate(info.code, live, registers, kept);
+    info.preamble = eliminate(info.preamble, live, registers, kept);
+    if (isGroupby) {
+      /// The key of the packet is read before the aggregation function runs.
+      live.addAll(((FoldConfigInfo)info).getKeyFields());
+    }
+    pruneSymTab(info);
+  }
+
+  private ThreeOpCode eliminate(ThreeOpCode code,
+                                HashSet<String> live,
+                                HashSet<String> registers,
+                                HashSet<String> kept) {
+    List<ThreeOpStmt> stmts = code.getStmts();
+    ArrayList<ThreeOpStmt> res = new ArrayList<>();
+    for (int i = stmts.size() - 1; i >= 0; i--) {
+      ThreeOpStmt stmt = stmts.get(i);
+      HashSet<String> used;
+      if (stmt.isEmit()) {
+        used = new HashSet<>(Collections.singletonList(stmt.getEmitPred()));
+      } else {
+        String var = stmt.getDefinedVar();
+        if (! live.contains(var) && ! kept.contains(var)) {
+          numStmts++;
+          continue;
+        }
+        if (! registers.contains(var)) {
+          live.remove(var);
+        }
+        used = stmt.getUsedVars();
+      }
+      for (String id: used) {
+        if (! registers.contains(id)) {
+          live.add(id);
+        }
+      }
+      res.add(stmt);
+    }
+    Collections.reverse(res);
+    return new ThreeOpCode(new ArrayList<>(code.getDecls()), res);
+  }
+
+  /// Drop the identifiers other than registers and packet-log fields (i.e., function variables,
+  /// predicates, and metadata fields such as columns of maps and validity fields) that `info` no
+  /// longer references from its declarations and symbol table. Symbol tables and declarations may
+  /// be shared by groupbys with the same aggregation function, and are copied.
+  private void pruneSymTab(PipeConfigInfo info) {
+    HashSet<String> referenced = new HashSet<>();
+    for (ThreeOpCode code: new ThreeOpCode[] {info.preamble, info.code, info.postamble}) {
+      for (ThreeOpStmt stmt: code.getStmts()) {
+        if (stmt.isEmit()) {
+          referenced.add(stmt.getEmitPred());
+        } else {
+          referenced.add(stmt.getDefinedVar());
+          referenced.addAll(stmt.getUsedVars());
+        }
+      }
+    }
+    HashSet<String> unused = new HashSet<>();
+    for (String id: info.symTab.keySet()) {
+      AggFunVarType type = info.symTab.get(id);
+      boolean isTmp = (type == AggFunVarType.FN_VAR || type == AggFunVarType.PRED_VAR ||
+                       (type == AggFunVarType.FIELD && ! Fields.fields.contains(id)));
+      if (isTmp && ! referenced.contains(id)) {
+        unused.add(id);
+      }
+    }
+    if (unused.isEmpty()) return;
+    numIds += unused.size();
+    info.symTab = new HashMap<>(info.symTab);
+    info.symTab.keySet().removeAll(unused);
+    info.preamble.getDecls().removeIf(decl -> unused.contains(decl.ident));
+    info.code.getDecls().removeIf(decl -> unused.contains(decl.ident));
+  }
+}
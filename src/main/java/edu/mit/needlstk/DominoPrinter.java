@@ -1,5 +1,7 @@
 package edu.mit.needlstk;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 public class DominoPrinter {
   /// Prefix used to print metadata fields
@@ -8,13 +10,15 @@ public class DominoPrinter {
   public static String DOMINO_TRUE  = "1";
   public static String DOMINO_FALSE = "0";
 
-  /// Map from query field name to domino field names
-  public static HashMap<String, String> dominoMap = new HashMap<>();
+  /// Map from query field name to domino field names. Read-only once initialized, as concurrent
+  /// compilations share it (see BatchCompiler).
+  public static Map<String, String> dominoMap = new HashMap<>();
   static {
     for (String field: Fields.fields) { // domino prints all identifiers by same name
       dominoMap.put(field, field);
     } // except the switch:
     dominoMap.put(Fields.switchHdr, "switch_hdr");
+    dominoMap = Collections.unmodifiableMap(dominoMap);
   }
 
   public static String getDominoVarName(String ident) {
@@ -0,0 +1,184 @@
+package edu.mit.needlstk;
+import java.io.PrintStream;
+import java.util.List;
+
+/// Groupby runner that frees the state of closed epochs. Queries commonly group by an epoch column
+/// derived from the packet's arrival time, e.g., R1 = map(T, [epoch], [tin/128]). Packets arrive in
+/// order of tin, so once a packet of epoch e has been seen, keys of earlier epochs are never updated
+/// again: their state is final. This runner flushes such keys (optionally printing them) and removes
+/// them from the table, so that the table only holds the keys of the open epochs, rather than every
+/// key of the trace.
+///
+/// Epochs are closed `lag` epochs behind the latest epoch seen, to tolerate slightly out-of-order
+/// arrivals (e.g., in packet captures). A packet of an epoch that was already closed is counted as
+/// late; its key starts over from fresh state, just like a key evicted from the switch's table.
+public class ExpiringGroupbyRunner extends GroupbyRunner {
+  /// Position of the epoch among the key fields, and the number of closed epochs kept open
+  private int epochIndex;
+  private int lag;
+  /// Keys in order of insertion, which is also the order of their epochs, in a circular buffer of
+  /// key-width records
+  private int[] insertions;
+  private int head = 0;
+  private int numInsertions = 0;
+  /// Latest epoch seen so far
+  private long latest = Long.MIN_VALUE;
+  /// Scratch key and state for flushing
+  private int[] flushKey;
+  private int[] flushState;
+  private StringBuilder sb = new StringBuilder();
+  /// Destination for flushed keys; they are only counted if this is null.
+  private PrintStream flushOut;
+
+  private long expired = 0;
+  private long late = 0;
+  private int maxKeys = 0;
+
+  public ExpiringGroupbyRunner(PipeStage stage, SlotLayout layout, StageFunction fn,
+                               int epochIndex, int lag) {
+    super(stage, layout, fn);
+    this.epochIndex = epochIndex;
+    this.lag = lag;
+    this.insertions = new int[64 * key.length];
+    this.flushKey = new int[key.length];
+    this.flushState = new int[regs.length];
+  }
+
+  /// Runner factory for StreamEngine: groupbys keyed on an epoch (see epochKeyIndex()) expire
+  /// their closed epochs; other stages run as usual.
+  public static StreamEngine.RunnerFactory factory(List<PipeStage> pipe, int lag,
+                                                   PrintStream flushOut) {
+    return (stage, layout, fn) -> {
+      int epochIndex = (stage.getOp() == OperationType.GROUPBY) ? epochKeyIndex(pipe, stage) : -1;
+      if (epochIndex < 0) {
+        return StageRunner.create(stage, layout, fn);
+      }
+      ExpiringGroupbyRunner runner = new ExpiringGroupbyRunner(stage, layout, fn, epochIndex, lag);
+      runner.setFlushOutput(flushOut);
+      return runner;
+    };
+  }
+
+  /// Position among the key fields of the groupby `stage` of a column that never decreases from one
+  /// packet to the next, or -1 if there is none. Such a column is either tin itself, or set by a map
+  /// of `pipe` to an expression that is monotone in tin (see AugExpr.isMonotoneIn()), and set by no
+  /// other stage. tin must not be set by any stage either.
+  public static int epochKeyIndex(List<PipeStage> pipe, PipeStage stage) {
+    List<String> keyFields = ((FoldConfigInfo)stage.getConfigInfo()).getKeyFields();
+    if (definersOf(pipe, Fields.tinHdr) > 0) {
+      return -1;
+    }
+    for (int i = 0; i < keyFields.size(); i++) {
+      String field = keyFields.get(i);
+      if (field.equals(Fields.tinHdr)) {
+        return i;
+      }
+      if (definersOf(pipe, field) != 1) continue;
+      for (PipeStage other: pipe) {
+        AugExpr expr = other.getConfigInfo().getExprOf(field);
+        if (expr != null && expr.isMonotoneIn(Fields.tinHdr)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /// Number of stages of `pipe` that write `field`. Groupbys only write their registers; their
+  /// key fields are passed through.
+  private static int definersOf(List<PipeStage> pipe, String field) {
+    int count = 0;
+    for (PipeStage stage: pipe) {
+      PipeConfigInfo info = stage.getConfigInfo();
+      boolean sets = (info instanceof FoldConfigInfo) ?
+                     ((FoldConfigInfo)info).getStateArgs().contains(field) :
+                     info.getSetFields().contains(field);
+      if (sets) count++;
+    }
+    return count;
+  }
+
+  /// Print every flushed key to `out`, in the format of printTable(), prefixed by the name of the
+  /// stage.
+  public void setFlushOutput(PrintStream out) {
+    this.flushOut = out;
+  }
+
+  @Override public void process(int[] pkt) {
+    long epoch = pkt[keySlots[epochIndex]];
+    if (epoch > latest) {
+      latest = epoch;
+      expire(latest - lag);
+    }
+    int keys = table.size();
+    super.process(pkt);
+    /// The table only grows when the key of the packet (left in `key`) was inserted.
+    if (table.size() > keys) {
+      if (epoch < latest - lag) {
+        late++;
+      }
+      append(key);
+      maxKeys = Math.max(maxKeys, table.size());
+    }
+  }
+
+  /// Flush and remove every key of an epoch before `open`.
+  private void expire(long open) {
+    int width = key.length;
+    while (numInsertions > 0 && insertions[head * width + epochIndex] < open) {
+      System.arraycopy(insertions, head * width, flushKey, 0, width);
+      head = (head + 1) % (insertions.length / width);
+      numInsertions--;
+      int entry = table.find(flushKey);
+      /// A late key may have been inserted again after its first insertion expired.
+      if (entry < 0) continue;
+      if (flushOut != null) {
+        sb.setLength(0);
+        sb.append(stage.getPipeName()).append(' ');
+        formatEntry(sb, table, entry, flushKey, flushState, regs.length);
+        flushOut.println(sb.toString());
+      }
+      table.remove(entry);
+      expired++;
+    }
+  }
+
+  private void append(int[] k) {
+    int width = k.length;
+    int slots = insertions.length / width;
+    if (numInsertions == slots) {
+      int[] bigger = new int[2 * insertions.length];
+      for (int i = 0; i < numInsertions; i++) {
+        System.arraycopy(insertions, ((head + i) % slots) * width, bigger, i * width, width);
+      }
+      insertions = bigger;
+      head = 0;
+      slots *= 2;
+    }
+    System.arraycopy(k, 0, insertions, ((head + numInsertions) % slots) * width, width);
+    numInsertions++;
+  }
+
+  /// Number of keys flushed so far
+  public long getExpired() {
+    return expired;
+  }
+
+  /// Number of keys first inserted in an epoch that was already closed
+  public long getLate() {
+    return late;
+  }
+
+  /// Largest number of keys held at once
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+
+  public String expiryReport() {
+    return String.format("Groupby %s: expired %d keys of closed epochs (key field %s), at most %d " +
+                         "keys held at once, %d late keys",
+                         stage.getPipeName(), expired,
+                         ((FoldConfigInfo)stage.getConfigInfo()).getKeyFields().get(epochIndex),
+                         maxKeys, late);
+  }
+}
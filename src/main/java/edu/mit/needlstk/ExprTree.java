@@ -1,51 +1,122 @@
 package edu.mit.needlstk;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Expression tree of a query program. Subtrees of streams used by several queries are shared, so
+/// the tree is really a DAG; it is printed with each shared subtree written out once.
 class ExprTree {
-  protected static int uidCount = 0;
+  /// Source of node uids, shared by concurrent compilations (see BatchCompiler)
+  private static AtomicInteger uidCount = new AtomicInteger();
   protected OperationType opcode;
   private ArrayList<ExprTree> operands;
   protected int uid;
   public ExprTree(OperationType tOpcode) {
     opcode = tOpcode;
     operands = new ArrayList<ExprTree>();
-    uid = uidCount;
-    uidCount++;
+    uid = uidCount.getAndIncrement();
   }
 
   public ExprTree(OperationType tOpcode, ArrayList<ExprTree> tOperands) {
     opcode = tOpcode;
     operands = tOperands;
-    uid = uidCount;
-    uidCount++;
+    uid = uidCount.getAndIncrement();
+  }
+
+  /// Operand subtrees
+  protected ArrayList<? extends ExprTree> children() {
+    return operands;
   }
 
+  /// Subtrees with more than one parent are labeled (e.g., GROUPBY9) where they first appear, and
+  /// only referred to by their label afterwards.
   public String toString() {
-    if (operands.size() == 0) return opcode.toString();
- 
-    String ret = opcode + "(";
-    assert(operands.size() >= 1);
-    for (int i = 0; i < operands.size(); i++) {
-      ret += (operands.get(i).toString()) + ",";
+    HashSet<ExprTree> shared = new HashSet<>();
+    findShared(new HashSet<ExprTree>(), shared);
+    StringBuilder sb = new StringBuilder();
+    format(sb, shared, new HashSet<ExprTree>());
+    return sb.toString();
+  }
+
+  /// Nodes reachable from this one along more than one path. Like the other traversals below, it
+  /// keeps nodes left to visit on an explicit stack, so that deep trees do not overflow the call
+  /// stack.
+  private void findShared(HashSet<ExprTree> seen, HashSet<ExprTree> shared) {
+    ArrayDeque<ExprTree> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (! pending.isEmpty()) {
+      ExprTree node = pending.pop();
+      if (! seen.add(node)) {
+        shared.add(node);
+        continue;
+      }
+      for (ExprTree child: node.children()) {
+        pending.push(child);
+      }
+    }
+  }
+
+  /// The stack holds nodes to format, and punctuation to append once the nodes above it are done.
+  private void format(StringBuilder sb, HashSet<ExprTree> shared, HashSet<ExprTree> printed) {
+    ArrayDeque<Object> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (! pending.isEmpty()) {
+      Object top = pending.pop();
+      if (top instanceof String) {
+        sb.append(top);
+        continue;
+      }
+      ExprTree node = (ExprTree)top;
+      sb.append(node.opcode);
+      if (shared.contains(node)) {
+        sb.append(node.uid);
+        if (! printed.add(node)) continue;
+      }
+      ArrayList<? extends ExprTree> children = node.children();
+      if (children.size() == 0) continue;
+      sb.append("(");
+      pending.push(")");
+      for (int i = children.size() - 1; i >= 0; i--) {
+        pending.push(children.get(i));
+        if (i > 0) pending.push(",");
+      }
     }
-    ret = ret.substring(0, ret.length() - 1) + ")";
-    return ret;
   }
 
   public String dotOutput() {
     return "digraph tree {" + dotEdges() + "}";
   }
 
+  /// Edges of the DAG below this node, each printed once
   public String dotEdges() {
-    String ret = "";
-    if (operands.size() != 0) {
-      for (int i = 0; i < operands.size(); i++) {
-        ret += opcode + Integer.toString(this.uid) +
-               " -> " +
-               operands.get(i).opcode + Integer.toString(operands.get(i).uid)
-               + ";" +
-               operands.get(i).dotEdges();
+    StringBuilder sb = new StringBuilder();
+    dotEdges(sb, new HashSet<ExprTree>());
+    return sb.toString();
+  }
+
+  private void dotEdges(StringBuilder sb, HashSet<ExprTree> visited) {
+    ArrayDeque<Object> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (! pending.isEmpty()) {
+      Object top = pending.pop();
+      if (top instanceof String) {
+        sb.append(top);
+        continue;
+      }
+      ExprTree node = (ExprTree)top;
+      if (! visited.add(node)) continue;
+      ArrayList<? extends ExprTree> children = node.children();
+      for (int i = children.size() - 1; i >= 0; i--) {
+        pending.push(children.get(i));
+        pending.push(node.dotEdge(children.get(i)));
       }
     }
-    return ret;
+  }
+
+  /// Edge between this node and operand `child`
+  protected String dotEdge(ExprTree child) {
+    return opcode + Integer.toString(this.uid) + " -> " +
+           child.opcode + Integer.toString(child.uid) + ";";
   }
 }
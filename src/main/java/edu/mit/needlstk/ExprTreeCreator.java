@@ -5,8 +5,10 @@ import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.runtime.tree.ParseTree;
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.lang.RuntimeException;
 
 /// First, generate dependencies for each stream or relational query
@@ -30,6 +32,9 @@ public class ExprTreeCreator extends PerfQueryBaseListener {
   /// The last identifier assigned so far. Used to build an expression tree.
   private String lastAssignedId = "";
 
+  /// Expression tree of each stream built so far, shared by every query using the stream
+  private HashMap<String, ExprTree> exprTrees = new HashMap<String, ExprTree>();
+
   /// Constructor
   public ExprTreeCreator(int identifierTtype, HashMap<String, IdentifierType> symbolTable) {
     idTtype = identifierTtype;
@@ -81,24 +86,47 @@ public class ExprTreeCreator extends PerfQueryBaseListener {
     }
   }
 
+  /// Build the expression tree of `idName` and of every stream it depends on, operands first. The
+  /// streams left to build are kept on an explicit stack rather than the call stack, so that chains
+  /// of thousands of queries do not overflow it.
   private ExprTree buildExprTree(String idName) {
-   if (idName.equals("T")) {
-     return new ExprTree(OperationType.PKTLOG);
-   } else {
-     // Get operands using depTable
-     Operation operation = depTable.get(idName);
-     if (operation == null) {
-       throw new RuntimeException(idName + " doesn't exist in dependency table. It was likely not defined before use.");
-     }
-
-     // Recursively buildExprTree for each operand
-     ArrayList<ExprTree> children = new ArrayList<ExprTree>();
-     assert(operation.operands.size() >= 1);
-     for (int i = 0; i < operation.operands.size(); i++) {
-       children.add(buildExprTree(operation.operands.get(i)));
-     }
-     return new ExprTree(operation.opcode, children);
-   }
+    ArrayDeque<String> pending = new ArrayDeque<String>();
+    /// Streams whose operands have been pushed onto `pending`
+    HashSet<String> expanded = new HashSet<String>();
+    pending.push(idName);
+    while (! pending.isEmpty()) {
+      String id = pending.peek();
+      if (id.equals("T") || exprTrees.containsKey(id)) {
+        pending.pop();
+        continue;
+      }
+      // Get operands using depTable
+      Operation operation = depTable.get(id);
+      if (operation == null) {
+        throw new RuntimeException(id + " doesn't exist in dependency table. It was likely not defined before use.");
+      }
+      assert(operation.operands.size() >= 1);
+      if (expanded.add(id)) {
+        for (int i = operation.operands.size() - 1; i >= 0; i--) {
+          pending.push(operation.operands.get(i));
+        }
+        continue;
+      }
+      // Operands were built when they were popped, unless one of them depends on `id` itself
+      ArrayList<ExprTree> children = new ArrayList<ExprTree>();
+      for (String operand: operation.operands) {
+        if (operand.equals("T")) {
+          children.add(new ExprTree(OperationType.PKTLOG));
+        } else if (exprTrees.containsKey(operand)) {
+          children.add(exprTrees.get(operand));
+        } else {
+          throw new RuntimeException(id + " depends on itself through " + operand);
+        }
+      }
+      pending.pop();
+      exprTrees.put(id, new ExprTree(operation.opcode, children));
+    }
+    return idName.equals("T") ? new ExprTree(OperationType.PKTLOG) : exprTrees.get(idName);
   }
 
   public HashMap<String, ParserRuleContext> getSymTree() {
@@ -11,13 +11,16 @@ public class FoldConfigInfo extends PipeConfigInfo {
   private List<String> stateArgs;
   private List<String> fieldArgs;
   private String outerPredId;
+  /// Whether the aggregation function is annotated `assoc`
+  private boolean isAssoc;
   
   public FoldConfigInfo(PerfQueryParser.ColumnListContext colList,
                         String aggFunc,
                         ThreeOpCode code,
                         HashMap<String, AggFunVarType> symTab,
                         List<String> stateArgs,
-                        List<String> fieldArgs) {
+                        List<String> fieldArgs,
+                        boolean isAssoc) {
     this.keyFields = ColumnExtractor.getColumns(colList);
     this.stateArgs = stateArgs;
     this.fieldArgs = fieldArgs;
@@ -25,6 +28,7 @@ public class FoldConfigInfo extends PipeConfigInfo {
     this.code = code;
     this.symTab = symTab;
     this.outerPredId = code.peekIdFirstDecl();
+    this.isAssoc = isAssoc;
     this.setFields = new HashSet<String>(stateArgs);
     this.setFields.addAll(this.keyFields);
     this.usedFields = new HashSet<String>(fieldArgs);
@@ -73,4 +77,14 @@ public class FoldConfigInfo extends PipeConfigInfo {
   public List<String> getStateArgs() {
     return stateArgs;
   }
+
+  /// Identifier of the outermost predicate, which holds the validity of the operand once
+  /// addValidStmt() has run.
+  public String getOuterPredId() {
+    return outerPredId;
+  }
+
+  public boolean isAssoc() {
+    return isAssoc;
+  }
 }
@@ -0,0 +1,131 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/// Generate code for two adjacent stateless stages (filters, maps, zips, or stages fused from them)
+/// fused into one pipeline stage, i.e., one P4 action. The second stage is the only consumer of the
+/// first, so the validity of the first no longer needs a packet field (_<query>_valid): the second
+/// stage reads it off the temporary the first one sets, and where possible, the predicate defining
+/// that temporary is substituted into the validity of the second stage (see composeValidity()).
+public class FusedConfigInfo extends PipeConfigInfo {
+  /// Number of stages of the original pipeline fused into this one
+  private int numStages;
+
+  public FusedConfigInfo(PipeStage first, PipeStage second) {
+    PipeConfigInfo fst = first.getConfigInfo();
+    PipeConfigInfo snd = second.getConfigInfo();
+    String tmpId = tmpTransformQueryId(first.getPipeName());
+    String fieldId = fieldTransformQueryId(first.getPipeName());
+    this.numStages = numStagesOf(fst) + numStagesOf(snd);
+
+    /// Preamble: validity of the operands of both stages, each read once. Operand fields are only
+    /// written by earlier stages, so that the reads of the second stage can move ahead of the body of
+    /// the first. The second stage reads the validity of the first off its temporary instead.
+    this.preamble = new ThreeOpCode(new ArrayList<>(fst.getPreamble().getDecls()),
+                                    new ArrayList<>(fst.getPreamble().getStmts()));
+    HashSet<String> declared = new HashSet<>();
+    for (ThreeOpDecl decl: preamble.getDecls()) {
+      declared.add(decl.ident);
+    }
+    for (ThreeOpDecl decl: snd.getPreamble().getDecls()) {
+      if (declared.add(decl.ident)) {
+        preamble.addDecl(decl);
+      }
+    }
+    HashSet<String> read = new HashSet<>();
+    for (ThreeOpStmt stmt: preamble.getStmts()) {
+      read.add(stmt.getDefinedVar());
+    }
+    for (ThreeOpStmt stmt: snd.getPreamble().getStmts()) {
+      if (! stmt.getDefinedVar().equals(tmpId) && read.add(stmt.getDefinedVar())) {
+        preamble.appendStmt(stmt);
+      }
+    }
+
+    /// Body: the body of the first stage, then that of the second
+    this.code = fst.getCode().orderedMerge(snd.getCode());
+
+    /// Postamble: only the validity of the second stage is written back into a packet field.
+    this.postamble = new ThreeOpCode();
+    for (ThreeOpStmt stmt: fst.getPostamble().getStmts()) {
+      if (! stmt.getDefinedVar().equals(fieldId)) {
+        postamble.appendStmt(stmt);
+      }
+    }
+    for (ThreeOpStmt stmt: snd.getPostamble().getStmts()) {
+      postamble.appendStmt(stmt);
+    }
+
+    this.symTab = new HashMap<>(fst.getSymTab());
+    symTab.putAll(snd.getSymTab());
+    symTab.remove(fieldId);
+    this.setFields = new HashSet<>(fst.getSetFields());
+    setFields.addAll(snd.getSetFields());
+    this.usedFields = new HashSet<>(fst.getUsedFields());
+    usedFields.addAll(snd.getUsedFields());
+
+    composeValidity(tmpId);
+  }
+
+  /// Number of stages of the original pipeline that the stage of `info` computes
+  static int numStagesOf(PipeConfigInfo info) {
+    return (info instanceof FusedConfigInfo) ? ((FusedConfigInfo)info).numStages : 1;
+  }
+
+  /// If the temporary `tmpId` is defined by a predicate and used by a single later statement of the
+  /// body, with none of the variables of the predicate redefined in between, e.g.,
+  ///   _tmp_A_valid = (x > 1); y = x; _tmp_B_valid = _tmp_A_valid && (y < 5);
+  /// substitute the predicate into that statement, and drop the temporary:
+  ///   y = x; _tmp_B_valid = (x > 1) && (y < 5);
+  private void composeValidity(String tmpId) {
+    List<ThreeOpStmt> stmts = code.getStmts();
+    int def = -1;
+    for (int i = 0; i < stmts.size(); i++) {
+      if (tmpId.equals(stmts.get(i).getDefinedVar())) {
+        def = i;
+      }
+    }
+    if (def < 0 || ! stmts.get(def).isPredAssign()) return;
+    AugPred pred = stmts.get(def).getPred();
+    HashSet<String> predVars = pred.getUsedVars();
+    int use = -1;
+    for (int i = def + 1; i < stmts.size(); i++) {
+      ThreeOpStmt stmt = stmts.get(i);
+      if (stmt.getUsedVars().contains(tmpId)) {
+        if (use >= 0) return; // More than one use
+        use = i;
+      } else if (use < 0 && predVars.contains(stmt.getDefinedVar())) {
+        return; // The predicate would not evaluate to the same value at the use
+      }
+    }
+    for (ThreeOpStmt stmt: postamble.getStmts()) {
+      if (stmt.getUsedVars().contains(tmpId)) return;
+    }
+    if (use < 0 || ! stmts.get(use).isPredAssign()) return;
+    ThreeOpStmt user = stmts.get(use);
+    stmts.set(use, new ThreeOpStmt(user.getDefinedVar(), user.getPred().substitute(tmpId, pred)));
+    stmts.remove(def);
+    preamble.getDecls().removeIf(decl -> decl.ident.equals(tmpId));
+    symTab.remove(tmpId);
+  }
+
+  /// Expression assigned to column `col` by the fused stages, or null if they do not set `col`, or
+  /// set it more than once.
+  @Override public AugExpr getExprOf(String col) {
+    AugExpr res = null;
+    for (ThreeOpStmt stmt: code.getStmts()) {
+      if (col.equals(stmt.getDefinedVar())) {
+        if (res != null || assignedExpr(stmt) == null) return null;
+        res = assignedExpr(stmt);
+      }
+    }
+    return res;
+  }
+
+  public void addValidStmt(String queryId, String operandQueryId, boolean isOperandPktLog) {
+    throw new RuntimeException("Stages are fused after they are stitched into the pipeline;" +
+                               " query " + queryId + " cannot take a new operand.");
+  }
+}
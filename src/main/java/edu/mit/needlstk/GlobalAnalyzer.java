@@ -3,6 +3,7 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,7 +26,12 @@ public class GlobalAnalyzer extends PerfQueryBaseVisitor<LocatedExprTree> {
   /// A reference to associativity information for aggregation functions
   private HashMap<String, Boolean> aggFunAssocMap;
 
-  /// State variable denoting whether we are at the top level of the parse
+  /// Location-annotated tree of each stream analyzed so far. A stream used by several queries
+  /// (e.g., both operands of a zip derived from it) is analyzed once, and its tree is shared, so
+  /// that the annotated tree is a DAG and analysis takes time linear in the program size.
+  private HashMap<String, LocatedExprTree> located = new HashMap<>();
+
+  /// State variable denoting whether we are analyzing the top-level (last assigned) query
   private boolean isTopLevel = true;
   private void unsetTopLevel() { isTopLevel = false; }
 
@@ -42,9 +48,12 @@ public class GlobalAnalyzer extends PerfQueryBaseVisitor<LocatedExprTree> {
   
   /// Return OpLocation from underlying operators, which are inputs to the current operator.
   private LocatedExprTree recurseDeps(String stream) {
-    /// Recursively get OpLocation information for the operand streams.
+    /// Recursively get OpLocation information for the operand streams. When visiting a program,
+    /// operands have always been analyzed already (see visitProg()).
     LocatedExprTree letInput;
-    if (! stream.equals("T")) {
+    if (located.containsKey(stream)) {
+      letInput = located.get(stream);
+    } else if (! stream.equals("T")) {
       ParserRuleContext subquery = symTree.get(stream);
       /// First, ensure that the input stream has been seen before. It's an assert instead of
       /// exception because the previous pass should have caught the error.
@@ -54,6 +63,7 @@ public class GlobalAnalyzer extends PerfQueryBaseVisitor<LocatedExprTree> {
       /// which delegates to production-specific visitors, such as visitFilter,
       /// which then call recurseDeps. That's why the recursion isn't obvious here.
       letInput = super.visit(subquery);
+      located.put(stream, letInput);
     } else {
       letInput = new LocatedExprTree(OperationType.PKTLOG, new OpLocation());
     }
@@ -145,10 +155,44 @@ public class GlobalAnalyzer extends PerfQueryBaseVisitor<LocatedExprTree> {
                                children);
   }
 
-  /// visit the top level program 
+  /// visit the top level program. Streams are analyzed operands first, so that recurseDeps() only
+  /// ever finds analyzed streams and the call stack stays shallow however long the program is.
   @Override public LocatedExprTree visitProg(PerfQueryParser.ProgContext ctx) {
     ParserRuleContext subquery = symTree.get(lastAssignedId);
     assert (subquery != null);
-    return visit(subquery);
+    for (String stream: dependencyOrder(lastAssignedId)) {
+      isTopLevel = stream.equals(lastAssignedId);
+      located.put(stream, visit(symTree.get(stream)));
+    }
+    return located.get(lastAssignedId);
+  }
+
+  /// `root` and the streams it depends on (other than T), each after its operands
+  private ArrayList<String> dependencyOrder(String root) {
+    ArrayList<String> order = new ArrayList<>();
+    HashSet<String> done = new HashSet<>();
+    HashSet<String> expanded = new HashSet<>();
+    ArrayDeque<String> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (! pending.isEmpty()) {
+      String stream = pending.peek();
+      if (stream.equals("T") || done.contains(stream)) {
+        pending.pop();
+      } else if (expanded.add(stream)) {
+        ParserRuleContext subquery = symTree.get(stream);
+        assert(subquery != null);
+        List<PerfQueryParser.StreamContext> operands =
+            subquery.getChild(ParserRuleContext.class, 0).getRuleContexts(
+                PerfQueryParser.StreamContext.class);
+        for (int i = operands.size() - 1; i >= 0; i--) {
+          pending.push(operands.get(i).getText());
+        }
+      } else {
+        pending.pop();
+        done.add(stream);
+        order.add(stream);
+      }
+    }
+    return order;
   }
 }
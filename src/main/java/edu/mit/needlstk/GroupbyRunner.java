@@ -0,0 +1,135 @@
+package edu.mit.needlstk;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/// Run a groupby stage: look up the registers of the packet's key, execute the fold, and store the
+/// registers back. Keys start out with all registers set to 0, as in groupby.tmpl. A key is only
+/// inserted once a packet that is valid for this stage (i.e., whose operand is valid) updates it.
+public class GroupbyRunner extends StageRunner {
+  /// Frame slots of the key fields
+  protected int[] keySlots;
+  /// Frame slot of the outermost predicate, which holds the validity of the operand
+  protected int validSlot;
+  /// Scratch key and registers for the packet being processed
+  protected int[] key;
+  protected int[] regs;
+  /// Register values for each key
+  protected GroupbyTable table;
+  /// Frame slots read or written by the stage, and a frame to run it on, for processBatch()
+  private int[] touchedSlots;
+  private int[] frame;
+
+  public GroupbyRunner(PipeStage stage, SlotLayout layout, StageFunction fn) {
+    super(stage, fn);
+    FoldConfigInfo fci = (FoldConfigInfo)stage.getConfigInfo();
+    List<String> keyFields = fci.getKeyFields();
+    this.keySlots = new int[keyFields.size()];
+    for (int i = 0; i < keySlots.length; i++) {
+      keySlots[i] = layout.slotOf(keyFields.get(i));
+    }
+    this.validSlot = layout.slotOf(fci.getOuterPredId());
+    this.key = new int[keySlots.length];
+    this.regs = new int[fci.getStateArgs().size()];
+    this.table = new GroupbyTable(key.length, regs.length);
+    TreeSet<Integer> touched = new TreeSet<>();
+    for (String id: fci.getNonRegisters()) {
+      touched.add(layout.slotOf(id));
+    }
+    for (String id: stage.getFields()) {
+      touched.add(layout.slotOf(id));
+    }
+    for (int slot: keySlots) {
+      touched.add(slot);
+    }
+    this.touchedSlots = new int[touched.size()];
+    int i = 0;
+    for (int slot: touched) {
+      touchedSlots[i++] = slot;
+    }
+    this.frame = new int[layout.size()];
+  }
+
+  @Override public void process(int[] pkt) {
+    for (int i = 0; i < keySlots.length; i++) {
+      key[i] = pkt[keySlots[i]];
+    }
+    int entry = table.find(key);
+    if (entry >= 0) {
+      table.readState(entry, regs);
+    } else {
+      Arrays.fill(regs, 0);
+    }
+    fn.exec(pkt, regs);
+    if (pkt[validSlot] != 0) {
+      if (entry < 0) {
+        entry = table.insert(key);
+      }
+      table.writeState(entry, regs);
+    }
+  }
+
+  /// Keyed state has to be updated in packet order, so a batch is processed one row at a time: the
+  /// slots the stage touches are gathered into a frame, and scattered back after the fold has run.
+  @Override public void processBatch(PacketBatch batch) {
+    int n = batch.size();
+    for (int row = 0; row < n; row++) {
+      for (int slot: touchedSlots) {
+        frame[slot] = batch.get(slot, row);
+      }
+      process(frame);
+      for (int slot: touchedSlots) {
+        batch.set(slot, row, frame[slot]);
+      }
+    }
+  }
+
+  /// Register values for each key seen so far
+  public GroupbyTable getTable() {
+    return table;
+  }
+
+  public void printTable(PrintStream out) {
+    printTable(out, stage, table, regs.length);
+  }
+
+  /// Print a header naming the key fields and registers of `stage`, then one line per key of
+  /// `table` with the key fields and the first `stateWidth` state values, in lexicographic order.
+  public static void printTable(PrintStream out, PipeStage stage, GroupbyTable table, int stateWidth) {
+    out.println("Groupby " + stage.getPipeName() + " " +
+                ((FoldConfigInfo)stage.getConfigInfo()).getKeyFields() + " : " +
+                StageRunner.registersOf(stage));
+    int[] k = new int[table.getKeyWidth()];
+    int[] v = new int[table.getStateWidth()];
+    ArrayList<String> lines = new ArrayList<>();
+    StringBuilder sb = new StringBuilder();
+    for (int entry = 0; entry < table.capacity(); entry++) {
+      if (! table.isUsed(entry)) continue;
+      sb.setLength(0);
+      formatEntry(sb, table, entry, k, v, stateWidth);
+      lines.add(sb.toString());
+    }
+    Collections.sort(lines);
+    for (String line: lines) {
+      out.println(line);
+    }
+  }
+
+  /// Append the key fields of `entry` and its first `stateWidth` state values to `sb`, as
+  /// "k1 k2 ... : v1 v2 ...". `k` and `v` are scratch arrays of the key and state width of `table`.
+  static void formatEntry(StringBuilder sb, GroupbyTable table, int entry, int[] k, int[] v,
+                          int stateWidth) {
+    table.readKey(entry, k);
+    table.readState(entry, v);
+    for (int f: k) {
+      sb.append(f).append(' ');
+    }
+    sb.append(':');
+    for (int r = 0; r < stateWidth; r++) {
+      sb.append(' ').append(v[r]);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package edu.mit.needlstk;
+import java.util.Arrays;
+
+/// Key-value store for the state of a groupby: maps a key of `keyWidth` 32-bit fields to
+/// `stateWidth` 32-bit registers. Keys and states are packed inline into parallel int[] arrays
+/// (entry i occupies keys[i*keyWidth ..] and states[i*stateWidth ..]), and collisions are resolved by
+/// linear probing. Lookups, updates and removals never allocate; the arrays are only reallocated
+/// when the table grows past its load factor.
+public class GroupbyTable {
+  private static final int INITIAL_CAPACITY = 1024;
+  /// Grow once more than 1/2 of the entries are in use.
+  private static final int MAX_LOAD_SHIFT = 1;
+
+  private int keyWidth;
+  private int stateWidth;
+  /// Number of entries; always a power of 2
+  private int capacity;
+  private int size;
+  private int[] keys;
+  private int[] states;
+  private boolean[] used;
+  /// Scratch key for remove()
+  private int[] probeKey;
+
+  public GroupbyTable(int keyWidth, int stateWidth) {
+    this.keyWidth = keyWidth;
+    this.stateWidth = stateWidth;
+    this.probeKey = new int[keyWidth];
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    this.capacity = capacity;
+    this.size = 0;
+    this.keys = new int[capacity * keyWidth];
+    this.states = new int[capacity * stateWidth];
+    this.used = new boolean[capacity];
+  }
+
+  /// Index of the entry holding `key`, or -1 if the key is not in the table.
+  public int find(int[] key) {
+    int mask = capacity - 1;
+    for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+      if (keyEquals(i, key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /// Index of the entry holding `key`, inserting the key with all state set to 0 if needed. Entry
+  /// indices are only stable until the next insertion or removal.
+  public int insert(int[] key) {
+    if ((size + 1) > (capacity >>> MAX_LOAD_SHIFT)) {
+      grow();
+    }
+    int mask = capacity - 1;
+    int i = hash(key) & mask;
+    for (; used[i]; i = (i + 1) & mask) {
+      if (keyEquals(i, key)) {
+        return i;
+      }
+    }
+    used[i] = true;
+    System.arraycopy(key, 0, keys, i * keyWidth, keyWidth);
+    /// The entry may hold the state of a key removed earlier.
+    Arrays.fill(states, i * stateWidth, (i + 1) * stateWidth, 0);
+    size++;
+    return i;
+  }
+
+  /// Remove the key of entry `entry`. Rather than leaving a tombstone, later entries of the probe
+  /// sequence are shifted back into the hole whenever that keeps them reachable from their home
+  /// slot, so lookups stay as short as if the key had never been inserted.
+  public void remove(int entry) {
+    assert (used[entry]);
+    int mask = capacity - 1;
+    int hole = entry;
+    used[hole] = false;
+    size--;
+    for (int i = (hole + 1) & mask; used[i]; i = (i + 1) & mask) {
+      readKey(i, probeKey);
+      int home = hash(probeKey) & mask;
+      /// The entry can fill the hole if the hole lies on its probe sequence, i.e., between its home
+      /// slot and its current slot (cyclically).
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        System.arraycopy(keys, i * keyWidth, keys, hole * keyWidth, keyWidth);
+        System.arraycopy(states, i * stateWidth, states, hole * stateWidth, stateWidth);
+        used[hole] = true;
+        used[i] = false;
+        hole = i;
+      }
+    }
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldStates = states;
+    boolean[] oldUsed = used;
+    allocate(capacity * 2);
+    int mask = capacity - 1;
+    int[] key = new int[keyWidth];
+    for (int old = 0; old < oldUsed.length; old++) {
+      if (! oldUsed[old]) continue;
+      System.arraycopy(oldKeys, old * keyWidth, key, 0, keyWidth);
+      int i = hash(key) & mask;
+      while (used[i]) {
+        i = (i + 1) & mask;
+      }
+      used[i] = true;
+      System.arraycopy(key, 0, keys, i * keyWidth, keyWidth);
+      System.arraycopy(oldStates, old * stateWidth, states, i * stateWidth, stateWidth);
+      size++;
+    }
+  }
+
+  private boolean keyEquals(int entry, int[] key) {
+    int base = entry * keyWidth;
+    for (int f = 0; f < keyWidth; f++) {
+      if (keys[base + f] != key[f]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /// Combine key fields with the 32-bit finalizer of MurmurHash3, so that keys differing only in
+  /// low-order bits of one field (e.g., consecutive ports) spread across the table. The table
+  /// indexes with the low-order bits of the hash.
+  public static int hash(int[] key) {
+    int h = 0;
+    for (int field: key) {
+      h = (h ^ field) * 0x9e3779b9;
+      h ^= h >>> 16;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /// Copy the state of entry `entry` into `out`.
+  public void readState(int entry, int[] out) {
+    System.arraycopy(states, entry * stateWidth, out, 0, stateWidth);
+  }
+
+  /// Set the state of entry `entry` from `in`.
+  public void writeState(int entry, int[] in) {
+    System.arraycopy(in, 0, states, entry * stateWidth, stateWidth);
+  }
+
+  /// Copy the key of entry `entry` into `out`.
+  public void readKey(int entry, int[] out) {
+    System.arraycopy(keys, entry * keyWidth, out, 0, keyWidth);
+  }
+
+  /// Whether entry `entry` holds a key. Iterate over 0 .. capacity() - 1 to visit every key.
+  public boolean isUsed(int entry) {
+    return used[entry];
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /// Number of keys in the table
+  public int size() {
+    return size;
+  }
+
+  public int getKeyWidth() {
+    return keyWidth;
+  }
+
+  public int getStateWidth() {
+    return stateWidth;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+}
@@ -32,7 +32,8 @@ public class IfConvertor extends PerfQueryBaseVisitor<ThreeOpCode> {
     this.symTab = symTab;
   }
 
-  /// Get unique integers across all instances of this class. NOT thread-safe.
+  /// Get unique integers within this instance. Each compilation if-converts with an IfConvertor of
+  /// its own, so concurrent compilations do not share the counter.
   private String getUid() {
     incr += 1;
     return incr.toString();
@@ -245,11 +245,11 @@ public class Linear {
     return stmts;
   }
 
-  private String aCoeff(String var) {
+  public static String aCoeff(String var) {
     return "_" + var + "_a";
   }
 
-  private String bCoeff(String var) {
+  public static String bCoeff(String var) {
     return "_" + var + "_b";
   }
 
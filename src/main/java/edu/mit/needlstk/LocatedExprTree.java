@@ -22,15 +22,8 @@ class LocatedExprTree extends ExprTree {
     return opl;
   }
 
-  @Override public String toString() {
-    if (locOperands.size() == 0) return opcode.toString();
-
-    String ret = opcode + "(";
-    for (int i = 0; i < locOperands.size(); i++) {
-      ret += locOperands.get(i).toString() + ",";
-    }
-    ret = ret.substring(0, ret.length() - 1) + ")";
-    return ret;
+  @Override protected ArrayList<LocatedExprTree> children() {
+    return locOperands;
   }
 
   public String nodeLabel() {
@@ -47,15 +40,9 @@ class LocatedExprTree extends ExprTree {
             dotEdges() + "}");
   }
 
-  @Override public String dotEdges() {
-    String ret = "";
-    if (locOperands.size() != 0) {
-      for (int i = 0; i < locOperands.size(); i++) {
-      ret += locOperands.get(i).nodeLabel() + " -> " + nodeLabel()
-          + " [label=\"" + locOperands.get(i).edgeLabel() + "\"];\n"
-          + locOperands.get(i).dotEdges();
-      }
-    }
-    return ret;
+  @Override protected String dotEdge(ExprTree child) {
+    LocatedExprTree located = (LocatedExprTree)child;
+    return located.nodeLabel() + " -> " + nodeLabel()
+        + " [label=\"" + located.edgeLabel() + "\"];\n";
   }
 }
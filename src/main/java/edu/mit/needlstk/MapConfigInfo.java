@@ -7,6 +7,8 @@ import java.util.HashMap;
 
 public class MapConfigInfo extends PipeConfigInfo {
   private Integer numExprs;
+  /// Temporary holding the validity of the operand, or null if the operand is the packet log
+  private String operandValidId;
 
   public MapConfigInfo(PerfQueryParser.ColumnListContext colList,
                        PerfQueryParser.ExprListContext exprList) {
@@ -43,13 +45,22 @@ public class MapConfigInfo extends PipeConfigInfo {
     initPrePostAmble();
   }
 
+  /// Expression assigned to column `col` of the map, or null if the map does not set `col`.
+  @Override public AugExpr getExprOf(String col) {
+    for (ThreeOpStmt stmt: code.getStmts()) {
+      if (col.equals(stmt.getDefinedVar()) && assignedExpr(stmt) != null) {
+        return assignedExpr(stmt);
+      }
+    }
+    return null;
+  }
+
   public void addValidStmt(String queryId, String operandQueryId, boolean isOperandPktLog) {
     /// Set validity of the map result to the validity of the operand.
-    /// TODO: this creates dead code if the operand is invalid,
-    /// since we wouldn't need to evaluate any of the map expressions.
     AugPred operandValid;
     if (! isOperandPktLog) {
       operandValid = new AugPred(tmpTransformQueryId(operandQueryId));
+      operandValidId = tmpTransformQueryId(operandQueryId);
     } else {
       operandValid = new AugPred(true);
     }
@@ -60,4 +71,30 @@ public class MapConfigInfo extends PipeConfigInfo {
       addTmpOfField(operandQueryId, true);
     }
   }
+
+  /// Only evaluate the expressions of the map if its operand is valid, by turning assignments
+  ///   col = expr  into  col = operandValid ? expr : col
+  /// Columns in `observed`, whose values are read even if the operand is invalid, are left as they
+  /// are, and so are columns copied from a single identifier or constant, since nothing is saved by
+  /// not evaluating them. The fields read by the columns left in `observed` are added to it.
+  public void guardColumns(HashSet<String> observed) {
+    ArrayList<ThreeOpStmt> stmts = new ArrayList<>();
+    HashSet<String> reads = new HashSet<>();
+    for (ThreeOpStmt stmt: code.getStmts()) {
+      String col = stmt.getDefinedVar();
+      if (! stmt.isExprAssign() || ! setFields.contains(col)) {
+        stmts.add(stmt);
+      } else if (operandValidId != null && ! observed.contains(col) &&
+                 stmt.getExpr().getType() == AugExpr.AugExprType.EXPR_COMB) {
+        stmts.add(new ThreeOpStmt(col, operandValidId, stmt.getExpr(), new AugExpr(col)));
+      } else {
+        stmts.add(stmt);
+        if (observed.contains(col)) {
+          reads.addAll(stmt.getUsedVars());
+        }
+      }
+    }
+    observed.addAll(reads);
+    code = new ThreeOpCode(code.getDecls(), stmts);
+  }
 }
@@ -0,0 +1,152 @@
+package edu.mit.needlstk;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/// Reader for binary packet logs (see BinaryPacketLogWriter for the layout). The file is memory-
+/// mapped, so packets are read straight from the page cache without parsing. A single mapping is
+/// limited to 2 GB, so larger logs are mapped one window at a time, each window holding a whole
+/// number of records.
+public class MappedPacketLog implements PacketSource, Closeable {
+  /// Upper bound on the size of one mapped window
+  private static long WINDOW_BYTES = 1L << 30;
+
+  private FileChannel channel;
+  private int numFields;
+  private int recordBytes;
+  private long dataStart;
+  private long numRecords;
+  /// Records per window
+  private long windowRecords;
+  /// Index of the first record of the current window, and the window itself
+  private long windowStart;
+  private IntBuffer window;
+
+  public MappedPacketLog(String path) throws IOException {
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(header, 0);
+    if (header.getInt(0) != BinaryPacketLogWriter.MAGIC) {
+      throw new RuntimeException(path + " is not a binary packet log");
+    }
+    int version = header.getInt(4);
+    if (version != BinaryPacketLogWriter.VERSION) {
+      throw new RuntimeException(path + " has unsupported packet log version " + version);
+    }
+    this.dataStart = header.getInt(8);
+    this.numFields = header.getInt(12);
+    checkFieldNames(path);
+    this.recordBytes = 4 * numFields;
+    this.numRecords = (channel.size() - dataStart) / recordBytes;
+    this.windowRecords = Math.max(1, WINDOW_BYTES / recordBytes);
+    this.windowStart = 0;
+    this.window = null;
+  }
+
+  /// Whether the file at `path` starts with the magic number of a binary packet log
+  public static boolean isBinaryLog(String path) throws IOException {
+    try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      while (magic.hasRemaining() && ch.read(magic) >= 0) { }
+      return ! magic.hasRemaining() && magic.getInt(0) == BinaryPacketLogWriter.MAGIC;
+    }
+  }
+
+  private void readFully(ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, pos + buf.position()) < 0) {
+        throw new RuntimeException("Truncated packet log header");
+      }
+    }
+  }
+
+  /// The log must have been written with the current Fields.fields, in the same order.
+  private void checkFieldNames(String path) throws IOException {
+    ByteBuffer names = ByteBuffer.allocate((int)dataStart - 16);
+    readFully(names, 16);
+    names.flip();
+    boolean same = (numFields == Fields.fields.size());
+    for (int f = 0; same && f < numFields; f++) {
+      byte[] name = new byte[names.get() & 0xff];
+      names.get(name);
+      same = Fields.fields.get(f).equals(new String(name, StandardCharsets.UTF_8));
+    }
+    if (! same) {
+      throw new RuntimeException(path + " was written with different packet-log fields");
+    }
+  }
+
+  /// Number of packets in the log
+  public long size() {
+    return numRecords;
+  }
+
+  /// Make sure the current window has unread records, mapping the next window if needed. Returns
+  /// false at the end of the log.
+  private boolean advance() throws IOException {
+    if (window != null && window.hasRemaining()) {
+      return true;
+    }
+    if (window != null) {
+      windowStart += window.capacity() / numFields;
+    }
+    long count = Math.min(windowRecords, numRecords - windowStart);
+    if (count <= 0) {
+      return false;
+    }
+    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          dataStart + windowStart * recordBytes,
+                                          count * recordBytes);
+    window = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    return true;
+  }
+
+  public boolean next(int[] tuple) throws IOException {
+    if (! advance()) return false;
+    window.get(tuple, 0, numFields);
+    return true;
+  }
+
+  /// Read-only view of the next records of the log (up to `maxRecords`, but never across a window
+  /// boundary), without copying: record i, field f is at index i * Fields.fields.size() + f. Returns
+  /// null at the end of the log. The view stays valid after further reads.
+  public IntBuffer nextBlock(int maxRecords) throws IOException {
+    if (! advance()) return null;
+    int ints = Math.min(window.remaining(), maxRecords * numFields);
+    IntBuffer block = window.slice();
+    block.limit(ints);
+    window.position(window.position() + ints);
+    return block.asReadOnlyBuffer();
+  }
+
+  /// Fill the field columns of `batch` from the log, one column-major transpose per block.
+  @Override public int nextBatch(PacketBatch batch) throws IOException {
+    int rows = 0;
+    while (rows < batch.capacity()) {
+      IntBuffer block = nextBlock(batch.capacity() - rows);
+      if (block == null) break;
+      int n = block.limit() / numFields;
+      for (int f = 0; f < numFields; f++) {
+        int[] col = batch.col(f);
+        for (int i = 0, idx = f; i < n; i++, idx += numFields) {
+          col[rows + i] = block.get(idx);
+        }
+      }
+      rows += n;
+    }
+    batch.setSize(rows);
+    return rows;
+  }
+
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+}
@@ -0,0 +1,208 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Run several query programs over one packet stream. The packet source is read and decoded once,
+/// into a small pool of shared batches of packet-log fields; every query copies the fields of each
+/// batch into a batch of its own layout and runs its StreamEngine over it. Queries run as tasks on
+/// a shared executor, so any number of queries share a fixed number of threads: a query's task
+/// processes the batches queued for it in order, then gives up its thread. A shared batch is
+/// reused once every query is done with it, so the slowest query holds back the reader instead of
+/// letting batches pile up.
+public class MultiQueryEngine {
+  /// Shared batches in circulation, and batches a query's task processes before yielding its thread
+  private static int POOL_SIZE = 16;
+  private static int BATCHES_PER_TASK = 4;
+
+  private ArrayList<Query> queries;
+  private ExecutorService executor;
+  private int numThreads;
+  private BlockingQueue<Shared> free;
+
+  private long packets;
+  private long elapsedNanos;
+
+  /// A batch of decoded packets, and the number of queries that have yet to process it
+  private static class Shared {
+    PacketBatch batch;
+    AtomicInteger pending = new AtomicInteger();
+    /// Packets read before this batch
+    long offset;
+  }
+
+  /// One query program, run by at most one executor thread at a time
+  private class Query implements Runnable {
+    String name;
+    StreamEngine engine;
+    PacketBatch batch;
+    ConcurrentLinkedQueue<Shared> inbox = new ConcurrentLinkedQueue<>();
+    AtomicBoolean scheduled = new AtomicBoolean(false);
+    /// Packets processed so far (written by the query's task, read by the reader)
+    volatile long packets;
+    long results;
+    long busyNanos;
+    /// Largest and total lag, in packets read but not yet processed, sampled as each batch is read
+    long maxLag;
+    long sumLag;
+    long lagSamples;
+    Throwable failure;
+
+    Query(String name, StreamEngine engine, int batchSize) {
+      this.name = name;
+      this.engine = engine;
+      this.batch = engine.newBatch(batchSize);
+    }
+
+    void enqueue(Shared shared) {
+      long lag = shared.offset - packets;
+      maxLag = Math.max(maxLag, lag);
+      sumLag += lag;
+      lagSamples++;
+      inbox.add(shared);
+      schedule();
+    }
+
+    void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    @Override public void run() {
+      for (int i = 0; i < BATCHES_PER_TASK; i++) {
+        Shared shared = inbox.poll();
+        if (shared == null) break;
+        process(shared);
+      }
+      scheduled.set(false);
+      /// Batches queued after the last poll() would otherwise wait for the next enqueue().
+      if (! inbox.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private void process(Shared shared) {
+      if (failure == null) {
+        try {
+          long start = System.nanoTime();
+          batch.copyFields(shared.batch);
+          engine.processBatch(batch);
+          results += engine.collectResults(batch);
+          busyNanos += System.nanoTime() - start;
+        } catch (RuntimeException | Error e) {
+          /// Keep releasing batches so that the reader does not block; the failure is reported once
+          /// the run completes.
+          failure = e;
+        }
+      }
+      packets += shared.batch.size();
+      if (shared.pending.decrementAndGet() == 0) {
+        free.add(shared);
+      }
+    }
+  }
+
+  /// Run each of `pipes` (named by `names`) as a separate query, on `numThreads` threads.
+  public MultiQueryEngine(List<String> names, List<PipeConstructor> pipes, boolean compiled,
+                          int numThreads, int batchSize) {
+    this.queries = new ArrayList<>();
+    for (int q = 0; q < pipes.size(); q++) {
+      queries.add(new Query(names.get(q), new StreamEngine(pipes.get(q), compiled), batchSize));
+    }
+    this.numThreads = numThreads;
+    this.free = new ArrayBlockingQueue<>(POOL_SIZE);
+    for (int i = 0; i < POOL_SIZE; i++) {
+      Shared shared = new Shared();
+      /// Any layout will do: shared batches only hold the packet-log fields.
+      shared.batch = queries.get(0).engine.newBatch(batchSize);
+      free.add(shared);
+    }
+  }
+
+  /// Print the result tuples of every query to `out`, each prefixed by the name of its query.
+  /// Results of one query are in packet order, but results of different queries interleave.
+  public void setResultOutput(PrintStream out) {
+    for (Query q: queries) {
+      q.engine.setResultOutput(out, q.name + ": ");
+    }
+  }
+
+  /// Run every query over every packet of `src`, and record throughput statistics. The executor is
+  /// started here, so an engine can only run once.
+  public void run(PacketSource src) throws IOException {
+    executor = Executors.newFixedThreadPool(numThreads);
+    packets = 0;
+    long start = System.nanoTime();
+    try {
+      while (true) {
+        Shared shared = free.take();
+        if (shared.batch.fill(src) == 0) {
+          free.add(shared);
+          break;
+        }
+        shared.offset = packets;
+        packets += shared.batch.size();
+        shared.pending.set(queries.size());
+        for (Query q: queries) {
+          q.enqueue(shared);
+        }
+      }
+      /// Every shared batch is back in the pool once all queries are done.
+      for (int i = 0; i < POOL_SIZE; i++) {
+        free.take();
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while running queries", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    elapsedNanos = System.nanoTime() - start;
+    for (Query q: queries) {
+      if (q.failure != null) {
+        throw new RuntimeException("Query " + q.name + " failed", q.failure);
+      }
+    }
+  }
+
+  public void printTables(PrintStream out) {
+    for (Query q: queries) {
+      out.println("Query " + q.name);
+      q.engine.printTables(out);
+    }
+  }
+
+  public long getPackets() {
+    return packets;
+  }
+
+  /// Packets read per second, i.e., the rate at which every query kept up with the source
+  public double getThroughput() {
+    return (elapsedNanos == 0) ? 0 : packets * 1e9 / elapsedNanos;
+  }
+
+  public String report() {
+    String res = String.format("Processed %d packets through %d queries in %.3f s: %.0f packets/s" +
+                               " (%.0f query-packets/s) on %d threads",
+                               packets, queries.size(), elapsedNanos / 1e9, getThroughput(),
+                               getThroughput() * queries.size(), numThreads);
+    for (Query q: queries) {
+      res += String.format("\n%s: %d results, %.0f packets/s while running, lag %.0f packets" +
+                           " on average, %d at most",
+                           q.name, q.results, (q.busyNanos == 0) ? 0 : q.packets * 1e9 / q.busyNanos,
+                           (q.lagSamples == 0) ? 0 : (double)q.sumLag / q.lagSamples, q.maxLag);
+    }
+    return res;
+  }
+}
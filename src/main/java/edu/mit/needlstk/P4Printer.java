@@ -1,6 +1,9 @@
 package edu.mit.needlstk;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class P4Printer {
   /// Default integer bitwidth used for declarations in emitted code.
@@ -23,8 +26,9 @@ public class P4Printer {
   public static String P4_FALSE = "false";
 
   /// Map from query field name to p4 field names. These names are to be kept up to date with the
-  /// fields available in the `fields` list in the class Fields.
-  public static HashMap<String, String> p4Map = new HashMap<>();
+  /// fields available in the `fields` list in the class Fields. Like the other tables of this class,
+  /// it is read-only once initialized, as concurrent compilations share it (see BatchCompiler).
+  public static Map<String, String> p4Map = new HashMap<>();
   static {
     p4Map.put(Fields.switchHdr,     "switchId");
     p4Map.put(Fields.inportHdr,     "ingress_port");
@@ -46,12 +50,13 @@ public class P4Printer {
     p4Map.put(Fields.protoHdr,      "protocol");
     p4Map.put(Fields.pktpathHdr,    "pktpath");
     p4Map.put(Fields.ingressTin,    "ingress_global_timestamp");
+    p4Map = Collections.unmodifiableMap(p4Map);
   }
 
   /// List of P4 prefixes to use while reading the basic fields of the schema. These names are to be
   /// kept up to date with the fields available in the `fields` list in the class Fields.
-  public static HashMap<String, String> p4PrefixMap = new HashMap<>();
-  public static ArrayList<String> pktLogMetadataFields = new ArrayList<>();
+  public static Map<String, String> p4PrefixMap = new HashMap<>();
+  public static List<String> pktLogMetadataFields = new ArrayList<>();
   static {
     String STANDARD_TYPECAST  = "(bit<32>)";
     String META               = "meta.";
@@ -88,6 +93,8 @@ public class P4Printer {
         pktLogMetadataFields.add(f);
       }
     }
+    p4PrefixMap = Collections.unmodifiableMap(p4PrefixMap);
+    pktLogMetadataFields = Collections.unmodifiableList(pktLogMetadataFields);
   }
 
   /// Helper to print identifier names with the right prefix
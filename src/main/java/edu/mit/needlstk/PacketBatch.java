@@ -0,0 +1,144 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.util.Arrays;
+
+/// Struct-of-arrays batch of packet frames for bulk replay. Every slot of a SlotLayout gets one
+/// int[] column, except the validity fields of stages (_<query>_valid), which are kept as one bitmap
+/// per stage. Batches are allocated once and reused, so replay does not allocate per packet.
+public class PacketBatch {
+  private SlotLayout layout;
+  private int capacity;
+  private int size;
+  /// cols[slot][row]; null for validity slots
+  private int[][] cols;
+  /// bits[slot][row / 64]; null for all slots other than validity slots
+  private long[][] bits;
+
+  public PacketBatch(SlotLayout layout, int capacity) {
+    this.layout = layout;
+    this.capacity = capacity;
+    this.size = 0;
+    this.cols = new int[layout.size()][];
+    this.bits = new long[layout.size()][];
+    for (int slot = 0; slot < layout.size(); slot++) {
+      if (layout.isValidSlot(slot)) {
+        bits[slot] = new long[(capacity + 63) / 64];
+      } else {
+        cols[slot] = new int[capacity];
+      }
+    }
+  }
+
+  public SlotLayout getLayout() {
+    return layout;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void setSize(int size) {
+    assert (size <= capacity);
+    this.size = size;
+  }
+
+  public boolean isBitmap(int slot) {
+    return bits[slot] != null;
+  }
+
+  /// The column of a (non-validity) slot
+  public int[] col(int slot) {
+    assert (cols[slot] != null);
+    return cols[slot];
+  }
+
+  /// The validity bitmap of a validity slot
+  public long[] bitmap(int slot) {
+    assert (bits[slot] != null);
+    return bits[slot];
+  }
+
+  /// Read one value of any slot
+  public int get(int slot, int row) {
+    if (bits[slot] != null) {
+      return (int)((bits[slot][row >>> 6] >>> row) & 1L);
+    } else {
+      return cols[slot][row];
+    }
+  }
+
+  /// Write one value of any slot. Validity slots store (val != 0).
+  public void set(int slot, int row, int val) {
+    if (bits[slot] != null) {
+      long mask = 1L << row;
+      if (val != 0) {
+        bits[slot][row >>> 6] |= mask;
+      } else {
+        bits[slot][row >>> 6] &= ~mask;
+      }
+    } else {
+      cols[slot][row] = val;
+    }
+  }
+
+  /// Expand the bitmap of a validity slot into 0/1 values, one per row.
+  public void unpack(int slot, int[] out) {
+    long[] words = bits[slot];
+    for (int i = 0; i < size; i++) {
+      out[i] = (int)((words[i >>> 6] >>> i) & 1L);
+    }
+  }
+
+  /// Set the bitmap of a validity slot from values, one per row.
+  public void pack(int slot, int[] vals) {
+    long[] words = bits[slot];
+    Arrays.fill(words, 0L);
+    for (int i = 0; i < size; i++) {
+      words[i >>> 6] |= ((long)(vals[i] != 0 ? 1 : 0)) << i;
+    }
+  }
+
+  /// Number of rows whose bit is set in the bitmap of a validity slot
+  public int countValid(int slot) {
+    long[] words = bits[slot];
+    int full = size >>> 6;
+    int count = 0;
+    for (int w = 0; w < full; w++) {
+      count += Long.bitCount(words[w]);
+    }
+    if ((size & 63) != 0) {
+      count += Long.bitCount(words[full] & ((1L << (size & 63)) - 1));
+    }
+    return count;
+  }
+
+  /// Reset every slot other than the packet-log fields, as for a freshly arrived packet.
+  public void clearNonFields() {
+    for (int slot = SlotLayout.numFields(); slot < cols.length; slot++) {
+      if (bits[slot] != null) {
+        Arrays.fill(bits[slot], 0L);
+      } else {
+        Arrays.fill(cols[slot], 0, size, 0);
+      }
+    }
+  }
+
+  /// Copy the packet-log fields of every packet of `src`, which may belong to another pipeline's
+  /// layout; the packet-log fields occupy the same slots in every layout.
+  public void copyFields(PacketBatch src) {
+    assert (src.size <= capacity);
+    for (int slot = 0; slot < SlotLayout.numFields(); slot++) {
+      System.arraycopy(src.cols[slot], 0, cols[slot], 0, src.size);
+    }
+    this.size = src.size;
+  }
+
+  /// Fill the batch with up to capacity() packets from `src`. Returns the number of packets read.
+  public int fill(PacketSource src) throws IOException {
+    return src.nextBatch(this);
+  }
+}
@@ -0,0 +1,27 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+
+/// A stream of packet-log tuples fed into the software execution engine. Implementations fill the
+/// first Fields.fields.size() entries of the supplied array with the fields of one packet, in the
+/// order of Fields.fields. The array is reused across calls, so sources must not hold on to it.
+public interface PacketSource {
+  /// Fill `tuple` with the next packet. Returns false once the source is exhausted.
+  boolean next(int[] tuple) throws IOException;
+
+  /// Fill the packet-log field columns of `batch` with up to batch.capacity() packets, and set its
+  /// size. Returns the number of packets read, 0 once the source is exhausted. Sources that can
+  /// produce columns more cheaply than one tuple at a time override this.
+  default int nextBatch(PacketBatch batch) throws IOException {
+    int numFields = SlotLayout.numFields();
+    int[] tuple = new int[numFields];
+    int row = 0;
+    while (row < batch.capacity() && next(tuple)) {
+      for (int f = 0; f < numFields; f++) {
+        batch.col(f)[row] = tuple[f];
+      }
+      row++;
+    }
+    batch.setSize(row);
+    return row;
+  }
+}
@@ -0,0 +1,321 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/// Run a pipeline whose groupbys are declared `assoc` by aggregating parts of the input on separate
+/// threads, each from the initial state, and merging the partial states at the end. Partial states
+/// are merged with the linear-in-state coefficients (state = _s_a * state + _s_b): if a partition
+/// maps a state s to A * s + B, merging it after the partitions before it gives A * merged + B. This
+/// is exact for contiguous partitions taken in order, e.g., one trace file per thread. If a single
+/// source is split across threads, packets are dealt out in chunks, which is only exact for pure
+/// accumulations (A = 1 for every packet, as for count or sum); the merge checks for this.
+///
+/// A pipeline qualifies if every groupby is declared `assoc`, every register has a linear-in-state
+/// update, no groupby emits, and no stage consumes the output of a groupby (so only the final tables
+/// matter).
+public class PartialAggregationEngine {
+  private static int CHUNK_SIZE = 1024;
+  private static int QUEUE_DEPTH = 8;
+
+  private ArrayList<PipeStage> pipe;
+  private String outputQuery;
+  private boolean compiled;
+  /// Merged state of each groupby, in pipeline order: registers followed by A products
+  private ArrayList<GroupbyTable> merged;
+  private ArrayList<PipeStage> groupbys;
+  private int numWorkers;
+
+  private long packets;
+  private long elapsedNanos;
+
+  public PartialAggregationEngine(PipeConstructor pc, boolean compiled) {
+    this.pipe = pc.getPipe();
+    this.outputQuery = pc.getLastAssignedId();
+    this.compiled = compiled;
+    checkMergeable(pipe);
+    this.groupbys = new ArrayList<>();
+    for (PipeStage stage: pipe) {
+      if (stage.getOp() == OperationType.GROUPBY) {
+        groupbys.add(stage);
+      }
+    }
+  }
+
+  /// Throw if the final groupby tables of `pipe` cannot be computed by merging partial states.
+  public static void checkMergeable(ArrayList<PipeStage> pipe) {
+    String problem = mergeProblem(pipe);
+    if (problem != null) {
+      throw new RuntimeException(problem);
+    }
+  }
+
+  /// Why the final groupby tables of `pipe` cannot be computed by merging partial states, or null
+  /// if they can.
+  public static String mergeProblem(ArrayList<PipeStage> pipe) {
+    boolean hasGroupby = false;
+    for (PipeStage stage: pipe) {
+      if (stage.getOp() != OperationType.GROUPBY) continue;
+      hasGroupby = true;
+      FoldConfigInfo fci = (FoldConfigInfo)stage.getConfigInfo();
+      String name = stage.getPipeName();
+      if (! fci.isAssoc()) {
+        return "Aggregation function of groupby " + name + " is not assoc";
+      }
+      for (BackingStore.MergePolicy policy: BackingStore.policiesOf(stage)) {
+        if (policy != BackingStore.MergePolicy.LINEAR) {
+          return "Groupby " + name + " has a register without a linear-in-state update";
+        }
+      }
+      for (ThreeOpStmt stmt: fci.getCode().getStmts()) {
+        if (stmt.isEmit()) {
+          return "Groupby " + name + " emits per-packet results";
+        }
+      }
+      String validField = PipeConfigInfo.fieldTransformQueryId(name);
+      for (PipeStage consumer: pipe) {
+        if (consumer != stage && consumer.getConfigInfo().getSymTab().containsKey(validField)) {
+          return "Groupby " + name + " is consumed by " + consumer.getPipeName();
+        }
+      }
+    }
+    if (! hasGroupby) {
+      return "Pipeline has no groupby to aggregate";
+    }
+    return null;
+  }
+
+  /// One thread per source; `sources` are contiguous parts of the input, in order.
+  public void run(List<PacketSource> sources) throws IOException {
+    ArrayList<Worker> workers = new ArrayList<>();
+    for (PacketSource src: sources) {
+      workers.add(new Worker(src, workers.size()));
+    }
+    execute(workers, null, true);
+  }
+
+  /// Split `src` across `numThreads` threads, in chunks dealt out round-robin.
+  public void run(PacketSource src, int numThreads) throws IOException {
+    ArrayList<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      workers.add(new Worker(new ChunkSource(), i));
+    }
+    execute(workers, src, false);
+  }
+
+  private void execute(ArrayList<Worker> workers, PacketSource dealt, boolean ordered)
+      throws IOException {
+    this.numWorkers = workers.size();
+    long start = System.nanoTime();
+    for (Worker w: workers) {
+      w.start();
+    }
+    try {
+      if (dealt != null) {
+        deal(dealt, workers);
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while aggregating partitions", e);
+    } finally {
+      try {
+        for (Worker w: workers) {
+          w.join();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while aggregating partitions", e);
+      }
+    }
+    packets = 0;
+    for (Worker w: workers) {
+      if (w.failure != null) {
+        throw new RuntimeException("Partition " + w.getName() + " failed", w.failure);
+      }
+      packets += w.engine.getPackets();
+    }
+    merge(workers, ordered);
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /// Deal out the packets of `src` to the ChunkSource of each worker. Every worker is sent the end
+  /// of its packets even if `src` fails, so that none of them waits for packets forever.
+  private void deal(PacketSource src, ArrayList<Worker> workers)
+      throws IOException, InterruptedException {
+    int numFields = SlotLayout.numFields();
+    int[] tuple = new int[numFields];
+    int next = 0;
+    Chunk chunk = null;
+    try {
+      while (src.next(tuple)) {
+        if (chunk == null) {
+          chunk = ((ChunkSource)workers.get(next).src).free.take();
+          chunk.size = 0;
+        }
+        System.arraycopy(tuple, 0, chunk.tuples, chunk.size * numFields, numFields);
+        if (++chunk.size == CHUNK_SIZE) {
+          ((ChunkSource)workers.get(next).src).full.put(chunk);
+          chunk = null;
+          next = (next + 1) % workers.size();
+        }
+      }
+    } finally {
+      if (chunk != null) {
+        ((ChunkSource)workers.get(next).src).full.put(chunk);
+      }
+      for (Worker w: workers) {
+        ChunkSource cs = (ChunkSource)w.src;
+        Chunk end = cs.free.take();
+        end.size = -1;
+        cs.full.put(end);
+      }
+    }
+  }
+
+  /// Merge the tables of the workers, in worker order, into `merged`.
+  private void merge(ArrayList<Worker> workers, boolean ordered) {
+    merged = new ArrayList<>();
+    for (int g = 0; g < groupbys.size(); g++) {
+      PipeStage stage = groupbys.get(g);
+      GroupbyTable first = partialTable(workers.get(0), stage);
+      int width = first.getStateWidth() / 2;
+      GroupbyTable result = new GroupbyTable(first.getKeyWidth(), 2 * width);
+      int[] k = new int[first.getKeyWidth()];
+      int[] partial = new int[2 * width];
+      int[] state = new int[2 * width];
+      for (Worker w: workers) {
+        GroupbyTable table = partialTable(w, stage);
+        for (int entry = 0; entry < table.capacity(); entry++) {
+          if (! table.isUsed(entry)) continue;
+          table.readKey(entry, k);
+          table.readState(entry, partial);
+          int target = result.find(k);
+          if (target < 0) {
+            result.writeState(result.insert(k), partial);
+            continue;
+          }
+          result.readState(target, state);
+          for (int r = 0; r < width; r++) {
+            if (! ordered && (partial[width + r] != 1 || state[width + r] != 1)) {
+              throw new RuntimeException("Groupby " + stage.getPipeName() + " is not a pure" +
+                                         " accumulation; pass its input as ordered partitions");
+            }
+            state[r] = partial[width + r] * state[r] + partial[r];
+            state[width + r] *= partial[width + r];
+          }
+          result.writeState(target, state);
+        }
+      }
+      merged.add(result);
+    }
+  }
+
+  private static GroupbyTable partialTable(Worker w, PipeStage stage) {
+    for (StageRunner runner: w.engine.getRunners()) {
+      if (runner.getStage() == stage) {
+        return ((GroupbyRunner)runner).getTable();
+      }
+    }
+    throw new RuntimeException("No runner for groupby " + stage.getPipeName());
+  }
+
+  /// Print the merged state of every groupby, in the format of StreamEngine.printTables().
+  public void printTables(PrintStream out) {
+    for (int g = 0; g < groupbys.size(); g++) {
+      GroupbyTable table = merged.get(g);
+      GroupbyRunner.printTable(out, groupbys.get(g), table, table.getStateWidth() / 2);
+    }
+  }
+
+  public long getPackets() {
+    return packets;
+  }
+
+  public double getThroughput() {
+    return (elapsedNanos == 0) ? 0 : packets * 1e9 / elapsedNanos;
+  }
+
+  public String report() {
+    String res = String.format("Aggregated %d packets in %.3f s: %.0f packets/s on %d partitions",
+                               packets, elapsedNanos / 1e9, getThroughput(), numWorkers);
+    for (int g = 0; g < groupbys.size(); g++) {
+      res += "\nGroupby " + groupbys.get(g).getPipeName() + ": " + merged.get(g).size() + " keys";
+    }
+    return res;
+  }
+
+  /// Packet-log fields of up to CHUNK_SIZE packets
+  private static class Chunk {
+    int size;
+    int[] tuples = new int[CHUNK_SIZE * SlotLayout.numFields()];
+  }
+
+  /// Packet source reading the chunks dealt to one worker
+  private static class ChunkSource implements PacketSource {
+    BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_DEPTH + 1);
+    Chunk current;
+    int pos;
+    boolean done;
+
+    ChunkSource() {
+      for (int i = 0; i < QUEUE_DEPTH + 1; i++) {
+        free.add(new Chunk());
+      }
+    }
+
+    public boolean next(int[] tuple) {
+      if (done) return false;
+      try {
+        while (current == null || pos == current.size) {
+          if (current != null) {
+            free.put(current);
+          }
+          current = full.take();
+          pos = 0;
+          if (current.size < 0) {
+            done = true;
+            return false;
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while waiting for packets", e);
+      }
+      int numFields = SlotLayout.numFields();
+      System.arraycopy(current.tuples, pos * numFields, tuple, 0, numFields);
+      pos++;
+      return true;
+    }
+  }
+
+  private class Worker extends Thread {
+    PacketSource src;
+    StreamEngine engine;
+    Throwable failure;
+
+    Worker(PacketSource src, int index) {
+      super("partition-" + index);
+      this.src = src;
+      this.engine = new StreamEngine(pipe, outputQuery, compiled, (stage, layout, fn) ->
+          (stage.getOp() == OperationType.GROUPBY) ? new PartialGroupbyRunner(stage, layout, fn) :
+                                                     StageRunner.create(stage, layout, fn));
+    }
+
+    @Override public void run() {
+      try {
+        engine.run(src);
+      } catch (Throwable t) {
+        failure = t;
+        /// Drain dealt chunks so that the dealing thread does not block.
+        if (src instanceof ChunkSource) {
+          try {
+            while (src.next(new int[SlotLayout.numFields()])) { }
+          } catch (IOException | RuntimeException e) {
+            // Already failed
+          }
+        }
+      }
+    }
+  }
+}
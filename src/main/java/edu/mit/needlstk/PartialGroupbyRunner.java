@@ -0,0 +1,55 @@
+package edu.mit.needlstk;
+import java.util.Arrays;
+import java.util.List;
+
+/// Groupby runner for partial aggregation (see PartialAggregationEngine): in addition to the
+/// registers of each key, it keeps the product of the _s_a coefficients of every register over the
+/// packets of the key that it has seen. Each entry of the table holds the registers followed by
+/// those products, so a partial state can be merged into the state of an earlier partition as
+/// A * earlier + partial (see BackingStore.combine()).
+public class PartialGroupbyRunner extends GroupbyRunner {
+  /// Frame slot of the A coefficient of each register
+  private int[] aSlots;
+  /// Registers followed by A products, for the packet being processed
+  private int[] entryState;
+
+  public PartialGroupbyRunner(PipeStage stage, SlotLayout layout, StageFunction fn) {
+    super(stage, layout, fn);
+    List<String> registers = StageRunner.registersOf(stage);
+    this.aSlots = new int[regs.length];
+    for (int r = 0; r < regs.length; r++) {
+      aSlots[r] = layout.slotOf(Linear.aCoeff(registers.get(r)));
+    }
+    this.entryState = new int[2 * regs.length];
+    this.table = new GroupbyTable(key.length, 2 * regs.length);
+  }
+
+  @Override public void process(int[] pkt) {
+    for (int i = 0; i < keySlots.length; i++) {
+      key[i] = pkt[keySlots[i]];
+    }
+    int entry = table.find(key);
+    if (entry >= 0) {
+      table.readState(entry, entryState);
+    } else {
+      Arrays.fill(entryState, 0, regs.length, 0);
+      Arrays.fill(entryState, regs.length, entryState.length, 1);
+    }
+    System.arraycopy(entryState, 0, regs, 0, regs.length);
+    fn.exec(pkt, regs);
+    if (pkt[validSlot] != 0) {
+      System.arraycopy(regs, 0, entryState, 0, regs.length);
+      for (int r = 0; r < regs.length; r++) {
+        entryState[regs.length + r] *= pkt[aSlots[r]];
+      }
+      if (entry < 0) {
+        entry = table.insert(key);
+      }
+      table.writeState(entry, entryState);
+    }
+  }
+
+  public int getStateWidth() {
+    return regs.length;
+  }
+}
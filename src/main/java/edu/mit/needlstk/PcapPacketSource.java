@@ -0,0 +1,373 @@
+package edu.mit.needlstk;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/// Synthesize packet-log tuples from a packet capture, in pcap or pcapng format. The capture is
+/// streamed through a fixed-size buffer, so it can be arbitrarily large. Fields are filled as
+/// follows:
+///  - srcip, dstip, proto, srcport, dstport, tcpseq, payloadlen from the IPv4 / TCP / UDP headers
+///    (ports and tcpseq are 0 for other protocols, and for fragments other than the first);
+///  - pktlen is the length of the packet on the wire;
+///  - uid numbers packets from 1, in capture order;
+///  - tin is the capture timestamp, in ticks (see setTickNanos) since the first packet;
+///  - tout is tin;
+///  - every other field (switch, qid, inport, outport, pktpath, qin, qout, qtime) is 0, unless set
+///    by an annotation (see the constructor).
+/// A QueueModel can be stacked on top to derive tout, qin, qout and qtime instead.
+/// Packets that are not IPv4 are skipped (see getSkipped()). Supported link types are Ethernet
+/// (with VLAN tags), raw IP, Linux cooked capture (v1 and v2) and BSD loopback.
+public class PcapPacketSource implements PacketSource, Closeable {
+  private static int PCAP_MAGIC_USEC = 0xa1b2c3d4;
+  private static int PCAP_MAGIC_NSEC = 0xa1b23c4d;
+  private static int PCAPNG_SHB = 0x0a0d0d0a;
+  private static int PCAPNG_BYTE_ORDER = 0x1a2b3c4d;
+  private static int PCAPNG_IDB = 1;
+  private static int PCAPNG_SPB = 3;
+  private static int PCAPNG_EPB = 6;
+  private static int BUFFER_BYTES = 1 << 22;
+  /// Largest captured length of a packet accepted whatever the snapshot length (as in libpcap)
+  private static int MAX_SNAPLEN = 262144;
+
+  private static int LINK_NULL = 0;
+  private static int LINK_ETHERNET = 1;
+  private static int LINK_RAW = 101;
+  private static int LINK_SLL = 113;
+  private static int LINK_IPV4 = 228;
+  private static int LINK_SLL2 = 276;
+
+  /// Fields that are derived from the capture, and can not be annotated
+  public static List<String> derivedFields = Arrays.asList(
+      Fields.uidHdr, Fields.srcipHdr, Fields.dstipHdr, Fields.srcportHdr, Fields.dstportHdr,
+      Fields.tcpseqHdr, Fields.protoHdr, Fields.payloadlenHdr, Fields.pktlenHdr, Fields.tinHdr,
+      Fields.toutHdr);
+
+  private FileChannel channel;
+  private ByteBuffer buf;
+  private byte[] bytes;
+  private boolean eof = false;
+  private boolean pcapng;
+
+  /// Link type and timestamp resolution of each interface (pcap files have a single interface)
+  private int[] linkTypes = new int[1];
+  /// Timestamp resolution: if tsDecimal, timestamps are in units of 10^-tsExp s, else of 2^-tsExp s
+  private boolean[] tsDecimal = new boolean[1];
+  private int[] tsExp = new int[1];
+  private int numInterfaces = 0;
+  /// Snapshot length of a pcap file, which bounds the captured length of its packets
+  private long snapLen;
+
+  /// Annotated value of every field, in Fields.fields order
+  private int[] annotated;
+  private long tickNanos = 1000;
+  private long firstNanos = -1;
+  private long lastNanos = 0;
+  private long uid = 0;
+  private long skipped = 0;
+
+  private int uidSlot = Fields.fields.indexOf(Fields.uidHdr);
+  private int srcipSlot = Fields.fields.indexOf(Fields.srcipHdr);
+  private int dstipSlot = Fields.fields.indexOf(Fields.dstipHdr);
+  private int srcportSlot = Fields.fields.indexOf(Fields.srcportHdr);
+  private int dstportSlot = Fields.fields.indexOf(Fields.dstportHdr);
+  private int tcpseqSlot = Fields.fields.indexOf(Fields.tcpseqHdr);
+  private int protoSlot = Fields.fields.indexOf(Fields.protoHdr);
+  private int payloadlenSlot = Fields.fields.indexOf(Fields.payloadlenHdr);
+  private int pktlenSlot = Fields.fields.indexOf(Fields.pktlenHdr);
+  private int tinSlot = Fields.fields.indexOf(Fields.tinHdr);
+  private int toutSlot = Fields.fields.indexOf(Fields.toutHdr);
+
+  /// `annotations` gives values for fields that are not read from headers, e.g., the switch and
+  /// queue the capture was taken at.
+  public PcapPacketSource(String path, Map<String, Integer> annotations) throws IOException {
+    this.annotated = new int[Fields.fields.size()];
+    for (Map.Entry<String, Integer> ann: annotations.entrySet()) {
+      int slot = Fields.fields.indexOf(ann.getKey());
+      if (slot < 0 || derivedFields.contains(ann.getKey())) {
+        throw new RuntimeException("Can not annotate packet capture field " + ann.getKey() +
+                                   "; annotatable fields are those of " + Fields.fields +
+                                   " not in " + derivedFields);
+      }
+      annotated[slot] = ann.getValue();
+    }
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    this.buf = ByteBuffer.allocate(BUFFER_BYTES);
+    this.bytes = buf.array();
+    buf.flip();
+    if (! ensure(4)) {
+      throw new RuntimeException(path + " is not a packet capture");
+    }
+    int magicLE = buf.order(ByteOrder.LITTLE_ENDIAN).getInt(buf.position());
+    int magicBE = buf.order(ByteOrder.BIG_ENDIAN).getInt(buf.position());
+    if (magicBE == PCAPNG_SHB) {
+      this.pcapng = true;
+    } else if (magicLE == PCAP_MAGIC_USEC || magicLE == PCAP_MAGIC_NSEC) {
+      readPcapHeader(ByteOrder.LITTLE_ENDIAN, magicLE == PCAP_MAGIC_NSEC);
+    } else if (magicBE == PCAP_MAGIC_USEC || magicBE == PCAP_MAGIC_NSEC) {
+      readPcapHeader(ByteOrder.BIG_ENDIAN, magicBE == PCAP_MAGIC_NSEC);
+    } else {
+      throw new RuntimeException(path + " is not a packet capture");
+    }
+  }
+
+  /// Whether the file at `path` starts with a pcap or pcapng magic number
+  public static boolean isCapture(String path) throws IOException {
+    try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && ch.read(magic) >= 0) { }
+      if (magic.hasRemaining()) return false;
+      int be = magic.getInt(0);
+      int le = Integer.reverseBytes(be);
+      return be == PCAPNG_SHB || be == PCAP_MAGIC_USEC || be == PCAP_MAGIC_NSEC ||
+             le == PCAP_MAGIC_USEC || le == PCAP_MAGIC_NSEC;
+    }
+  }
+
+  /// Duration of one tick of tin (and of the times derived from it), in nanoseconds; 1000 (one
+  /// microsecond) by default. Times are truncated to 32 bits, like every other field.
+  public void setTickNanos(long tickNanos) {
+    this.tickNanos = tickNanos;
+  }
+
+  public long getTickNanos() {
+    return tickNanos;
+  }
+
+  /// Number of packets skipped because they are not IPv4
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /// Make at least `n` bytes available from the current position, reading more of the file if
+  /// needed. Returns false if the file ends first.
+  private boolean ensure(int n) throws IOException {
+    if (buf.remaining() >= n) return true;
+    if (n > buf.capacity()) {
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, 2 * buf.capacity()));
+      bigger.order(buf.order()).put(buf).flip();
+      buf = bigger;
+      bytes = buf.array();
+    }
+    buf.compact();
+    while (buf.position() < n && ! eof) {
+      if (channel.read(buf) < 0) eof = true;
+    }
+    buf.flip();
+    return buf.remaining() >= n;
+  }
+
+  private void readPcapHeader(ByteOrder order, boolean nanos) throws IOException {
+    if (! ensure(24)) {
+      throw new RuntimeException("Truncated pcap header");
+    }
+    buf.order(order);
+    snapLen = buf.getInt(buf.position() + 16) & 0xffffffffL;
+    linkTypes[0] = buf.getInt(buf.position() + 20) & 0xffff;
+    tsDecimal[0] = true;
+    tsExp[0] = nanos ? 9 : 6;
+    numInterfaces = 1;
+    buf.position(buf.position() + 24);
+  }
+
+  public boolean next(int[] tuple) throws IOException {
+    while (pcapng ? nextPcapngRecord(tuple) : nextPcapRecord(tuple)) {
+      if (tuple[protoSlot] >= 0) return true;
+      skipped++;
+    }
+    return false;
+  }
+
+  /// Parse the next pcap record into `tuple`; proto is -1 if the packet is not IPv4.
+  private boolean nextPcapRecord(int[] tuple) throws IOException {
+    if (! ensure(16)) return false;
+    int pos = buf.position();
+    long sec = buf.getInt(pos) & 0xffffffffL;
+    long frac = buf.getInt(pos + 4) & 0xffffffffL;
+    int capLen = buf.getInt(pos + 8);
+    int origLen = buf.getInt(pos + 12);
+    if (capLen < 0 || capLen > Math.max(snapLen, MAX_SNAPLEN)) {
+      throw new RuntimeException("Corrupt pcap record: captured length " + capLen);
+    }
+    if (! ensure(16 + capLen)) {
+      throw new RuntimeException("Truncated pcap record");
+    }
+    pos = buf.position();
+    long nanos = sec * 1000000000L + (tsExp[0] == 9 ? frac : frac * 1000);
+    parsePacket(tuple, linkTypes[0], pos + 16, capLen, origLen, nanos);
+    buf.position(pos + 16 + capLen);
+    return true;
+  }
+
+  /// Parse blocks up to the next packet block, and that packet into `tuple`.
+  private boolean nextPcapngRecord(int[] tuple) throws IOException {
+    while (ensure(12)) {
+      int pos = buf.position();
+      int type = buf.getInt(pos);
+      if (type == PCAPNG_SHB) {
+        /// The byte-order magic sets the endianness of the section.
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getInt(pos + 8) != PCAPNG_BYTE_ORDER) {
+          buf.order(ByteOrder.BIG_ENDIAN);
+        }
+        numInterfaces = 0;
+      }
+      int blockLen = buf.getInt(pos + 4);
+      if (blockLen < 12 || ! ensure(blockLen)) {
+        throw new RuntimeException("Truncated pcapng block");
+      }
+      pos = buf.position();
+      boolean isPacket = true;
+      if (type == PCAPNG_EPB) {
+        /// The packet data is followed by options, if any, and by the trailing block length.
+        int capLen = (blockLen < 32) ? -1 : buf.getInt(pos + 20);
+        if (capLen < 0 || capLen > blockLen - 32) {
+          throw new RuntimeException("Corrupt pcapng packet block: captured length " + capLen);
+        }
+        int iface = buf.getInt(pos + 8);
+        long ts = ((buf.getInt(pos + 12) & 0xffffffffL) << 32) | (buf.getInt(pos + 16) & 0xffffffffL);
+        if (iface >= numInterfaces) {
+          throw new RuntimeException("pcapng packet on undeclared interface " + iface);
+        }
+        parsePacket(tuple, linkTypes[iface], pos + 28, capLen, buf.getInt(pos + 24),
+                    toNanos(iface, ts));
+      } else if (type == PCAPNG_SPB) {
+        /// Simple packet blocks carry no timestamp: reuse that of the previous packet.
+        int origLen = buf.getInt(pos + 8);
+        if (origLen < 0) {
+          throw new RuntimeException("Corrupt pcapng packet block: packet length " + origLen);
+        }
+        parsePacket(tuple, linkTypes[0], pos + 12, Math.min(origLen, blockLen - 16), origLen,
+                    lastNanos);
+      } else {
+        if (type == PCAPNG_IDB) {
+          readInterface(pos, blockLen);
+        }
+        isPacket = false;
+      }
+      buf.position(pos + blockLen);
+      if (isPacket) return true;
+    }
+    return false;
+  }
+
+  /// Record the link type and timestamp resolution (option if_tsresol) of an interface.
+  private void readInterface(int pos, int blockLen) {
+    if (numInterfaces == linkTypes.length) {
+      linkTypes = Arrays.copyOf(linkTypes, 2 * numInterfaces);
+      tsDecimal = Arrays.copyOf(tsDecimal, 2 * numInterfaces);
+      tsExp = Arrays.copyOf(tsExp, 2 * numInterfaces);
+    }
+    linkTypes[numInterfaces] = buf.getShort(pos + 8) & 0xffff;
+    tsDecimal[numInterfaces] = true;
+    tsExp[numInterfaces] = 6;
+    int opt = pos + 16;
+    while (opt + 4 <= pos + blockLen - 4) {
+      int code = buf.getShort(opt) & 0xffff;
+      int len = buf.getShort(opt + 2) & 0xffff;
+      if (code == 0) break;
+      if (code == 9 && len == 1) {
+        int resol = bytes[opt + 4];
+        tsDecimal[numInterfaces] = (resol & 0x80) == 0;
+        tsExp[numInterfaces] = resol & 0x7f;
+      }
+      opt += 4 + ((len + 3) & ~3);
+    }
+    numInterfaces++;
+  }
+
+  private long toNanos(int iface, long ts) {
+    int exp = tsExp[iface];
+    if (! tsDecimal[iface]) {
+      return (ts >>> exp) * 1000000000L + (((ts & ((1L << exp) - 1)) * 1000000000L) >>> exp);
+    }
+    long scale = 1;
+    for (int i = Math.min(exp, 9); i < Math.max(exp, 9); i++) {
+      scale *= 10;
+    }
+    return (exp <= 9) ? ts * scale : ts / scale;
+  }
+
+  private int be16(int off) {
+    return ((bytes[off] & 0xff) << 8) | (bytes[off + 1] & 0xff);
+  }
+
+  private int be32(int off) {
+    return ((bytes[off] & 0xff) << 24) | ((bytes[off + 1] & 0xff) << 16) |
+           ((bytes[off + 2] & 0xff) << 8) | (bytes[off + 3] & 0xff);
+  }
+
+  /// Fill `tuple` from the `capLen` captured bytes of a packet starting at `off` in the buffer. Sets
+  /// proto to -1 if the packet is not IPv4.
+  private void parsePacket(int[] tuple, int linkType, int off, int capLen, int origLen,
+                           long nanos) {
+    int end = off + capLen;
+    int ip = -1;
+    if (linkType == LINK_ETHERNET) {
+      int etherType = (off + 14 <= end) ? be16(off + 12) : 0;
+      ip = off + 14;
+      while ((etherType == 0x8100 || etherType == 0x88a8) && ip + 4 <= end) {
+        etherType = be16(ip + 2);
+        ip += 4;
+      }
+      if (etherType != 0x0800) ip = -1;
+    } else if (linkType == LINK_RAW || linkType == LINK_IPV4) {
+      ip = off;
+    } else if (linkType == LINK_SLL) {
+      ip = (off + 16 <= end && be16(off + 14) == 0x0800) ? off + 16 : -1;
+    } else if (linkType == LINK_SLL2) {
+      ip = (off + 20 <= end && be16(off) == 0x0800) ? off + 20 : -1;
+    } else if (linkType == LINK_NULL) {
+      /// The address family is in the byte order of the capturing host; AF_INET is 2 everywhere.
+      ip = (off + 4 <= end && (bytes[off] == 2 || bytes[off + 3] == 2)) ? off + 4 : -1;
+    } else {
+      throw new RuntimeException("Unsupported link type " + linkType + " in packet capture");
+    }
+    if (ip < 0 || ip + 20 > end || (bytes[ip] & 0xf0) != 0x40) {
+      tuple[protoSlot] = -1;
+      return;
+    }
+    System.arraycopy(annotated, 0, tuple, 0, annotated.length);
+    int ihl = (bytes[ip] & 0x0f) * 4;
+    int totalLen = be16(ip + 2);
+    int proto = bytes[ip + 9] & 0xff;
+    boolean firstFragment = (be16(ip + 6) & 0x1fff) == 0;
+    int l4 = ip + ihl;
+    int l4Len = 0;
+    tuple[srcportSlot] = 0;
+    tuple[dstportSlot] = 0;
+    tuple[tcpseqSlot] = 0;
+    if (firstFragment && proto == 6 && l4 + 20 <= end) {
+      tuple[srcportSlot] = be16(l4);
+      tuple[dstportSlot] = be16(l4 + 2);
+      tuple[tcpseqSlot] = be32(l4 + 4);
+      l4Len = ((bytes[l4 + 12] & 0xf0) >> 4) * 4;
+    } else if (firstFragment && proto == 17 && l4 + 8 <= end) {
+      tuple[srcportSlot] = be16(l4);
+      tuple[dstportSlot] = be16(l4 + 2);
+      l4Len = 8;
+    }
+    tuple[uidSlot] = (int)++uid;
+    tuple[srcipSlot] = be32(ip + 12);
+    tuple[dstipSlot] = be32(ip + 16);
+    tuple[protoSlot] = proto;
+    tuple[payloadlenSlot] = Math.max(0, totalLen - ihl - l4Len);
+    tuple[pktlenSlot] = origLen;
+    if (firstNanos < 0) {
+      firstNanos = nanos;
+    }
+    lastNanos = nanos;
+    tuple[tinSlot] = (int)((nanos - firstNanos) / tickNanos);
+    tuple[toutSlot] = tuple[tinSlot];
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+}
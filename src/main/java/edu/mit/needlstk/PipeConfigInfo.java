@@ -79,6 +79,21 @@ public abstract class PipeConfigInfo {
     return symTab;
   }
 
+  /// Code run before the stage body, reading validity of operands off packet fields
+  public ThreeOpCode getPreamble() {
+    return preamble;
+  }
+
+  /// The stage body
+  public ThreeOpCode getCode() {
+    return code;
+  }
+
+  /// Code run after the stage body, writing validity of the result into packet fields
+  public ThreeOpCode getPostamble() {
+    return postamble;
+  }
+
   public HashSet<String> getSetFields() {
     return setFields;
   }
@@ -117,6 +132,24 @@ public abstract class PipeConfigInfo {
     return new HashSet<String>(symTab.keySet());
   }
 
+  /// Expression the stage assigns to column `col`, or null if it does not set `col` to a single
+  /// expression (see MapConfigInfo)
+  public AugExpr getExprOf(String col) {
+    return null;
+  }
+
+  /// Expression `stmt` assigns to its variable `col`, either `col = expr`, or `col = valid ? expr :
+  /// col` for a column of a map guarded by the validity of its operand (see MapConfigInfo); null for
+  /// other statements.
+  protected static AugExpr assignedExpr(ThreeOpStmt stmt) {
+    if (stmt.isExprAssign()) {
+      return stmt.getExpr();
+    } else if (stmt.isTernary() && stmt.getExprElse().isSingleIdentExpr(stmt.getDefinedVar())) {
+      return stmt.getExprIf();
+    }
+    return null;
+  }
+
   public abstract void addValidStmt(String q, String oq, boolean opT);
 
   protected void initPrePostAmble() {
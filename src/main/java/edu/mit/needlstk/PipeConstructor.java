@@ -1,7 +1,10 @@
 package edu.mit.needlstk;
 import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 public class PipeConstructor {
   private HashMap<String, Operation> depTable;
@@ -12,6 +15,7 @@ public class PipeConstructor {
   private HashSet<String> visited;
   private HashMap<String, ArrayList<String>> schema;
   private HashSet<String> predPacketFields;
+  private List<String> outputs;
   
   public PipeConstructor(HashMap<String, PipeStage> stages,
                          HashMap<String, Operation> depTable,
@@ -27,10 +31,100 @@ public class PipeConstructor {
   }
 
   public ArrayList<PipeStage> stitchPipe() {
-    this.pipe = getPipes(lastAssignedId);
+    this.pipe = new ArrayList<>();
+    addPipes(lastAssignedId, pipe);
+    this.outputs = new ArrayList<>(Arrays.asList(lastAssignedId));
     return this.pipe;
   }
 
+  /// Stitch one pipeline computing several output queries, e.g., those of a merged program (see
+  /// ProgramMerger). Stages that several outputs depend on appear once, before all of them.
+  public ArrayList<PipeStage> stitchPipe(List<String> outputs) {
+    this.pipe = new ArrayList<>();
+    for (String output: outputs) {
+      if (! visited.contains(output)) {
+        addPipes(output, pipe);
+      }
+    }
+    this.outputs = new ArrayList<>(outputs);
+    return this.pipe;
+  }
+
+  /// Only evaluate the columns of each map when its operand is valid (see
+  /// MapConfigInfo.guardColumns()), except for columns that groupbys read, directly or through later
+  /// maps: the table of a groupby looks up the key of every packet, valid or not (see groupby.tmpl
+  /// and CacheSimulator), so that the values of these columns matter even for invalid packets. Runs
+  /// on the pipeline of the last call to stitchPipe(), before fuseStages().
+  public void guardMaps() {
+    HashSet<String> observed = new HashSet<>();
+    for (int i = pipe.size() - 1; i >= 0; i--) {
+      PipeStage stage = pipe.get(i);
+      if (stage.getOp() == OperationType.GROUPBY) {
+        observed.addAll(stage.getUsedFields());
+      } else if (stage.getOp() == OperationType.PROJECT) {
+        ((MapConfigInfo)stage.getConfigInfo()).guardColumns(observed);
+      }
+    }
+  }
+
+  /// Fuse each stateless stage of the stitched pipeline into the next stage, if that stage is
+  /// stateless too and is the only reader of its validity (which is then no output either), so that
+  /// the two run as one P4 action and no longer pass validity through a packet field (see
+  /// FusedConfigInfo). Only adjacent stages are fused, which keeps the order in which stages write
+  /// packet fields, and at most `maxFusedStages` stages of the stitched pipeline run as one.
+  public ArrayList<PipeStage> fuseStages(int maxFusedStages) {
+    /// Number of stages referring to each validity field: the stage setting it and its readers
+    HashMap<String, Integer> refs = new HashMap<>();
+    for (PipeStage stage: pipe) {
+      for (String field: stage.getConfigInfo().getPacketFields()) {
+        if (predPacketFields.contains(field)) {
+          refs.put(field, refs.getOrDefault(field, 0) + 1);
+        }
+      }
+    }
+    ArrayList<PipeStage> fused = new ArrayList<>();
+    for (PipeStage stage: pipe) {
+      PipeStage last = fused.isEmpty() ? null : fused.get(fused.size() - 1);
+      if (last != null && canFuse(last, stage, refs, maxFusedStages)) {
+        PipeStage both = new PipeStage(stage.getOp(), new FusedConfigInfo(last, stage));
+        both.setPipeName(stage.getPipeName());
+        both.addFields(stage.getFields());
+        fused.set(fused.size() - 1, both);
+      } else {
+        fused.add(stage);
+      }
+    }
+    this.pipe = fused;
+    return this.pipe;
+  }
+
+  private boolean canFuse(PipeStage first, PipeStage second, HashMap<String, Integer> refs,
+                          int maxFusedStages) {
+    String validField = PipeConfigInfo.fieldTransformQueryId(first.getPipeName());
+    return first.getOp() != OperationType.GROUPBY &&
+           second.getOp() != OperationType.GROUPBY &&
+           ! outputs.contains(first.getPipeName()) &&
+           second.getConfigInfo().getSymTab().containsKey(validField) &&
+           refs.get(validField) == 2 &&
+           FusedConfigInfo.numStagesOf(first.getConfigInfo()) +
+           FusedConfigInfo.numStagesOf(second.getConfigInfo()) <= maxFusedStages;
+  }
+
+  /// Output queries of the pipeline produced by the last call to stitchPipe()
+  public List<String> getOutputs() {
+    return this.outputs;
+  }
+
+  /// Return the pipeline produced by the last call to stitchPipe().
+  public ArrayList<PipeStage> getPipe() {
+    return this.pipe;
+  }
+
+  /// Name of the query whose result is the output of the pipeline.
+  public String getLastAssignedId() {
+    return this.lastAssignedId;
+  }
+
   private boolean checkUseBeforeDefine(String queryId,
                                        ArrayList<String> operandQueryIds,
                                        HashSet<String> operandSet,
@@ -46,9 +140,9 @@ public class PipeConstructor {
     }
   }
 
-  private ArrayList<String> getSchemaFields(OperationType op,
-                                            HashSet<String> inputFieldSet,
-                                            HashSet<String> setFields) {
+  static ArrayList<String> getSchemaFields(OperationType op,
+                                     HashSet<String> inputFieldSet,
+                                     HashSet<String> setFields) {
     switch (op) {
       case FILTER:
       case JOIN:
@@ -67,18 +161,43 @@ public class PipeConstructor {
     }
   }
 
-  private ArrayList<PipeStage> getPipes(String queryId) {
+  /// Append the stages of `queryId` and of the subqueries it depends on, if not already visited,
+  /// to `stageList`, in dependency order. Every subquery is visited once, however many queries use
+  /// it. Subqueries left to visit are kept on an explicit stack, in the order a recursive visit of
+  /// the operands would take, so that long chains of queries do not overflow the call stack.
+  private void addPipes(String queryId, ArrayList<PipeStage> stageList) {
+    ArrayDeque<String> pending = new ArrayDeque<>();
+    /// Queries whose operands have been pushed onto `pending`
+    HashSet<String> expanded = new HashSet<>();
+    pending.push(queryId);
+    while (! pending.isEmpty()) {
+      String id = pending.peek();
+      if (visited.contains(id)) {
+        pending.pop();
+      } else if (expanded.add(id)) {
+        assert (depTable.containsKey(id)); // id should be in the depTable.
+        ArrayList<String> operands = depTable.get(id).operands;
+        for (int i = operands.size() - 1; i >= 0; i--) {
+          /// Get pipes for operand subqueries
+          if (! operands.get(i).equals(pktLogStr)) {
+            pending.push(operands.get(i));
+          }
+        }
+      } else {
+        pending.pop();
+        addStage(id, stageList);
+      }
+    }
+  }
+
+  /// Append the stage of `queryId`, whose operands have all been visited, to `stageList`.
+  private void addStage(String queryId, ArrayList<PipeStage> stageList) {
     assert (depTable.containsKey(queryId)); // queryId should be in the depTable.
     assert (stages.containsKey(queryId));   // queryId should be one of the stages.
     Operation op = depTable.get(queryId);
     PipeStage stage = stages.get(queryId);
-    ArrayList<PipeStage> stageList = new ArrayList<>();
     HashSet<String> inputFieldSet = new HashSet<>();
     for (String operand: op.operands) {
-      /// Get pipes for operand subqueries
-      if((! operand.equals(pktLogStr)) && (! visited.contains(operand))) {
-        stageList.addAll(getPipes(operand));
-      }
       /// Accumulate set of available fields from all operands
       inputFieldSet.addAll(schema.get(operand));
       /// Determine validity of current query result in generated code
@@ -95,7 +214,6 @@ public class PipeConstructor {
     checkUseBeforeDefine(queryId, op.operands, inputFieldSet, stage.getUsedFields());
     stageList.add(stage);
     visited.add(queryId);
-    return stageList;
   }
 
   /// Given a stage of a specific type, add a "validity" statement at the end of it.
@@ -137,11 +255,11 @@ public class PipeConstructor {
 
   public String getAllRegisterDeclsDomino(ArrayList<PipeStage> pipe) {
     HashSet<String> registers = getAllRegisters(pipe);
-    String res = "";
+    StringBuilder res = new StringBuilder();
     for (String reg: registers) {
-      res += ("int " + reg + " = 0;\n");
+      res.append("int " + reg + " = 0;\n");
     }
-    return res;
+    return res.toString();
   }
 
   public HashSet<String> getAllNonRegisters(ArrayList<PipeStage> pipe) {
@@ -194,10 +312,10 @@ public class PipeConstructor {
 
   public String getNonRegisterDeclsDomino(ArrayList<PipeStage> pipe) {
     ArrayList<ThreeOpDecl> decls = getNonRegisterDeclList(pipe);
-    String res = "";
+    StringBuilder res = new StringBuilder();
     for (ThreeOpDecl decl: decls) {
-      res += decl.getDomino();
+      res.append(decl.getDomino());
     }
-    return res;
+    return res.toString();
   }
 }
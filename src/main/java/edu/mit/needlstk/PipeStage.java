@@ -6,10 +6,11 @@ import java.util.stream.Collectors;
 import org.stringtemplate.v4.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import org.apache.commons.io.IOUtils;
-import java.io.InputStream;
 
 public class PipeStage {
+  /// Default number of entries of the hash-indexed register table of a groupby (see groupby.tmpl)
+  public static final int DEFAULT_TABLE_SIZE = 1024;
+
   /// Type of query operation, e.g., filter, map, etc.
   private OperationType op;
 
@@ -22,6 +23,10 @@ public class PipeStage {
   /// List of fields in the result of this query operation
   private ArrayList<String> fields;
 
+  /// Number of entries of the register table of a groupby, set per compilation (see
+  /// Compiler.Options)
+  private int tableSize = DEFAULT_TABLE_SIZE;
+
   public PipeStage(OperationType op, PipeConfigInfo configInfo) {
     this.op = op;
     this.configInfo = configInfo;
@@ -54,12 +59,11 @@ public class PipeStage {
       return "action " + this.pipeName + "() {\n" + configInfo.getP4() + "\n}";
     } else {
      try {
-      InputStream is = CodeFragmentPrinter.class.getClassLoader().getResourceAsStream("groupby.tmpl");
-      ST groupby_template = new ST(IOUtils.toString(is, "UTF-8"), '$', '$');
+      ST groupby_template = CodeFragmentPrinter.getTemplate("groupby.tmpl");
       groupby_template.add("KeyFields", this.getQualifiedKeyFields());
       groupby_template.add("ValueFields", this.getValueFields());
       groupby_template.add("StageName", this.pipeName);
-      groupby_template.add("TableSize", 1024); // TODO: Unhardcode this.
+      groupby_template.add("TableSize", tableSize);
       groupby_template.add("UpdateCode", configInfo.getP4());
       return groupby_template.render();
      } catch (Exception e) {
@@ -98,6 +102,14 @@ public class PipeStage {
     return configInfo.getDomino();
   }
 
+  public int getTableSize() {
+    return tableSize;
+  }
+
+  public void setTableSize(int size) {
+    this.tableSize = size;
+  }
+
   public PipeConfigInfo getConfigInfo() {
     return configInfo;
   }
@@ -114,6 +126,10 @@ public class PipeStage {
     this.fields.addAll(fields);
   }
 
+  public ArrayList<String> getFields() {
+    return this.fields;
+  }
+
   public HashSet<String> getSetFields() {
     return configInfo.getSetFields();
   }
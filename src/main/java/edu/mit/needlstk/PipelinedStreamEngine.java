@@ -0,0 +1,231 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Run a stitched pipeline as a staged pipeline: its stages are split into contiguous groups, each
+/// run by its own thread on columnar batches of packets (see StreamEngine.processStages()). The
+/// reading thread fills batches from the packet source and hands them to the first group; each group
+/// hands them on to the next through a lock-free single-producer/single-consumer ring (SpscRing),
+/// and the last group collects results and returns the batch to the reading thread for reuse. Only
+/// a fixed pool of batches circulates, so a slow group holds back the reading thread instead of
+/// letting batches pile up.
+///
+/// Every stage is run by one thread only, and batches reach it in the order of the source, so
+/// groupby state evolves exactly as in the sequential StreamEngine, for every kind of fold.
+public class PipelinedStreamEngine {
+  /// Capacity of the ring feeding each group; the pool holds enough batches to fill every ring.
+  private static int RING_SIZE = 4;
+
+  private StreamEngine engine;
+  private int batchSize;
+  private ArrayList<Group> groups;
+  /// Batches returned by the last group to the reading thread
+  private SpscRing<PacketBatch> free;
+  private int poolSize;
+  /// Marks the end of the packet source; passed through every group
+  private PacketBatch end;
+
+  private long packets;
+  private long results;
+  private long elapsedNanos;
+
+  /// Stages `from` .. `to` - 1 and the thread running them
+  private class Group extends Thread {
+    int from;
+    int to;
+    SpscRing<PacketBatch> in;
+    SpscRing<PacketBatch> out;
+    boolean last;
+    long busyNanos;
+    long results;
+    Throwable failure;
+
+    Group(int index, int from, int to, int ringSize) {
+      super("pipe-" + index);
+      this.from = from;
+      this.to = to;
+      this.in = new SpscRing<>(ringSize);
+    }
+
+    @Override public void run() {
+      while (true) {
+        PacketBatch batch = in.take();
+        if (batch != end && failure == null) {
+          try {
+            long start = System.nanoTime();
+            engine.processStages(batch, from, to);
+            if (last) {
+              results += engine.collectResults(batch);
+            }
+            busyNanos += System.nanoTime() - start;
+          } catch (RuntimeException | Error e) {
+            /// Keep passing batches on so that no other thread waits forever; the failure is
+            /// reported once the run completes.
+            failure = e;
+          }
+        }
+        out.put(batch);
+        if (batch == end) break;
+      }
+    }
+
+    String stageNames() {
+      List<String> names = new ArrayList<>();
+      for (int s = from; s < to; s++) {
+        names.add(engine.getRunners().get(s).getStage().getPipeName());
+      }
+      return names.toString();
+    }
+  }
+
+  /// Split the stages of the pipeline into (at most) `numThreads` groups of about the same cost.
+  public PipelinedStreamEngine(PipeConstructor pc, boolean compiled, int numThreads,
+                               int batchSize) {
+    this.engine = new StreamEngine(pc, compiled);
+    this.batchSize = batchSize;
+    ArrayList<StageRunner> runners = engine.getRunners();
+    int[] bounds = partition(runners, Math.min(numThreads, runners.size()));
+    int numGroups = bounds.length - 1;
+    this.poolSize = RING_SIZE * (numGroups + 1);
+    this.groups = new ArrayList<>();
+    for (int g = 0; g < numGroups; g++) {
+      groups.add(new Group(g, bounds[g], bounds[g + 1], RING_SIZE));
+    }
+    this.free = new SpscRing<>(poolSize + 1);
+    for (int g = 0; g < numGroups; g++) {
+      groups.get(g).out = (g + 1 < numGroups) ? groups.get(g + 1).in : free;
+    }
+    groups.get(numGroups - 1).last = true;
+    this.end = engine.newBatch(1);
+  }
+
+  /// Rough cost of running a stage on one packet: its statements, and for groupbys, a table lookup
+  /// that hashes and compares every key field.
+  private static int stageCost(StageRunner runner) {
+    PipeConfigInfo ci = runner.getStage().getConfigInfo();
+    int cost = ci.getPreamble().getStmts().size() + ci.getCode().getStmts().size() +
+               ci.getPostamble().getStmts().size();
+    if (ci instanceof FoldConfigInfo) {
+      cost += 8 + 2 * ((FoldConfigInfo)ci).getKeyFields().size();
+    }
+    return cost;
+  }
+
+  /// Boundaries of `numGroups` contiguous, non-empty groups of `runners` minimizing the cost of the
+  /// most expensive group, which bounds the throughput of the pipeline.
+  private static int[] partition(List<StageRunner> runners, int numGroups) {
+    int n = runners.size();
+    long[] prefix = new long[n + 1];
+    for (int s = 0; s < n; s++) {
+      prefix[s + 1] = prefix[s] + stageCost(runners.get(s));
+    }
+    /// best[g][s]: lowest maximum group cost for the first s stages in g groups; cut[g][s]: where
+    /// the last of those groups starts.
+    long[][] best = new long[numGroups + 1][n + 1];
+    int[][] cut = new int[numGroups + 1][n + 1];
+    for (int s = 1; s <= n; s++) {
+      best[1][s] = prefix[s];
+    }
+    for (int g = 2; g <= numGroups; g++) {
+      for (int s = g; s <= n; s++) {
+        best[g][s] = Long.MAX_VALUE;
+        for (int c = g - 1; c < s; c++) {
+          long cost = Math.max(best[g - 1][c], prefix[s] - prefix[c]);
+          if (cost < best[g][s]) {
+            best[g][s] = cost;
+            cut[g][s] = c;
+          }
+        }
+      }
+    }
+    int[] bounds = new int[numGroups + 1];
+    bounds[numGroups] = n;
+    for (int g = numGroups; g > 1; g--) {
+      bounds[g - 1] = cut[g][bounds[g]];
+    }
+    return bounds;
+  }
+
+  /// Print every result tuple to `out`, one per line, in the order of the source.
+  public void setResultOutput(PrintStream out) {
+    engine.setResultOutput(out);
+  }
+
+  /// Run the pipeline over every packet of `src`, and record throughput statistics. Group threads
+  /// are started here, so an engine can only run once.
+  public void run(PacketSource src) throws IOException {
+    for (int i = 0; i < poolSize; i++) {
+      free.put(engine.newBatch(batchSize));
+    }
+    packets = 0;
+    long start = System.nanoTime();
+    for (Group g: groups) {
+      g.start();
+    }
+    SpscRing<PacketBatch> first = groups.get(0).in;
+    try {
+      while (true) {
+        PacketBatch batch = free.take();
+        if (batch.fill(src) == 0) break;
+        packets += batch.size();
+        first.put(batch);
+      }
+    } finally {
+      first.put(end);
+      try {
+        for (Group g: groups) {
+          g.join();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while running pipelined stages", e);
+      }
+    }
+    elapsedNanos = System.nanoTime() - start;
+    for (Group g: groups) {
+      if (g.failure != null) {
+        throw new RuntimeException("Pipeline thread " + g.getName() + " failed", g.failure);
+      }
+    }
+    results = groups.get(groups.size() - 1).results;
+  }
+
+  public void printTables(PrintStream out) {
+    engine.printTables(out);
+  }
+
+  public ArrayList<String> getResultFields() {
+    return engine.getResultFields();
+  }
+
+  public long getPackets() {
+    return packets;
+  }
+
+  public long getResults() {
+    return results;
+  }
+
+  public double getThroughput() {
+    return (elapsedNanos == 0) ? 0 : packets * 1e9 / elapsedNanos;
+  }
+
+  public String report() {
+    String res = String.format("Processed %d packets (%d results) in %.3f s: %.0f packets/s" +
+                               " on %d pipelined threads",
+                               packets, results, elapsedNanos / 1e9, getThroughput(), groups.size());
+    for (Group g: groups) {
+      res += String.format("\n%s %s: busy %.3f s, waited %d times for input, %d times for output",
+                           g.getName(), g.stageNames(), g.busyNanos / 1e9, g.in.getEmptyWaits(),
+                           g.out.getFullWaits());
+    }
+    for (StageRunner runner: engine.getRunners()) {
+      if (runner instanceof GroupbyRunner) {
+        res += "\nGroupby " + runner.getStage().getPipeName() + ": " +
+               ((GroupbyRunner)runner).getTable().size() + " keys";
+      }
+    }
+    return res;
+  }
+}
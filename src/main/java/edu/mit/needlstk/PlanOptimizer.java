@@ -0,0 +1,412 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/// Logical-plan optimizer: rewrites a query program so that filters run before the operators they
+/// commute with. Groupbys only update state for packets that are valid for them, on the switch as
+/// in StreamEngine, so a filter below a groupby saves state updates for every packet it drops. A
+/// filter is pushed
+///  - below a map that sets none of the columns its predicate uses;
+///  - below a zip, into an operand whose schema (PipeConstructor.getSchemaFields()) has every
+///    column the predicate uses, or into each operand where it gets below a groupby;
+///  - below a groupby, if its predicate only uses key columns: such a filter drops whole groups,
+///    and no other group's state depends on them.
+/// The predicate is split into its conjuncts, and a conjunct that gets below a groupby is pushed on
+/// its own; the other conjuncts are pushed together if they get below anything. Streams that a
+/// filter is pushed below have their operands rewired, so they must have no other use (see
+/// movable()). The filtered stream keeps its name, and its schema, so that the outputs of the program
+/// are unchanged: if no conjunct is left to filter on there, the stream right below it is renamed.
+///
+/// Columns are packet-wide variables in generated code, so a predicate can only move to where its
+/// columns have the same value: each column it uses is a packet-log field that no query redefines,
+/// or a column set by exactly one map or groupby, which is then necessarily upstream of both places.
+public class PlanOptimizer {
+  /// A stream statement of the program
+  private static class Node {
+    String name;
+    OperationType opcode;
+    ArrayList<String> operands;
+    /// Text of the query after its operands: predicate, columns and expressions, or key columns
+    /// and aggregation function
+    String args;
+    /// Conjuncts of a filter's predicate
+    List<Conjunct> conjuncts = new ArrayList<>();
+    /// Columns set by a map, or state of a groupby
+    Set<String> sets = new HashSet<>();
+    /// Key columns of a groupby
+    Set<String> keys = new HashSet<>();
+  }
+
+  private static class Conjunct {
+    String text;
+    HashSet<String> columns;
+  }
+
+  /// Where a conjunct can be pushed below a stream: the streams it gets below, and the operands
+  /// (operand `index` of `consumer`) that get filtered
+  private static class Descent {
+    List<Node> crossed = new ArrayList<>();
+    List<Node> consumers = new ArrayList<>();
+    List<Integer> indices = new ArrayList<>();
+    boolean belowGroupby;
+  }
+
+  private static String PKT_LOG = "T";
+
+  private PerfQueryParser.ProgContext prog;
+  private StringBuilder funcText = new StringBuilder();
+  private HashMap<String, Node> nodes = new HashMap<>();
+  /// Stream statements, in program order
+  private ArrayList<String> order = new ArrayList<>();
+  private HashMap<String, List<String>> schema = new HashMap<>();
+  /// Number of uses of each stream, as an operand or output of the program
+  private HashMap<String, Integer> uses = new HashMap<>();
+  /// Number of maps and groupbys setting each column
+  private HashMap<String, Integer> writers = new HashMap<>();
+  private HashSet<String> taken = new HashSet<>();
+  private List<String> pushed = new ArrayList<>();
+
+  /// Optimize the program `prog` (see Compiler.parse()), whose output streams are `outputs`, or its
+  /// last stream if null.
+  public PlanOptimizer(PerfQueryParser.ProgContext prog, List<String> outputs) {
+    this.prog = prog;
+    HashMap<String, PerfQueryParser.AggFunContext> funcs = new HashMap<>();
+    for (PerfQueryParser.AggFunContext fn: prog.aggFun()) {
+      funcs.put(fn.aggFunc().getText(), fn);
+      funcText.append(text(fn)).append("\n\n");
+    }
+    schema.put(PKT_LOG, Fields.fields);
+    boolean defined = true;
+    for (PerfQueryParser.StreamStmtContext ctx: prog.streamStmt()) {
+      defined &= addNode(ctx, funcs);
+    }
+    for (String output: (outputs == null) ? Collections.singletonList(order.get(order.size() - 1))
+                                           : outputs) {
+      uses.merge(output, 1, Integer::sum);
+    }
+
+    /// Streams defined twice, or used before they are defined, are errors for the compiler to report.
+    if (! defined || nodes.size() < order.size()) return;
+    for (String name: new ArrayList<>(order)) {
+      if (nodes.get(name).opcode == OperationType.FILTER) {
+        pushDown(nodes.get(name));
+      }
+    }
+  }
+
+  /// Add the statement `ctx` to the plan. Returns whether its operands are defined before it.
+  private boolean addNode(PerfQueryParser.StreamStmtContext ctx,
+                          HashMap<String, PerfQueryParser.AggFunContext> funcs) {
+    Node node = new Node();
+    node.name = ctx.stream().getText();
+    Operation op = operation(ctx.streamQuery());
+    node.opcode = op.opcode;
+    node.operands = op.operands;
+    PerfQueryParser.StreamQueryContext query = ctx.streamQuery();
+    if (op.opcode == OperationType.FILTER) {
+      node.args = text(query.filter().predicate());
+      node.conjuncts = conjuncts(query.filter().predicate());
+    } else if (op.opcode == OperationType.PROJECT) {
+      node.args = text(query.map().columnList()) + ", " +
+                  text(query.map().exprList());
+      node.sets.addAll(ColumnExtractor.getColumns(query.map().columnList()));
+    } else if (op.opcode == OperationType.GROUPBY) {
+      node.args = text(query.groupby().columnList()) + ", " +
+                  query.groupby().aggFunc().getText();
+      node.keys.addAll(ColumnExtractor.getColumns(query.groupby().columnList()));
+      PerfQueryParser.AggFunContext fn = funcs.get(query.groupby().aggFunc().getText());
+      if (fn != null) {
+        node.sets.addAll(ProgramMerger.statesOf(fn));
+      }
+    }
+    for (String column: node.sets) {
+      writers.merge(column, 1, Integer::sum);
+    }
+    HashSet<String> inputFields = new HashSet<>();
+    boolean defined = true;
+    for (String operand: node.operands) {
+      uses.merge(operand, 1, Integer::sum);
+      if (schema.containsKey(operand)) {
+        inputFields.addAll(schema.get(operand));
+      } else {
+        defined = false;
+      }
+    }
+    HashSet<String> setFields = new HashSet<>(node.sets);
+    setFields.addAll(node.keys);
+    schema.put(node.name, PipeConstructor.getSchemaFields(op.opcode, inputFields, setFields));
+    nodes.put(node.name, node);
+    order.add(node.name);
+    return defined;
+  }
+
+  /// Operator and operands of `query`, as in ExprTreeCreator's dependency table
+  private static Operation operation(PerfQueryParser.StreamQueryContext query) {
+    ArrayList<String> operands = new ArrayList<>();
+    ParserRuleContext op = query.getChild(ParserRuleContext.class, 0);
+    for (PerfQueryParser.StreamContext stream:
+         op.getRuleContexts(PerfQueryParser.StreamContext.class)) {
+      operands.add(stream.getText());
+    }
+    if (op instanceof PerfQueryParser.FilterContext) {
+      return new Operation(OperationType.FILTER, operands);
+    } else if (op instanceof PerfQueryParser.MapContext) {
+      return new Operation(OperationType.PROJECT, operands);
+    } else if (op instanceof PerfQueryParser.GroupbyContext) {
+      return new Operation(OperationType.GROUPBY, operands);
+    } else {
+      return new Operation(OperationType.JOIN, operands);
+    }
+  }
+
+  /// Top-level conjuncts of `pred`
+  private List<Conjunct> conjuncts(PerfQueryParser.PredicateContext pred) {
+    List<Conjunct> res = new ArrayList<>();
+    ArrayDeque<PerfQueryParser.PredicateContext> pending = new ArrayDeque<>();
+    pending.push(pred);
+    while (! pending.isEmpty()) {
+      PerfQueryParser.PredicateContext p = pending.pop();
+      if (p instanceof PerfQueryParser.PredAndContext) {
+        pending.push(((PerfQueryParser.PredAndContext)p).predicate(1));
+        pending.push(((PerfQueryParser.PredAndContext)p).predicate(0));
+      } else if (p instanceof PerfQueryParser.PredParenContext &&
+                 ((PerfQueryParser.PredParenContext)p).predicate()
+                 instanceof PerfQueryParser.PredAndContext) {
+        pending.push(((PerfQueryParser.PredParenContext)p).predicate());
+      } else {
+        Conjunct c = new Conjunct();
+        c.text = (p instanceof PerfQueryParser.PredOrContext) ? "(" + text(p) + ")"
+                                                               : text(p);
+        c.columns = new HashSet<>(Utility.getAllTokens(p, PerfQueryParser.ID));
+        res.add(c);
+      }
+    }
+    return res;
+  }
+
+  /// Push the conjuncts of `filter` below its operand where they can go.
+  private void pushDown(Node filter) {
+    String below = filter.operands.get(0);
+    if (! movable(below)) return;
+    for (Conjunct c: filter.conjuncts) {
+      /// Leave columns that are not available for the compiler to report.
+      if (! schema.get(below).containsAll(c.columns)) return;
+    }
+    List<Conjunct> rest = new ArrayList<>();
+    for (Conjunct c: filter.conjuncts) {
+      Descent d = descend(nodes.get(below), c.columns);
+      if (d != null && d.belowGroupby) {
+        push(filter, d, c.text);
+      } else {
+        rest.add(c);
+      }
+    }
+    if (! rest.isEmpty()) {
+      HashSet<String> columns = new HashSet<>();
+      List<String> texts = new ArrayList<>();
+      for (Conjunct c: rest) {
+        columns.addAll(c.columns);
+        texts.add(c.text);
+      }
+      Descent d = descend(nodes.get(below), columns);
+      if (d == null) {
+        if (rest.size() < filter.conjuncts.size()) {
+          filter.args = String.join(" and ", texts);
+          filter.conjuncts = rest;
+        }
+        return;
+      }
+      push(filter, d, String.join(" and ", texts));
+    }
+    /// Nothing left to filter on: the stream below takes over the name of the filter.
+    Node renamed = nodes.remove(below);
+    order.remove(below);
+    uses.remove(below);
+    renamed.name = filter.name;
+    nodes.put(filter.name, renamed);
+  }
+
+  /// A stream whose operands can be rewired: a map, groupby or zip only used by one query
+  private boolean movable(String name) {
+    return ! name.equals(PKT_LOG) && uses.getOrDefault(name, 0) == 1 &&
+           nodes.get(name).opcode != OperationType.FILTER;
+  }
+
+  /// Operands of `node` that a predicate on `columns` can go into, as a filter between them and
+  /// `node`
+  private List<Integer> passable(Node node, Set<String> columns) {
+    List<Integer> res = new ArrayList<>();
+    switch (node.opcode) {
+      case PROJECT:
+        if (Collections.disjoint(columns, node.sets)) res.add(0);
+        break;
+      case GROUPBY:
+        if (node.keys.containsAll(columns) && Collections.disjoint(columns, node.sets)) res.add(0);
+        break;
+      case JOIN:
+        for (int i = 0; i < node.operands.size(); i++) {
+          List<String> operandSchema = schema.get(node.operands.get(i));
+          if (operandSchema != null && operandSchema.containsAll(columns)) res.add(i);
+        }
+        break;
+      default:
+        break;
+    }
+    return res;
+  }
+
+  /// How far below `top` a predicate on `columns` can go, or null if not even below `top`. At a zip,
+  /// the predicate goes into every operand where it gets below a groupby, or else into the first
+  /// operand it can go into.
+  private Descent descend(Node top, Set<String> columns) {
+    for (String column: columns) {
+      int n = writers.getOrDefault(column, 0);
+      if (n > 1 || (n == 1 && Fields.fields.contains(column))) return null;
+    }
+    if (passable(top, columns).isEmpty()) return null;
+    /// Explore every way down, then choose among them bottom-up.
+    List<Node> explored = new ArrayList<>();
+    HashMap<Node, List<Node>> children = new HashMap<>();
+    ArrayDeque<Node> pending = new ArrayDeque<>();
+    pending.push(top);
+    while (! pending.isEmpty()) {
+      Node node = pending.pop();
+      explored.add(node);
+      List<Node> below = new ArrayList<>();
+      for (int i: passable(node, columns)) {
+        String operand = node.operands.get(i);
+        Node child = movable(operand) ? nodes.get(operand) : null;
+        if (child != null && passable(child, columns).isEmpty()) child = null;
+        below.add(child);
+        if (child != null) pending.push(child);
+      }
+      children.put(node, below);
+    }
+    HashSet<Node> belowGroupby = new HashSet<>();
+    for (int n = explored.size() - 1; n >= 0; n--) {
+      Node node = explored.get(n);
+      boolean gain = node.opcode == OperationType.GROUPBY;
+      for (Node child: children.get(node)) {
+        gain |= belowGroupby.contains(child);
+      }
+      if (gain) belowGroupby.add(node);
+    }
+
+    Descent d = new Descent();
+    d.belowGroupby = belowGroupby.contains(top);
+    pending.push(top);
+    while (! pending.isEmpty()) {
+      Node node = pending.pop();
+      d.crossed.add(node);
+      List<Integer> operands = passable(node, columns);
+      List<Node> below = children.get(node);
+      List<Integer> chosen = new ArrayList<>();
+      for (int k = 0; k < operands.size(); k++) {
+        if (below.get(k) != null && belowGroupby.contains(below.get(k))) chosen.add(k);
+      }
+      if (chosen.isEmpty()) chosen.add(0);
+      for (int k: chosen) {
+        if (below.get(k) != null) {
+          pending.push(below.get(k));
+        } else {
+          d.consumers.add(node);
+          d.indices.add(operands.get(k));
+        }
+      }
+    }
+    return d;
+  }
+
+  /// Filter the operands of `d` on `pred`, a conjunction of conjuncts of `filter`.
+  private void push(Node filter, Descent d, String pred) {
+    for (int k = 0; k < d.consumers.size(); k++) {
+      Node consumer = d.consumers.get(k);
+      int index = d.indices.get(k);
+      String operand = consumer.operands.get(index);
+      Node pre = new Node();
+      pre.name = fresh(filter.name + "_" + operand);
+      pre.opcode = OperationType.FILTER;
+      pre.operands = new ArrayList<>(Collections.singletonList(operand));
+      pre.args = pred;
+      nodes.put(pre.name, pre);
+      order.add(order.indexOf(consumer.name), pre.name);
+      schema.put(pre.name, schema.get(operand));
+      uses.put(pre.name, 1);
+      consumer.operands.set(index, pre.name);
+    }
+    List<String> crossed = new ArrayList<>();
+    for (Node node: d.crossed) {
+      crossed.add(node.name);
+    }
+    pushed.add("Pushed " + pred + " of " + filter.name + " below " + crossed);
+  }
+
+  /// A stream name that the program does not use
+  private String fresh(String name) {
+    if (taken.isEmpty()) {
+      taken.addAll(Utility.getAllTokens(prog, PerfQueryParser.ID));
+    }
+    String res = name;
+    for (int i = 2; taken.contains(res); i++) {
+      res = name + "_" + i;
+    }
+    taken.add(res);
+    return res;
+  }
+
+  /// Whether the program was rewritten
+  public boolean changed() {
+    return ! pushed.isEmpty();
+  }
+
+  /// Parse tree of the optimized program: the original one if there was nothing to optimize
+  public PerfQueryParser.ProgContext getParseTree() {
+    return changed() ? Compiler.parse(new ANTLRInputStream(getProgram())) : prog;
+  }
+
+  /// Text of the optimized program
+  public String getProgram() {
+    if (! changed()) return text(prog);
+    StringBuilder sb = new StringBuilder(funcText);
+    for (String name: order) {
+      Node node = nodes.get(name);
+      sb.append(name).append(" = ").append(keyword(node.opcode)).append("(")
+        .append(String.join(", ", node.operands));
+      if (node.args != null) {
+        sb.append(", ").append(node.args);
+      }
+      sb.append(");\n");
+    }
+    return sb.toString();
+  }
+
+  /// Source text of `ctx`, as written in the program
+  private static String text(ParserRuleContext ctx) {
+    return ctx.start.getInputStream().getText(
+        Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+  }
+
+  private static String keyword(OperationType opcode) {
+    switch (opcode) {
+      case FILTER:  return "filter";
+      case PROJECT: return "map";
+      case GROUPBY: return "groupby";
+      case JOIN:    return "zip";
+      default:
+        throw new RuntimeException("Unexpected operation " + opcode + " in the query plan");
+    }
+  }
+
+  public String report() {
+    if (pushed.isEmpty()) return "No filter to push down";
+    return String.join("\n", pushed);
+  }
+}
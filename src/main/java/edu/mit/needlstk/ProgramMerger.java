@@ -0,0 +1,231 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/// Merge several query programs into one, so that their common subqueries are compiled, and run,
+/// only once. Programs are merged statement by statement, in order: a stream statement is shared
+/// with an earlier one (of any program) if both are structurally identical, i.e., they have the
+/// same operator and operands, and the same predicate, expressions, key fields or aggregation
+/// function body, up to the names they define. The shared statement's stream, map columns and
+/// state variables then stand for the ones it replaces in the rest of the program. Statements that
+/// are not shared are copied into the merged program, with the names they define prefixed by the
+/// name of the program (e.g., q1_R2) so that programs cannot clash; aggregation functions are
+/// copied along with the groupbys that use them. The merged program has one output stream per
+/// program (see getOutputs()), which PipeConstructor.stitchPipe(List) stitches into one pipeline.
+///
+/// Structural identity is decided on each program's ExprTreeCreator.getDepTable() (operator and
+/// operands) together with the tokens of the statement, so for instance map(T, [e], [tin/128]) and
+/// map(T, [epoch], [tin / 128]) are shared, but map(T, [epoch], [128/tin]) is not.
+public class ProgramMerger {
+  /// A stream statement of the merged program
+  private static class Stmt {
+    String stream;
+    /// Map columns, or state variables of the aggregation function, in order
+    List<String> defined = new ArrayList<>();
+    /// Aggregation function of a groupby
+    String aggFunc;
+  }
+
+  /// Statements of the merged program by structure
+  private HashMap<String, Stmt> stmts = new HashMap<>();
+  /// Every name defined so far in the merged program
+  private HashSet<String> taken = new HashSet<>();
+  private StringBuilder funcText = new StringBuilder();
+  private StringBuilder stmtText = new StringBuilder();
+  private ArrayList<String> outputs = new ArrayList<>();
+  private int numStmts = 0;
+  private int numShared = 0;
+
+  /// Per-program state: the tokens of the program, and the name each program identifier stands for
+  /// in the merged program
+  private CommonTokenStream tokens;
+  private HashMap<String, String> rename;
+
+  /// Add a program to the merged program. The first program keeps its names; later programs are
+  /// prefixed with `prefix` + "_".
+  public void addProgram(CharStream input, String prefix) {
+    PerfQueryLexer lexer = new PerfQueryLexer(input);
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(new ThrowingErrorListener());
+    this.tokens = new CommonTokenStream(lexer);
+    PerfQueryParser parser = new PerfQueryParser(tokens);
+    parser.removeErrorListeners();
+    parser.addErrorListener(new ThrowingErrorListener());
+    PerfQueryParser.ProgContext prog = parser.prog();
+    /// Operators and operands, as the compiler sees them
+    ParseTreeWalker walker = new ParseTreeWalker();
+    SymbolTableCreator symbolTableCreator = new SymbolTableCreator();
+    walker.walk(symbolTableCreator, prog);
+    ExprTreeCreator exprTreeCreator = new ExprTreeCreator(PerfQueryParser.ID,
+                                                          symbolTableCreator.symbolTable());
+    walker.walk(exprTreeCreator, prog);
+    HashMap<String, Operation> depTable = exprTreeCreator.getDepTable();
+    HashMap<String, PerfQueryParser.AggFunContext> funcs = new HashMap<>();
+    for (PerfQueryParser.AggFunContext fn: prog.aggFun()) {
+      funcs.put(fn.aggFunc().getText(), fn);
+    }
+    this.rename = new HashMap<>();
+    String namePrefix = outputs.isEmpty() ? "" : prefix + "_";
+    String last = null;
+    for (PerfQueryParser.StreamStmtContext ctx: prog.streamStmt()) {
+      String stream = ctx.stream().getText();
+      addStmt(stream, depTable.get(stream), ctx.streamQuery(), funcs, namePrefix);
+      last = stream;
+    }
+    outputs.add(rename.get(last));
+  }
+
+  private void addStmt(String stream, Operation op, PerfQueryParser.StreamQueryContext query,
+                       HashMap<String, PerfQueryParser.AggFunContext> funcs, String prefix) {
+    numStmts++;
+    /// Structure of the statement, with operands and used columns replaced by what they stand for.
+    String structure = op.opcode + " " + text(query, null);
+    List<String> defined = new ArrayList<>();
+    PerfQueryParser.AggFunContext fn = null;
+    if (op.opcode == OperationType.PROJECT) {
+      PerfQueryParser.MapContext map = query.map();
+      defined = ColumnExtractor.getColumns(map.columnList());
+      /// Columns are named by position.
+      structure = op.opcode + " " + text(map.stream(), null) + " " + text(map.exprList(), null);
+    } else if (op.opcode == OperationType.GROUPBY) {
+      PerfQueryParser.GroupbyContext groupby = query.groupby();
+      fn = funcs.get(groupby.aggFunc().getText());
+      if (fn == null) {
+        throw new RuntimeException("Aggregation function " + groupby.aggFunc().getText() +
+                                   " of " + stream + " is not defined");
+      }
+      defined = statesOf(fn);
+      /// State variables are named by position, and the function by its body.
+      HashMap<String, String> positional = new HashMap<>();
+      for (int i = 0; i < defined.size(); i++) {
+        positional.put(defined.get(i), "$" + i);
+      }
+      positional.put(fn.aggFunc().getText(), "$f");
+      structure = op.opcode + " " + text(groupby.stream(), null) + " " +
+                  text(groupby.columnList(), null) + " " + text(fn, positional);
+    }
+
+    Stmt shared = stmts.get(structure);
+    if (shared != null) {
+      numShared++;
+      rename.put(stream, shared.stream);
+      for (int i = 0; i < defined.size(); i++) {
+        rename.put(defined.get(i), shared.defined.get(i));
+      }
+      if (fn != null) {
+        rename.put(fn.aggFunc().getText(), shared.aggFunc);
+      }
+      return;
+    }
+    Stmt stmt = new Stmt();
+    /// Names of this statement, in the merged program
+    HashMap<String, String> own = new HashMap<>();
+    for (String name: defined) {
+      own.put(name, fresh(prefix + name));
+    }
+    if (fn != null) {
+      stmt.aggFunc = fresh(prefix + fn.aggFunc().getText());
+      own.put(fn.aggFunc().getText(), stmt.aggFunc);
+      funcText.append(text(fn, own)).append("\n\n");
+    }
+    stmt.stream = fresh(prefix + stream);
+    own.put(stream, stmt.stream);
+    for (String name: defined) {
+      stmt.defined.add(own.get(name));
+    }
+    /// Used names are renamed before the statement's own names take effect, as a map may redefine a
+    /// column it uses (e.g., map(R1, [x], [x+1])).
+    String body;
+    if (op.opcode == OperationType.PROJECT) {
+      PerfQueryParser.MapContext map = query.map();
+      body = "map ( " + text(map.stream(), null) + " , " + text(map.columnList(), own) + " , " +
+             text(map.exprList(), null) + " )";
+    } else if (fn != null) {
+      HashMap<String, String> aggFunc = new HashMap<>();
+      aggFunc.put(fn.aggFunc().getText(), stmt.aggFunc);
+      body = text(query, aggFunc);
+    } else {
+      body = text(query, null);
+    }
+    rename.putAll(own);
+    stmtText.append(stmt.stream).append(" = ").append(body).append(";\n");
+    stmts.put(structure, stmt);
+  }
+
+  /// A name for the merged program that no other statement uses
+  private String fresh(String name) {
+    String res = name;
+    for (int i = 2; taken.contains(res) || res.equals("T"); i++) {
+      res = name + "_" + i;
+    }
+    taken.add(res);
+    return res;
+  }
+
+  /// State variables of an aggregation function, in order
+  static List<String> statesOf(PerfQueryParser.AggFunContext fn) {
+    List<String> states = new ArrayList<>();
+    for (PerfQueryParser.StateContext s: new StateCollector().collect(fn.stateList())) {
+      states.add(s.getText());
+    }
+    return states;
+  }
+
+  /// Collects the state variables of a state list
+  private static class StateCollector extends PerfQueryBaseVisitor<Void> {
+    private List<PerfQueryParser.StateContext> states = new ArrayList<>();
+
+    List<PerfQueryParser.StateContext> collect(PerfQueryParser.StateListContext ctx) {
+      visit(ctx);
+      return states;
+    }
+
+    @Override public Void visitState(PerfQueryParser.StateContext ctx) {
+      states.add(ctx);
+      return null;
+    }
+  }
+
+  /// Tokens of `ctx` separated by spaces, with identifiers renamed by `names` if they are in it,
+  /// and otherwise by what they stand for in the program so far.
+  private String text(ParserRuleContext ctx, HashMap<String, String> names) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = ctx.getStart().getTokenIndex(); i <= ctx.getStop().getTokenIndex(); i++) {
+      Token t = tokens.get(i);
+      if (t.getChannel() != Token.DEFAULT_CHANNEL) continue;
+      if (sb.length() > 0) sb.append(' ');
+      String txt = t.getText();
+      if (t.getType() == PerfQueryLexer.ID) {
+        if (names != null && names.containsKey(txt)) {
+          txt = names.get(txt);
+        } else if (rename.containsKey(txt)) {
+          txt = rename.get(txt);
+        }
+      }
+      sb.append(txt);
+    }
+    return sb.toString();
+  }
+
+  /// The merged program
+  public String getProgram() {
+    return funcText.toString() + stmtText.toString();
+  }
+
+  /// Output stream of each program in the merged program, in the order the programs were added
+  public List<String> getOutputs() {
+    return outputs;
+  }
+
+  public String report() {
+    return String.format("Merged %d programs: %d stream statements, %d of them shared with an " +
+                         "earlier statement", outputs.size(), numStmts, numShared);
+  }
+}
@@ -0,0 +1,145 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+
+/// Derive the queueing fields of packets that only carry an arrival time, e.g., those synthesized
+/// from a packet capture (see PcapPacketSource). Packets of the upstream source are fed, in order,
+/// through a single drop-tail FIFO queue that drains `bytesPerTick` bytes of pktlen per tick of tin.
+/// For each packet:
+///  - qin is the number of packets in the queue when it arrives;
+///  - tout is the tick at which its last byte leaves the queue, and qtime = tout - tin;
+///  - qout is the number of packets in the queue when it leaves.
+/// A packet that finds `capacity` packets in the queue is dropped: its tout and qtime are infinity,
+/// and its qout is 0.
+///
+/// qout depends on later arrivals, so packets are held back until the next arrival is no earlier
+/// than their departure; the packets held back are those in the queue and the drops among them, so
+/// the lag is bounded by the arrivals during one queueing delay.
+public class QueueModel implements PacketSource {
+  private PacketSource upstream;
+  private double bytesPerTick;
+  private int capacity;
+
+  /// Packets held back, oldest first, in a circular buffer of tuples
+  private int[][] held = new int[64][];
+  /// Position of each held packet among the packets that entered the queue
+  private long[] heldOrd = new long[64];
+  private int head = 0;
+  private int numHeld = 0;
+  /// Next upstream packet, or null if it has not been read yet
+  private int[] lookahead;
+  private int[] spare;
+  private boolean exhausted = false;
+
+  /// Number of packets in the queue, and number of packets that entered it so far
+  private int queued = 0;
+  private long enqueued = 0;
+  /// Departure time of the last packet that entered the queue, in ticks
+  private double lastDeparture = Double.NEGATIVE_INFINITY;
+  private long drops = 0;
+  private int maxQueued = 0;
+
+  private int tinSlot = Fields.fields.indexOf(Fields.tinHdr);
+  private int toutSlot = Fields.fields.indexOf(Fields.toutHdr);
+  private int pktlenSlot = Fields.fields.indexOf(Fields.pktlenHdr);
+  private int qinSlot = Fields.fields.indexOf(Fields.qinHdr);
+  private int qoutSlot = Fields.fields.indexOf(Fields.qoutHdr);
+  private int qtimeSlot = Fields.fields.indexOf(Fields.qtimeHdr);
+
+  /// A capacity of 0 means that the queue is unbounded.
+  public QueueModel(PacketSource upstream, double bytesPerTick, int capacity) {
+    if (bytesPerTick <= 0) {
+      throw new RuntimeException("Queue drain rate must be positive");
+    }
+    this.upstream = upstream;
+    this.bytesPerTick = bytesPerTick;
+    this.capacity = capacity;
+    this.spare = new int[Fields.fields.size()];
+    for (int i = 0; i < held.length; i++) {
+      held[i] = new int[Fields.fields.size()];
+    }
+  }
+
+  /// Drain rate for a link of `bitsPerSecond`, with ticks of `tickNanos` nanoseconds
+  public static double bytesPerTick(double bitsPerSecond, long tickNanos) {
+    return bitsPerSecond / 8 * tickNanos / 1e9;
+  }
+
+  public boolean next(int[] tuple) throws IOException {
+    while (true) {
+      if (lookahead == null && ! exhausted) {
+        if (upstream.next(spare)) {
+          lookahead = spare;
+        } else {
+          exhausted = true;
+        }
+      }
+      if (numHeld > 0) {
+        int[] first = held[head];
+        boolean dropped = (first[toutSlot] == AugExpr.EXPR_INFINITY);
+        if (exhausted || dropped || first[toutSlot] <= lookahead[tinSlot]) {
+          System.arraycopy(first, 0, tuple, 0, first.length);
+          if (! dropped) {
+            tuple[qoutSlot] = (int)(enqueued - 1 - heldOrd[head]);
+            queued--;
+          }
+          head = (head + 1) % held.length;
+          numHeld--;
+          return true;
+        }
+      }
+      if (exhausted) return false;
+      enqueue();
+    }
+  }
+
+  /// Move the lookahead packet into the queue, or drop it.
+  private void enqueue() {
+    int[] pkt = lookahead;
+    pkt[qinSlot] = queued;
+    pkt[qoutSlot] = 0;
+    if (capacity > 0 && queued >= capacity) {
+      pkt[toutSlot] = AugExpr.EXPR_INFINITY;
+      pkt[qtimeSlot] = AugExpr.EXPR_INFINITY;
+      drops++;
+    } else {
+      lastDeparture = Math.max(pkt[tinSlot], lastDeparture) + pkt[pktlenSlot] / bytesPerTick;
+      pkt[toutSlot] = (int)Math.ceil(lastDeparture);
+      pkt[qtimeSlot] = pkt[toutSlot] - pkt[tinSlot];
+      queued++;
+      maxQueued = Math.max(maxQueued, queued);
+    }
+    if (numHeld == held.length) {
+      grow();
+    }
+    int tail = (head + numHeld) % held.length;
+    heldOrd[tail] = (pkt[toutSlot] == AugExpr.EXPR_INFINITY) ? -1 : enqueued++;
+    /// Swap the tuple into the ring rather than copying it.
+    spare = held[tail];
+    held[tail] = pkt;
+    numHeld++;
+    lookahead = null;
+  }
+
+  private void grow() {
+    int[][] bigger = new int[2 * held.length][];
+    long[] biggerOrd = new long[2 * held.length];
+    for (int i = 0; i < held.length; i++) {
+      bigger[i] = held[(head + i) % held.length];
+      biggerOrd[i] = heldOrd[(head + i) % held.length];
+    }
+    for (int i = held.length; i < bigger.length; i++) {
+      bigger[i] = new int[Fields.fields.size()];
+    }
+    held = bigger;
+    heldOrd = biggerOrd;
+    head = 0;
+  }
+
+  public long getDrops() {
+    return drops;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+}
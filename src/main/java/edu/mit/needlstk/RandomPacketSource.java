@@ -0,0 +1,24 @@
+package edu.mit.needlstk;
+import java.util.Random;
+
+/// Packet source that draws every field uniformly from 1..65536, like randomTuple() in the code
+/// emitted by PythonCodeGenerator. Useful for smoke-testing queries without a packet log.
+public class RandomPacketSource implements PacketSource {
+  private static int MAX_VALUE = 65536;
+  private Random rng;
+  private long remaining;
+
+  public RandomPacketSource(long count, long seed) {
+    this.rng = new Random(seed);
+    this.remaining = count;
+  }
+
+  public boolean next(int[] tuple) {
+    if (remaining <= 0) return false;
+    remaining--;
+    for (int i = 0; i < Fields.fields.size(); i++) {
+      tuple[i] = 1 + rng.nextInt(MAX_VALUE);
+    }
+    return true;
+  }
+}
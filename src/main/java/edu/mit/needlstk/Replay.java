@@ -0,0 +1,274 @@
+package edu.mit.needlstk;
+import org.antlr.v4.runtime.ANTLRFileStream;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Compile a query program and run it in the software execution engine over a packet log.
+public class Replay {
+  private static String USAGE =
+      "Usage: Replay query.sql [query.sql ...] [packet_log.txt ...] [-n num_random_packets]\n" +
+      "       [-seed s] [-print] [-threads num_threads]\n" +
+      "       [-tables] [-interp] [-batch batch_size] [-cache table_size] [-shards num_threads]\n" +
+      "       [-partial num_threads] [-annotate field=value,...] [-tick nanoseconds]\n" +
+      "       [-queue megabits_per_second[,capacity]] [-traffic key=value,...] [-chaos scenario]\n" +
+      "       [-expire lag_epochs] [-pipeline num_threads] [-merge]\n" +
+      "Packet logs are text (one packet per line), binary (see BinaryPacketLogWriter), or\n" +
+      "packet captures in pcap or pcapng format (see PcapPacketSource).\n" +
+      "Without a packet log, random packets are generated (1000 by default): with -traffic, from\n" +
+      "flows, paths and queues set up as in TrafficGenerator.Config, e.g.,\n" +
+      "-traffic flows=1000,zipf=1.2,hops=3; otherwise with every field uniformly random.\n" +
+      "-chaos adds one of the scenarios of ChaosMonkey to the traffic of -traffic, and prints what\n" +
+      "it injected once the run completes.\n" +
+      "-interp interprets stage code instead of compiling it to JVM bytecode.\n" +
+      "-batch processes packets in columnar batches instead of one at a time.\n" +
+      "-cache runs groupbys on a simulation of the switch's hash-indexed register table, of the\n" +
+      "given size (as compiled by Compiler -table-size), and reports evictions (per second of the\n" +
+      "trace's tin, in -tick units) and accuracy against an exact table.\n" +
+      "-shards partitions packets on the groupby key across worker threads (queries whose groupbys\n" +
+      "share a packet-log key field only).\n" +
+      "-pipeline splits the stages into groups of about the same cost, each run on its own thread\n" +
+      "on batches of packets (of -batch packets, 1024 by default) handed on through lock-free\n" +
+      "rings.\n" +
+      "-partial aggregates parts of the input on separate threads and merges the partial states\n" +
+      "(assoc folds only). With several packet logs, each log is one part, in order.\n" +
+      "-tables prints the final state of every groupby.\n" +
+      "With several queries, the packets are read once and every query runs over them, as tasks\n" +
+      "on -threads threads (one per processor by default), on batches of -batch packets.\n" +
+      "-merge merges several queries into one program instead (see ProgramMerger), so that their\n" +
+      "common subqueries run once, and runs it as a single query with one output per query.\n" +
+      "-expire frees the state of groupbys keyed on an epoch derived from tin (e.g., tin/128) once\n" +
+      "the epoch is more than lag_epochs behind the latest one; with -tables, keys are printed as\n" +
+      "they expire.\n" +
+      "For packet captures, -annotate sets fields that are not in packet headers (e.g., switch,\n" +
+      "qid), -tick sets the unit of tin (microseconds by default), and -queue derives tout, qin,\n" +
+      "qout and qtime from a drop-tail FIFO queue of the given rate and capacity (in packets).";
+
+  /// Options for packet captures
+  private static Map<String, Integer> annotations = new HashMap<>();
+  private static long tickNanos = 1000;
+  private static double queueMbps = 0;
+  private static int queueCapacity = 0;
+  /// Chaos scenario generating the packets, if any
+  private static ChaosMonkey.Scenario scenario = null;
+
+  public static void main(String[] args) throws Exception {
+    String queryFile = null;
+    List<String> queryFiles = new ArrayList<>();
+    List<String> logFiles = new ArrayList<>();
+    long numRandom = 1000;
+    long seed = 0;
+    boolean printResults = false;
+    boolean compiled = true;
+    int batchSize = 0;
+    int cacheSize = 0;
+    int numShards = 0;
+    int numPartial = 0;
+    boolean printTables = false;
+    String trafficSpec = null;
+    String chaos = null;
+    int expireLag = -1;
+    int numPipelined = 0;
+    boolean merge = false;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-n")) {
+        numRandom = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-seed")) {
+        seed = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-print")) {
+        printResults = true;
+      } else if (args[i].equals("-batch")) {
+        batchSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-cache")) {
+        cacheSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-shards")) {
+        numShards = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-partial")) {
+        numPartial = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-tables")) {
+        printTables = true;
+      } else if (args[i].equals("-annotate")) {
+        for (String ann: args[++i].split(",")) {
+          String[] fv = ann.split("=");
+          annotations.put(fv[0], Integer.parseInt(fv[1]));
+        }
+      } else if (args[i].equals("-tick")) {
+        tickNanos = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-queue")) {
+        String[] rc = args[++i].split(",");
+        queueMbps = Double.parseDouble(rc[0]);
+        queueCapacity = (rc.length > 1) ? Integer.parseInt(rc[1]) : 0;
+      } else if (args[i].equals("-traffic")) {
+        trafficSpec = args[++i];
+      } else if (args[i].equals("-chaos")) {
+        chaos = args[++i];
+      } else if (args[i].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-pipeline")) {
+        numPipelined = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-expire")) {
+        expireLag = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-merge")) {
+        merge = true;
+      } else if (args[i].equals("-interp")) {
+        compiled = false;
+      } else if (queryFile == null) {
+        queryFile = args[i];
+        queryFiles.add(args[i]);
+      } else if (args[i].endsWith(".sql")) {
+        queryFiles.add(args[i]);
+      } else {
+        logFiles.add(args[i]);
+      }
+    }
+    if (queryFile == null || (logFiles.size() > 1 && numPartial == 0) ||
+        (expireLag >= 0 && (numPartial > 0 || numShards > 0 || cacheSize > 0)) ||
+        (numPipelined > 0 && (numPartial > 0 || numShards > 0 || cacheSize > 0 || expireLag >= 0)) ||
+        (queryFiles.size() > 1 && ! merge && (numPartial > 0 || numShards > 0 || cacheSize > 0 ||
+                                              expireLag >= 0 || numPipelined > 0)) ||
+        (merge && (numPartial > 0 || numShards > 0))) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    if (queryFiles.size() > 1 && ! merge) {
+      List<PipeConstructor> pipes = new ArrayList<>();
+      for (String file: queryFiles) {
+        pipes.add(Compiler.buildPipe(new ANTLRFileStream(file)));
+      }
+      MultiQueryEngine multi = new MultiQueryEngine(queryFiles, pipes, compiled, numThreads,
+                                                    (batchSize > 0) ? batchSize : 1024);
+      if (printResults) multi.setResultOutput(System.out);
+      multi.run(openSource(logFiles, numRandom, seed, trafficSpec, chaos));
+      System.out.println(multi.report());
+      if (printTables) multi.printTables(System.out);
+      if (scenario != null) {
+        System.out.println(scenario.groundTruth());
+      }
+      return;
+    }
+
+    /// With -cache, groupbys are compiled for, and simulated on, tables of cacheSize entries.
+    Compiler.Options options = new Compiler.Options();
+    if (cacheSize > 0) {
+      options.tableSize = cacheSize;
+    }
+    PipeConstructor pc;
+    if (merge) {
+      ProgramMerger merger = Compiler.mergePrograms(queryFiles);
+      pc = Compiler.buildPipe(new ANTLRInputStream(merger.getProgram()), merger.getOutputs(),
+                              options);
+      System.out.println(merger.report());
+      for (int q = 0; q < queryFiles.size(); q++) {
+        System.out.println("Output of " + queryFiles.get(q) + ": " + merger.getOutputs().get(q));
+      }
+    } else {
+      pc = Compiler.buildPipe(new ANTLRFileStream(queryFile), options);
+    }
+    if (numPartial > 0) {
+      String problem = PartialAggregationEngine.mergeProblem(pc.getPipe());
+      if (problem != null) {
+        System.err.println("-partial: " + problem + ", so partial states cannot be merged.\n" +
+                           USAGE);
+        System.exit(1);
+      }
+      PartialAggregationEngine partial = new PartialAggregationEngine(pc, compiled);
+      if (logFiles.size() > 1) {
+        List<PacketSource> parts = new ArrayList<>();
+        for (String logFile: logFiles) {
+          parts.add(openLog(logFile));
+        }
+        partial.run(parts);
+      } else {
+        partial.run(openSource(logFiles, numRandom, seed, trafficSpec, chaos), numPartial);
+      }
+      System.out.println(partial.report());
+      if (printTables) partial.printTables(System.out);
+    } else if (numShards > 0) {
+      if (! ShardedStreamEngine.isShardable(pc.getPipe())) {
+        System.err.println("-shards: the groupbys of the query share no packet-log key field, so" +
+                           " its packets cannot be partitioned across threads.\n" + USAGE);
+        System.exit(1);
+      }
+      ShardedStreamEngine sharded = new ShardedStreamEngine(pc, compiled, numShards);
+      if (printResults) {
+        System.out.println("Result fields: " + sharded.getResultFields());
+        sharded.setResultOutput(System.out);
+      }
+      sharded.run(openSource(logFiles, numRandom, seed, trafficSpec, chaos));
+      System.out.println(sharded.report());
+      if (printTables) sharded.printTables(System.out);
+    } else if (numPipelined > 0) {
+      PipelinedStreamEngine pipelined = new PipelinedStreamEngine(
+          pc, compiled, numPipelined, (batchSize > 0) ? batchSize : 1024);
+      if (printResults) {
+        System.out.println("Result fields: " + pipelined.getResultFields());
+        pipelined.setResultOutput(System.out);
+      }
+      pipelined.run(openSource(logFiles, numRandom, seed, trafficSpec, chaos));
+      System.out.println(pipelined.report());
+      if (printTables) pipelined.printTables(System.out);
+    } else {
+      PacketSource src = openSource(logFiles, numRandom, seed, trafficSpec, chaos);
+      StreamEngine engine = (expireLag >= 0) ?
+          new StreamEngine(pc, compiled, ExpiringGroupbyRunner.factory(
+              pc.getPipe(), expireLag, printTables ? System.out : null)) :
+          new StreamEngine(pc, compiled, cacheSize > 0);
+      engine.setTickNanos(tickNanos);
+      if (printResults) {
+        for (int q = 0; q < engine.getOutputQueries().size(); q++) {
+          System.out.println("Result fields" +
+                             (merge ? " of " + engine.getOutputQueries().get(q) : "") +
+                             ": " + engine.getResultFields(q));
+        }
+        engine.setResultOutput(System.out);
+      }
+      if (batchSize > 0) {
+        engine.runBatched(src, batchSize);
+      } else {
+        engine.run(src);
+      }
+      System.out.println(engine.report());
+      if (printTables) engine.printTables(System.out);
+    }
+    if (scenario != null) {
+      System.out.println(scenario.groundTruth());
+    }
+  }
+
+  private static PacketSource openSource(List<String> logFiles, long numRandom, long seed,
+                                         String trafficSpec, String chaos) throws Exception {
+    if (! logFiles.isEmpty()) {
+      return openLog(logFiles.get(0));
+    } else if (chaos != null) {
+      TrafficGenerator.Config config = TrafficGenerator.Config.parse(
+          (trafficSpec == null) ? "" : trafficSpec);
+      scenario = ChaosMonkey.create(chaos, config, numRandom, seed);
+      return scenario.getGenerator();
+    } else if (trafficSpec != null) {
+      return new TrafficGenerator(TrafficGenerator.Config.parse(trafficSpec), numRandom, seed);
+    }
+    return new RandomPacketSource(numRandom, seed);
+  }
+
+  /// Binary packet logs (see BinaryPacketLogWriter) and packet captures are recognized by their
+  /// magic number; anything else is read as a text log.
+  private static PacketSource openLog(String path) throws Exception {
+    if (MappedPacketLog.isBinaryLog(path)) {
+      return new MappedPacketLog(path);
+    } else if (PcapPacketSource.isCapture(path)) {
+      PcapPacketSource capture = new PcapPacketSource(path, annotations);
+      capture.setTickNanos(tickNanos);
+      if (queueMbps > 0) {
+        return new QueueModel(capture, QueueModel.bytesPerTick(queueMbps * 1e6, tickNanos),
+                              queueCapacity);
+      }
+      return capture;
+    }
+    return new TextPacketSource(new FileReader(path));
+  }
+}
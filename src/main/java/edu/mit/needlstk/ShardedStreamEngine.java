@@ -0,0 +1,341 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/// Run a pipeline on several threads by partitioning packets on the hash of a shard key: packet-log
+/// fields that are part of the key of every groupby in the pipeline. All packets of a groupby key
+/// then go to the same worker, in their original order, so every fold (associative or not, e.g.,
+/// fl_detect or ewma) computes exactly what the sequential StreamEngine computes. Each worker runs a
+/// private StreamEngine with its own groupby tables; the reading thread hands packets over in
+/// chunks through bounded queues, so no lock is taken per packet.
+public class ShardedStreamEngine {
+  private static int CHUNK_SIZE = 1024;
+  private static int QUEUE_DEPTH = 8;
+
+  private int numShards;
+  /// Slots (= Fields.fields indices) of the shard key fields
+  private int[] shardSlots;
+  private List<String> shardKey;
+  private ArrayList<Worker> workers;
+  private PrintStream resultOut;
+
+  private long packets;
+  private long results;
+  private long elapsedNanos;
+
+  /// A run of packets handed to one worker: the packet-log fields of each packet, and its position
+  /// in the source (to restore the sequential order of results).
+  private static class Chunk {
+    int size;
+    int[] tuples = new int[CHUNK_SIZE * SlotLayout.numFields()];
+    long[] seqs = new long[CHUNK_SIZE];
+  }
+
+  /// A result tuple and the position of the packet that produced it
+  private static class Result {
+    long seq;
+    String tuple;
+    Result(long seq, String tuple) {
+      this.seq = seq;
+      this.tuple = tuple;
+    }
+  }
+
+  private class Worker extends Thread {
+    StreamEngine engine;
+    BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_DEPTH + 1);
+    /// Chunk being filled by the reading thread
+    Chunk filling;
+    long packets;
+    long results;
+    /// Results not printed yet, in the order of their packets
+    ConcurrentLinkedQueue<Result> pending = new ConcurrentLinkedQueue<>();
+    /// Position of the last packet processed, and of the last packet handed over (-1 if none); set
+    /// once the results of the packet are pending.
+    volatile long processedSeq = -1;
+    long handedSeq = -1;
+    Throwable failure;
+
+    Worker(StreamEngine engine, int index) {
+      super("shard-" + index);
+      this.engine = engine;
+      for (int i = 0; i < QUEUE_DEPTH + 1; i++) {
+        free.add(new Chunk());
+      }
+    }
+
+    @Override public void run() {
+      int[] frame = engine.newFrame();
+      int numFields = SlotLayout.numFields();
+      try {
+        while (true) {
+          Chunk chunk = full.take();
+          if (chunk.size < 0) break;
+          if (failure == null) {
+            try {
+              for (int i = 0; i < chunk.size; i++) {
+                System.arraycopy(chunk.tuples, i * numFields, frame, 0, numFields);
+                packets++;
+                if (engine.process(frame)) {
+                  results++;
+                  if (resultOut != null) {
+                    pending.add(new Result(chunk.seqs[i], engine.formatResult(frame)));
+                  }
+                }
+              }
+              processedSeq = chunk.seqs[chunk.size - 1];
+            } catch (RuntimeException | Error e) {
+              /// Keep recycling chunks so that the reading thread does not block; the failure is
+              /// reported once the run completes.
+              failure = e;
+            }
+          }
+          free.put(chunk);
+        }
+      } catch (InterruptedException e) {
+        failure = e;
+      }
+    }
+
+    /// Whether the worker can no longer produce results for packets before position `seq`, given
+    /// the value `processed` of processedSeq read before its pending results. Called by the reading
+    /// thread, which hands packets over.
+    boolean isPast(long seq, long processed) {
+      return processed >= seq ||
+             (processed == handedSeq && (filling == null || filling.seqs[0] > seq));
+    }
+  }
+
+  public ShardedStreamEngine(PipeConstructor pc, boolean compiled, int numShards) {
+    ArrayList<PipeStage> pipe = pc.getPipe();
+    this.numShards = numShards;
+    this.shardKey = shardKeyOf(pipe);
+    this.shardSlots = new int[shardKey.size()];
+    for (int i = 0; i < shardSlots.length; i++) {
+      shardSlots[i] = Fields.fields.indexOf(shardKey.get(i));
+    }
+    this.workers = new ArrayList<>();
+    for (int i = 0; i < numShards; i++) {
+      workers.add(new Worker(new StreamEngine(pipe, pc.getLastAssignedId(), compiled), i));
+    }
+  }
+
+  /// Packet-log fields in the key of every groupby of the pipeline, which no stage redefines. Throws
+  /// if there are none, since the pipeline can then not be partitioned without changing its result.
+  public static List<String> shardKeyOf(ArrayList<PipeStage> pipe) {
+    List<String> key = commonKeyOf(pipe);
+    if (key.isEmpty()) {
+      throw new RuntimeException("Groupby stages of the pipeline share no packet-log key field;" +
+                                 " it cannot be sharded.");
+    }
+    return key;
+  }
+
+  /// Whether the pipeline can be partitioned without changing its result (see shardKeyOf()).
+  public static boolean isShardable(ArrayList<PipeStage> pipe) {
+    return ! commonKeyOf(pipe).isEmpty();
+  }
+
+  private static List<String> commonKeyOf(ArrayList<PipeStage> pipe) {
+    List<String> key = new ArrayList<>(Fields.fields);
+    boolean hasGroupby = false;
+    for (PipeStage stage: pipe) {
+      PipeConfigInfo ci = stage.getConfigInfo();
+      for (ThreeOpCode code: new ThreeOpCode[] {ci.getPreamble(), ci.getCode(), ci.getPostamble()}) {
+        for (ThreeOpStmt stmt: code.getStmts()) {
+          if (! stmt.isEmit()) {
+            key.remove(stmt.getDefinedVar());
+          }
+        }
+      }
+      if (stage.getOp() == OperationType.GROUPBY) {
+        hasGroupby = true;
+        key.retainAll(((FoldConfigInfo)ci).getKeyFields());
+      }
+    }
+    if (! hasGroupby) {
+      /// Stateless pipelines can be partitioned arbitrarily.
+      return Fields.fields;
+    }
+    return key;
+  }
+
+  /// Print every result tuple to `out`, in the order of the sequential run. Results are printed as
+  /// the run goes, once no worker can produce an earlier one, so that only the results of the
+  /// packets in flight are held in memory.
+  public void setResultOutput(PrintStream out) {
+    this.resultOut = out;
+  }
+
+  public List<String> getShardKey() {
+    return shardKey;
+  }
+
+  /// Run the pipeline over every packet of `src`, and record throughput statistics. Worker threads
+  /// are started here, so an engine can only run once.
+  public void run(PacketSource src) throws IOException {
+    int numFields = SlotLayout.numFields();
+    int[] tuple = new int[numFields];
+    int[] key = new int[shardSlots.length];
+    long start = System.nanoTime();
+    for (Worker w: workers) {
+      w.start();
+    }
+    try {
+      long seq = 0;
+      while (src.next(tuple)) {
+        for (int i = 0; i < shardSlots.length; i++) {
+          key[i] = tuple[shardSlots[i]];
+        }
+        /// Pick the shard from the high-order bits of the hash; each worker's GroupbyTable indexes
+        /// with the low-order bits.
+        int shard = (int)(((GroupbyTable.hash(key) & 0xffffffffL) * numShards) >>> 32);
+        Worker w = workers.get(shard);
+        if (w.filling == null) {
+          w.filling = w.free.take();
+          w.filling.size = 0;
+        }
+        Chunk c = w.filling;
+        System.arraycopy(tuple, 0, c.tuples, c.size * numFields, numFields);
+        c.seqs[c.size++] = seq++;
+        if (c.size == CHUNK_SIZE) {
+          hand(w);
+          if (resultOut != null) printResults();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while running sharded pipeline", e);
+    } finally {
+      /// Also stop the workers if the source fails, so that they do not wait for packets forever.
+      finish();
+    }
+    elapsedNanos = System.nanoTime() - start;
+    packets = 0;
+    results = 0;
+    for (Worker w: workers) {
+      if (w.failure != null) {
+        throw new RuntimeException("Shard " + w.getName() + " failed", w.failure);
+      }
+      packets += w.packets;
+      results += w.results;
+    }
+    if (resultOut != null) {
+      printResults();
+    }
+  }
+
+  /// Hand the last chunk of packets and an end chunk to every worker, and wait for all of them.
+  private void finish() {
+    try {
+      for (Worker w: workers) {
+        if (w.filling != null) {
+          hand(w);
+        }
+        Chunk end = w.free.take();
+        end.size = -1;
+        w.full.put(end);
+      }
+      for (Worker w: workers) {
+        w.join();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while running sharded pipeline", e);
+    }
+  }
+
+  private void hand(Worker w) throws InterruptedException {
+    w.handedSeq = w.filling.seqs[w.filling.size - 1];
+    w.full.put(w.filling);
+    w.filling = null;
+  }
+
+  /// Print the pending results, merged by packet position, up to the first one that a worker may
+  /// still precede.
+  private void printResults() {
+    long[] processed = new long[numShards];
+    while (true) {
+      /// Results are queued before processedSeq moves past them, so that reading processedSeq first
+      /// guarantees that every result up to it is seen below.
+      for (int s = 0; s < numShards; s++) {
+        processed[s] = workers.get(s).processedSeq;
+      }
+      Worker best = null;
+      Result first = null;
+      for (Worker w: workers) {
+        Result r = w.pending.peek();
+        if (r != null && (first == null || r.seq < first.seq)) {
+          best = w;
+          first = r;
+        }
+      }
+      if (first == null) return;
+      for (int s = 0; s < numShards; s++) {
+        Worker w = workers.get(s);
+        if (w != best && ! w.isPast(first.seq, processed[s])) return;
+      }
+      resultOut.println(first.tuple);
+      best.pending.poll();
+    }
+  }
+
+  /// Print the final state of every groupby; keys are disjoint across workers.
+  public void printTables(PrintStream out) {
+    for (int g = 0; g < workers.get(0).engine.getRunners().size(); g++) {
+      StageRunner first = workers.get(0).engine.getRunners().get(g);
+      if (! (first instanceof GroupbyRunner)) continue;
+      GroupbyTable all = new GroupbyTable(((GroupbyRunner)first).getTable().getKeyWidth(),
+                                          ((GroupbyRunner)first).getTable().getStateWidth());
+      int[] k = new int[all.getKeyWidth()];
+      int[] v = new int[all.getStateWidth()];
+      for (Worker w: workers) {
+        GroupbyTable table = ((GroupbyRunner)w.engine.getRunners().get(g)).getTable();
+        for (int entry = 0; entry < table.capacity(); entry++) {
+          if (! table.isUsed(entry)) continue;
+          table.readKey(entry, k);
+          table.readState(entry, v);
+          all.writeState(all.insert(k), v);
+        }
+      }
+      GroupbyRunner.printTable(out, first.getStage(), all, all.getStateWidth());
+    }
+  }
+
+  public ArrayList<String> getResultFields() {
+    return workers.get(0).engine.getResultFields();
+  }
+
+  public long getPackets() {
+    return packets;
+  }
+
+  public long getResults() {
+    return results;
+  }
+
+  public double getThroughput() {
+    return (elapsedNanos == 0) ? 0 : packets * 1e9 / elapsedNanos;
+  }
+
+  public String report() {
+    String res = String.format("Processed %d packets (%d results) in %.3f s: %.0f packets/s" +
+                               " on %d shards (key %s)",
+                               packets, results, elapsedNanos / 1e9, getThroughput(), numShards,
+                               shardKey);
+    for (Worker w: workers) {
+      res += String.format("\n%s: %d packets", w.getName(), w.packets);
+      for (StageRunner runner: w.engine.getRunners()) {
+        if (runner instanceof GroupbyRunner) {
+          res += ", groupby " + runner.getStage().getPipeName() + " " +
+                 ((GroupbyRunner)runner).getTable().size() + " keys";
+        }
+      }
+    }
+    return res;
+  }
+}
@@ -0,0 +1,80 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/// Assign every non-register identifier of a pipeline a fixed slot in a flat packet frame (an
+/// int[]). This mirrors the packet metadata of the generated P4 and Domino code, where fields,
+/// function variables and predicates all live on the packet. The packet-log fields always occupy
+/// the first Fields.fields.size() slots, in order, so that a PacketSource can fill a frame without
+/// knowing anything about the query.
+public class SlotLayout {
+  private HashMap<String, Integer> slots;
+  private ArrayList<String> names;
+  /// Slots holding the validity field (_<query>_valid) of each stage of the pipeline
+  private TreeSet<Integer> validSlots;
+
+  public SlotLayout(ArrayList<PipeStage> pipe) {
+    this.slots = new HashMap<>();
+    this.names = new ArrayList<>();
+    for (String field: Fields.fields) {
+      addSlot(field);
+    }
+    for (PipeStage stage: pipe) {
+      /// Sort identifiers so that layouts are deterministic across runs.
+      TreeSet<String> ids = new TreeSet<>(stage.getConfigInfo().getNonRegisters());
+      ids.addAll(stage.getFields());
+      if (stage.getOp() == OperationType.GROUPBY) {
+        ids.addAll(((FoldConfigInfo)stage.getConfigInfo()).getKeyFields());
+      }
+      for (String id: ids) {
+        addSlot(id);
+      }
+    }
+    this.validSlots = new TreeSet<>();
+    for (PipeStage stage: pipe) {
+      String validField = PipeConfigInfo.fieldTransformQueryId(stage.getPipeName());
+      if (slots.containsKey(validField)) {
+        validSlots.add(slots.get(validField));
+      }
+    }
+  }
+
+  private void addSlot(String id) {
+    if (! slots.containsKey(id)) {
+      slots.put(id, names.size());
+      names.add(id);
+    }
+  }
+
+  public boolean hasSlot(String id) {
+    return slots.containsKey(id);
+  }
+
+  public int slotOf(String id) {
+    Integer slot = slots.get(id);
+    if (slot == null) {
+      throw new RuntimeException("No slot assigned to identifier " + id);
+    }
+    return slot;
+  }
+
+  /// Whether the slot holds the validity field of some stage
+  public boolean isValidSlot(int slot) {
+    return validSlots.contains(slot);
+  }
+
+  public String nameOf(int slot) {
+    return names.get(slot);
+  }
+
+  /// Number of slots in a packet frame
+  public int size() {
+    return names.size();
+  }
+
+  /// Number of leading slots holding packet-log fields
+  public static int numFields() {
+    return Fields.fields.size();
+  }
+}
@@ -0,0 +1,109 @@
+package edu.mit.needlstk;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/// Bounded single-producer/single-consumer queue on a ring buffer. Exactly one thread may call
+/// offer()/put() and exactly one other thread poll()/take(). Neither side takes a lock: the producer
+/// publishes an element by advancing `tail` after writing its slot, and the consumer frees the slot
+/// by advancing `head` after reading it, so both counters only ever have a single writer. A full
+/// ring makes put() wait for the consumer, which is how a slow stage holds back the ones before it.
+public class SpscRing<T> {
+  /// Spins before yielding, and yields before parking, while waiting on the other side. Spinning is
+  /// pointless on a single processor, since the other side cannot run meanwhile.
+  private static int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 64 : 0;
+  private static int YIELDS = 64;
+  private static long PARK_NANOS = 20000;
+
+  private AtomicReferenceArray<T> slots;
+  private int mask;
+  /// Number of elements taken so far (written by the consumer only)
+  private AtomicLong head = new AtomicLong();
+  /// Number of elements added so far (written by the producer only)
+  private AtomicLong tail = new AtomicLong();
+  /// Latest value of the other side's counter seen by each side, to avoid re-reading it each time
+  private long cachedHead = 0;
+  private long cachedTail = 0;
+  /// Number of times put() found the ring full, or take() found it empty
+  private volatile long fullWaits = 0;
+  private volatile long emptyWaits = 0;
+
+  /// `capacity` is rounded up to a power of 2.
+  public SpscRing(int capacity) {
+    int size = (capacity <= 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /// Add `elem` if there is room. Producer side only.
+  public boolean offer(T elem) {
+    long t = tail.get();
+    if (t - cachedHead > mask) {
+      cachedHead = head.get();
+      if (t - cachedHead > mask) {
+        return false;
+      }
+    }
+    slots.lazySet((int)t & mask, elem);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /// Take the oldest element, or return null if the ring is empty. Consumer side only.
+  public T poll() {
+    long h = head.get();
+    if (h >= cachedTail) {
+      cachedTail = tail.get();
+      if (h >= cachedTail) {
+        return null;
+      }
+    }
+    int slot = (int)h & mask;
+    T elem = slots.get(slot);
+    slots.lazySet(slot, null);
+    head.lazySet(h + 1);
+    return elem;
+  }
+
+  /// Add `elem`, waiting for the consumer while the ring is full.
+  public void put(T elem) {
+    if (offer(elem)) return;
+    fullWaits++;
+    for (int i = 0; ! offer(elem); i++) {
+      backOff(i);
+    }
+  }
+
+  /// Take the oldest element, waiting for the producer while the ring is empty.
+  public T take() {
+    T elem = poll();
+    if (elem != null) return elem;
+    emptyWaits++;
+    for (int i = 0; (elem = poll()) == null; i++) {
+      backOff(i);
+    }
+    return elem;
+  }
+
+  private static void backOff(int attempt) {
+    if (attempt < SPINS) {
+      return;
+    } else if (attempt < SPINS + YIELDS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+
+  public long getFullWaits() {
+    return fullWaits;
+  }
+
+  public long getEmptyWaits() {
+    return emptyWaits;
+  }
+}
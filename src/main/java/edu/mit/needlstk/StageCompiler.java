@@ -0,0 +1,308 @@
+package edu.mit.needlstk;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/// Compile the three-operand code of pipeline stages into JVM classes implementing StageFunction,
+/// as a faster alternative to StageInterpreter. At compile time, every identifier is resolved to a
+/// fixed frame slot or register index and cached in a JVM local for the duration of exec().
+/// Predicates are computed as 0/1 integers with arithmetic instead of jumps, and ternaries become
+/// branch-free selects, so the generated method is straight-line code the JIT optimizes well.
+///
+/// All classes produced by one StageCompiler are defined in a private class loader, so a query's
+/// classes are unloaded once the compiler and the functions it returned become unreachable.
+public class StageCompiler implements Opcodes {
+  private static String FN_INTERFACE = "edu/mit/needlstk/StageFunction";
+  private static String CLASS_PREFIX = "edu/mit/needlstk/gen/Stage";
+  /// Local variable indices of exec(int[] pkt, int[] regs)
+  private static int PKT_LOCAL = 1;
+  private static int REGS_LOCAL = 2;
+  private static int SCRATCH_LOCAL = 3;
+  private static int FIRST_ID_LOCAL = 4;
+
+  private SlotLayout layout;
+  private StageClassLoader loader;
+  private int numClasses = 0;
+
+  /// Class loader holding the generated classes of one StageCompiler
+  private static class StageClassLoader extends ClassLoader {
+    public StageClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    public Class<?> define(String binaryName, byte[] code) {
+      return defineClass(binaryName, code, 0, code.length);
+    }
+  }
+
+  public StageCompiler(SlotLayout layout) {
+    this.layout = layout;
+    this.loader = new StageClassLoader(StageCompiler.class.getClassLoader());
+  }
+
+  /// Generate, load and instantiate a class executing the code of `stage`.
+  public StageFunction compile(PipeStage stage) {
+    numClasses++;
+    String className = CLASS_PREFIX + numClasses + "_" + stage.getPipeName();
+    byte[] code = generate(className, stage);
+    try {
+      Class<?> cls = loader.define(className.replace('/', '.'), code);
+      return (StageFunction)cls.getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException("Could not load generated code for stage " +
+                                 stage.getPipeName(), e);
+    }
+  }
+
+  /// Per-stage state while generating the body of exec()
+  private static class Gen {
+    MethodVisitor mv;
+    /// Identifier to JVM local variable index
+    HashMap<String, Integer> locals = new HashMap<>();
+  }
+
+  private byte[] generate(String className, PipeStage stage) {
+    PipeConfigInfo ci = stage.getConfigInfo();
+    ArrayList<ThreeOpStmt> stmts = new ArrayList<>(ci.getPreamble().getStmts());
+    stmts.addAll(ci.getCode().getStmts());
+    stmts.addAll(ci.getPostamble().getStmts());
+    HashMap<String, AggFunVarType> symTab = ci.getSymTab();
+    List<String> registers = StageRunner.registersOf(stage);
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+    cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object",
+             new String[] { FN_INTERFACE });
+    MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    Gen g = new Gen();
+    g.mv = cw.visitMethod(ACC_PUBLIC, "exec", "([I[I)V", null, null);
+    g.mv.visitCode();
+
+    /// Load every identifier referenced by the stage into its own local.
+    TreeSet<String> referenced = new TreeSet<>();
+    TreeSet<String> defined = new TreeSet<>();
+    for (ThreeOpStmt stmt: stmts) {
+      referenced.addAll(stmt.getUsedVars());
+      if (stmt.isEmit()) {
+        referenced.add(stmt.getEmitPred());
+        referenced.addAll(registers);
+      } else {
+        defined.add(stmt.getDefinedVar());
+      }
+    }
+    referenced.addAll(defined);
+    for (String id: referenced) {
+      int local = FIRST_ID_LOCAL + g.locals.size();
+      g.locals.put(id, local);
+      loadLocation(g.mv, id, symTab, registers);
+      g.mv.visitVarInsn(ISTORE, local);
+    }
+
+    for (ThreeOpStmt stmt: stmts) {
+      if (stmt.isEmit()) {
+        /// Copy each register into the packet field of the same name if the predicate holds.
+        for (String reg: registers) {
+          int slot = layout.slotOf(reg);
+          g.mv.visitVarInsn(ALOAD, PKT_LOCAL);
+          pushInt(g.mv, slot);
+          genSelect(g, stmt.getEmitPred(), () -> g.mv.visitVarInsn(ILOAD, g.locals.get(reg)), () -> {
+            g.mv.visitVarInsn(ALOAD, PKT_LOCAL);
+            pushInt(g.mv, slot);
+            g.mv.visitInsn(IALOAD);
+          });
+          g.mv.visitInsn(IASTORE);
+        }
+      } else if (stmt.isPredAssign()) {
+        genPred(g, stmt.getPred());
+        g.mv.visitVarInsn(ISTORE, g.locals.get(stmt.getDefinedVar()));
+      } else if (stmt.isExprAssign()) {
+        genExpr(g, stmt.getExpr());
+        g.mv.visitVarInsn(ISTORE, g.locals.get(stmt.getDefinedVar()));
+      } else {
+        assert (stmt.isTernary());
+        genSelect(g, stmt.getPredVarOfTernary(),
+                  () -> genExpr(g, stmt.getExprIf()),
+                  () -> genExpr(g, stmt.getExprElse()));
+        g.mv.visitVarInsn(ISTORE, g.locals.get(stmt.getDefinedVar()));
+      }
+    }
+
+    /// Write back every identifier assigned by the stage.
+    for (String id: defined) {
+      int loc = location(id, symTab, registers);
+      g.mv.visitVarInsn(ALOAD, (loc >= 0) ? PKT_LOCAL : REGS_LOCAL);
+      pushInt(g.mv, (loc >= 0) ? loc : (-1 - loc));
+      g.mv.visitVarInsn(ILOAD, g.locals.get(id));
+      g.mv.visitInsn(IASTORE);
+    }
+    g.mv.visitInsn(RETURN);
+    g.mv.visitMaxs(0, 0);
+    g.mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /// Frame slot (>= 0) or register (encoded as -1 - index) holding an identifier
+  private int location(String id, HashMap<String, AggFunVarType> symTab, List<String> registers) {
+    if (symTab.get(id) == AggFunVarType.STATE) {
+      return -1 - registers.indexOf(id);
+    } else {
+      return layout.slotOf(id);
+    }
+  }
+
+  private void loadLocation(MethodVisitor mv, String id,
+                            HashMap<String, AggFunVarType> symTab, List<String> registers) {
+    int loc = location(id, symTab, registers);
+    mv.visitVarInsn(ALOAD, (loc >= 0) ? PKT_LOCAL : REGS_LOCAL);
+    pushInt(mv, (loc >= 0) ? loc : (-1 - loc));
+    mv.visitInsn(IALOAD);
+  }
+
+  private static void pushInt(MethodVisitor mv, int val) {
+    if (val >= -1 && val <= 5) {
+      mv.visitInsn(ICONST_0 + val);
+    } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, val);
+    } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, val);
+    } else {
+      mv.visitLdcInsn(val);
+    }
+  }
+
+  /// Push (predVar ? ifVal : elseVal) without branching: else ^ ((if ^ else) & -pred)
+  private void genSelect(Gen g, String predVar, Runnable genIf, Runnable genElse) {
+    genElse.run();
+    g.mv.visitVarInsn(ISTORE, SCRATCH_LOCAL);
+    genIf.run();
+    g.mv.visitVarInsn(ILOAD, SCRATCH_LOCAL);
+    g.mv.visitInsn(IXOR);
+    g.mv.visitVarInsn(ILOAD, g.locals.get(predVar));
+    genNonZero(g.mv);
+    g.mv.visitInsn(INEG);
+    g.mv.visitInsn(IAND);
+    g.mv.visitVarInsn(ILOAD, SCRATCH_LOCAL);
+    g.mv.visitInsn(IXOR);
+  }
+
+  /// Replace x on top of the stack with (x != 0 ? 1 : 0), i.e., (x | -x) >>> 31
+  private static void genNonZero(MethodVisitor mv) {
+    mv.visitInsn(DUP);
+    mv.visitInsn(INEG);
+    mv.visitInsn(IOR);
+    pushInt(mv, 31);
+    mv.visitInsn(IUSHR);
+  }
+
+  private void genExpr(Gen g, AugExpr expr) {
+    switch (expr.getType()) {
+      case EXPR_ID:
+        g.mv.visitVarInsn(ILOAD, g.locals.get(expr.ident));
+        break;
+      case EXPR_VAL:
+        pushInt(g.mv, expr.value);
+        break;
+      case EXPR_COMB:
+        genExpr(g, expr.children.get(0));
+        genExpr(g, expr.children.get(1));
+        switch (expr.binop) {
+          case BINOP_ADD:
+            g.mv.visitInsn(IADD);
+            break;
+          case BINOP_SUB:
+            g.mv.visitInsn(ISUB);
+            break;
+          case BINOP_MUL:
+            g.mv.visitInsn(IMUL);
+            break;
+          case BINOP_DIV:
+            g.mv.visitInsn(IDIV);
+            break;
+          case BINOP_RSHIFT:
+            g.mv.visitInsn(ISHR);
+            break;
+          default:
+            assert (false); // Expecting a new binary operator?
+        }
+        break;
+      default:
+        assert (false); // Expecting a new expression type?
+    }
+  }
+
+  /// Push the value of a predicate as 0 or 1.
+  private void genPred(Gen g, AugPred pred) {
+    switch (pred.type) {
+      case PRED_TRUE:
+        g.mv.visitInsn(ICONST_1);
+        break;
+      case PRED_FALSE:
+        g.mv.visitInsn(ICONST_0);
+        break;
+      case PRED_ID:
+        g.mv.visitVarInsn(ILOAD, g.locals.get(pred.predId));
+        genNonZero(g.mv);
+        break;
+      case PRED_EQ:
+        genExpr(g, pred.childExprs.get(0));
+        genExpr(g, pred.childExprs.get(1));
+        g.mv.visitInsn(IXOR);
+        genNonZero(g.mv);
+        g.mv.visitInsn(ICONST_1);
+        g.mv.visitInsn(IXOR);
+        break;
+      case PRED_NE:
+        genExpr(g, pred.childExprs.get(0));
+        genExpr(g, pred.childExprs.get(1));
+        g.mv.visitInsn(IXOR);
+        genNonZero(g.mv);
+        break;
+      case PRED_LT:
+        genLessThan(g, pred.childExprs.get(0), pred.childExprs.get(1));
+        break;
+      case PRED_GT:
+        genLessThan(g, pred.childExprs.get(1), pred.childExprs.get(0));
+        break;
+      case PRED_AND:
+        genPred(g, pred.childPreds.get(0));
+        genPred(g, pred.childPreds.get(1));
+        g.mv.visitInsn(IAND);
+        break;
+      case PRED_OR:
+        genPred(g, pred.childPreds.get(0));
+        genPred(g, pred.childPreds.get(1));
+        g.mv.visitInsn(IOR);
+        break;
+      case PRED_NOT:
+        genPred(g, pred.childPreds.get(0));
+        g.mv.visitInsn(ICONST_1);
+        g.mv.visitInsn(IXOR);
+        break;
+      default:
+        assert (false); // Expecting a new predicate type?
+    }
+  }
+
+  /// Push (a < b ? 1 : 0) as the sign bit of the 64-bit difference, which cannot overflow.
+  private void genLessThan(Gen g, AugExpr a, AugExpr b) {
+    genExpr(g, a);
+    g.mv.visitInsn(I2L);
+    genExpr(g, b);
+    g.mv.visitInsn(I2L);
+    g.mv.visitInsn(LSUB);
+    pushInt(g.mv, 63);
+    g.mv.visitInsn(LUSHR);
+    g.mv.visitInsn(L2I);
+  }
+}
@@ -0,0 +1,9 @@
+package edu.mit.needlstk;
+
+/// Executable form of the code of one pipeline stage: preamble, body and postamble, in that order.
+public interface StageFunction {
+  /// Run the stage code on packet frame `pkt` (laid out by a SlotLayout). `regs` holds the stage's
+  /// register values for the current key, in the order of the stage's state arguments; it is empty
+  /// for stateless stages.
+  void exec(int[] pkt, int[] regs);
+}
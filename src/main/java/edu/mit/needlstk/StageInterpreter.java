@@ -0,0 +1,132 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Tree-walking evaluator for the three-operand code of one pipeline stage. Statements are executed
+/// in order over a packet frame, with the same semantics as the emitted P4 code: packet fields,
+/// function variables and predicates are read from and written to the frame, and state variables
+/// are read from and written to the registers of the current key.
+public class StageInterpreter implements StageFunction {
+  /// Preamble, body and postamble of the stage, flattened into one list
+  private ArrayList<ThreeOpStmt> stmts;
+  /// Identifier to location: slots in the frame are >= 0, register i is encoded as (-1 - i).
+  private HashMap<String, Integer> locs;
+  /// Frame slots receiving a copy of each register on an emit
+  private int[] emitSlots;
+
+  public StageInterpreter(PipeStage stage, SlotLayout layout) {
+    PipeConfigInfo ci = stage.getConfigInfo();
+    this.stmts = new ArrayList<>(ci.getPreamble().getStmts());
+    this.stmts.addAll(ci.getCode().getStmts());
+    this.stmts.addAll(ci.getPostamble().getStmts());
+    List<String> registers = StageRunner.registersOf(stage);
+    this.locs = new HashMap<>();
+    for (Map.Entry<String, AggFunVarType> entry: ci.getSymTab().entrySet()) {
+      String id = entry.getKey();
+      if (entry.getValue() == AggFunVarType.STATE) {
+        locs.put(id, -1 - registers.indexOf(id));
+      } else {
+        locs.put(id, layout.slotOf(id));
+      }
+    }
+    this.emitSlots = new int[registers.size()];
+    for (int i = 0; i < registers.size(); i++) {
+      emitSlots[i] = layout.slotOf(registers.get(i));
+    }
+  }
+
+  public void exec(int[] pkt, int[] regs) {
+    for (ThreeOpStmt stmt: stmts) {
+      if (stmt.isEmit()) {
+        if (read(stmt.getEmitPred(), pkt, regs) != 0) {
+          for (int i = 0; i < emitSlots.length; i++) {
+            pkt[emitSlots[i]] = regs[i];
+          }
+        }
+      } else if (stmt.isPredAssign()) {
+        write(stmt.getDefinedVar(), test(stmt.getPred(), pkt, regs) ? 1 : 0, pkt, regs);
+      } else if (stmt.isExprAssign()) {
+        write(stmt.getDefinedVar(), eval(stmt.getExpr(), pkt, regs), pkt, regs);
+      } else {
+        assert (stmt.isTernary());
+        AugExpr chosen = (read(stmt.getPredVarOfTernary(), pkt, regs) != 0) ?
+                         stmt.getExprIf() : stmt.getExprElse();
+        write(stmt.getDefinedVar(), eval(chosen, pkt, regs), pkt, regs);
+      }
+    }
+  }
+
+  private int read(String id, int[] pkt, int[] regs) {
+    int loc = locs.get(id);
+    return (loc >= 0) ? pkt[loc] : regs[-1 - loc];
+  }
+
+  private void write(String id, int val, int[] pkt, int[] regs) {
+    int loc = locs.get(id);
+    if (loc >= 0) {
+      pkt[loc] = val;
+    } else {
+      regs[-1 - loc] = val;
+    }
+  }
+
+  private int eval(AugExpr expr, int[] pkt, int[] regs) {
+    switch (expr.getType()) {
+      case EXPR_ID:
+        return read(expr.ident, pkt, regs);
+      case EXPR_VAL:
+        return expr.value;
+      case EXPR_COMB:
+        int left  = eval(expr.children.get(0), pkt, regs);
+        int right = eval(expr.children.get(1), pkt, regs);
+        switch (expr.binop) {
+          case BINOP_ADD:
+            return left + right;
+          case BINOP_SUB:
+            return left - right;
+          case BINOP_MUL:
+            return left * right;
+          case BINOP_DIV:
+            return left / right;
+          case BINOP_RSHIFT:
+            return left >> right;
+          default:
+            assert (false); // Expecting a new binary operator?
+            return 0;
+        }
+      default:
+        assert (false); // Expecting a new expression type?
+        return 0;
+    }
+  }
+
+  private boolean test(AugPred pred, int[] pkt, int[] regs) {
+    switch (pred.type) {
+      case PRED_TRUE:
+        return true;
+      case PRED_FALSE:
+        return false;
+      case PRED_ID:
+        return read(pred.predId, pkt, regs) != 0;
+      case PRED_EQ:
+        return eval(pred.childExprs.get(0), pkt, regs) == eval(pred.childExprs.get(1), pkt, regs);
+      case PRED_NE:
+        return eval(pred.childExprs.get(0), pkt, regs) != eval(pred.childExprs.get(1), pkt, regs);
+      case PRED_GT:
+        return eval(pred.childExprs.get(0), pkt, regs) > eval(pred.childExprs.get(1), pkt, regs);
+      case PRED_LT:
+        return eval(pred.childExprs.get(0), pkt, regs) < eval(pred.childExprs.get(1), pkt, regs);
+      case PRED_AND:
+        return test(pred.childPreds.get(0), pkt, regs) && test(pred.childPreds.get(1), pkt, regs);
+      case PRED_OR:
+        return test(pred.childPreds.get(0), pkt, regs) || test(pred.childPreds.get(1), pkt, regs);
+      case PRED_NOT:
+        return ! test(pred.childPreds.get(0), pkt, regs);
+      default:
+        assert (false); // Expecting a new predicate type?
+        return false;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Run one pipeline stage over packet frames. Stateless stages (filter, map, zip) only execute their
+/// code; see GroupbyRunner for stages that keep per-key state.
+public class StageRunner {
+  protected static int[] NO_REGS = new int[0];
+  protected PipeStage stage;
+  protected StageFunction fn;
+  /// Column-at-a-time form of the stage code, for processBatch(); null for groupby stages
+  protected BatchStageInterpreter batchFn;
+
+  public StageRunner(PipeStage stage, StageFunction fn) {
+    this.stage = stage;
+    this.fn = fn;
+  }
+
+  /// Factory picking the right runner for the operation of the stage
+  public static StageRunner create(PipeStage stage, SlotLayout layout, StageFunction fn) {
+    if (stage.getOp() == OperationType.GROUPBY) {
+      return new GroupbyRunner(stage, layout, fn);
+    } else {
+      StageRunner runner = new StageRunner(stage, fn);
+      runner.batchFn = new BatchStageInterpreter(stage, layout);
+      return runner;
+    }
+  }
+
+  /// Names of the registers of a stage, in the order used to lay out register values
+  public static List<String> registersOf(PipeStage stage) {
+    if (stage.getOp() == OperationType.GROUPBY) {
+      return stage.getValueFields();
+    } else {
+      return new ArrayList<String>();
+    }
+  }
+
+  public void process(int[] pkt) {
+    fn.exec(pkt, NO_REGS);
+  }
+
+  /// Run the stage over every packet of a batch.
+  public void processBatch(PacketBatch batch) {
+    batchFn.exec(batch);
+  }
+
+  public PipeStage getStage() {
+    return stage;
+  }
+}
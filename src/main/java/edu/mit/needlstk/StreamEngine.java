@@ -0,0 +1,330 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/// Software execution engine for a stitched pipeline (see PipeConstructor.stitchPipe()). Every packet
+/// of the packet log is loaded into a frame and pushed through all stages in pipeline order, just
+/// like a packet traversing the generated P4 program. A packet is part of the query result if the
+/// validity field of the output query is set once the last stage has run. A pipeline may compute
+/// several output queries (see PipeConstructor.stitchPipe(List)); the first one is the output query
+/// of the single-output methods, such as process() and getResultFields().
+public class StreamEngine {
+  private SlotLayout layout;
+  private ArrayList<StageRunner> runners;
+  /// Frame slot holding the validity of the output query
+  private int outputSlot;
+  /// Frame slots of the fields in the schema of the output query
+  private int[] resultSlots;
+  private ArrayList<String> resultFields;
+  /// The same for every output query
+  private List<String> outputQueries;
+  private int[] outputSlots;
+  private int[][] outputResultSlots;
+  private ArrayList<ArrayList<String>> outputResultFields;
+  private long[] outputResults;
+  /// Destination for result tuples; results are only counted if this is null.
+  private PrintStream resultOut;
+  /// Printed before every result tuple
+  private String resultPrefix = "";
+  /// Duration of one tick of tin, to report rates over the time of the trace
+  private long tickNanos = 1000;
+
+  /// Statistics for the last call to run() or runBatched()
+  private long packets;
+  private long results;
+  private long elapsedNanos;
+
+  /// Creates the runner of each stage, e.g., to run groupbys on something other than an exact table
+  public interface RunnerFactory {
+    StageRunner create(PipeStage stage, SlotLayout layout, StageFunction fn);
+  }
+
+  /// If `compiled` is set, stage code is compiled to JVM bytecode (StageCompiler); otherwise it is
+  /// interpreted (StageInterpreter).
+  public StreamEngine(ArrayList<PipeStage> pipe, List<String> outputQueries, boolean compiled,
+                      RunnerFactory factory) {
+    this.layout = new SlotLayout(pipe);
+    this.runners = new ArrayList<>();
+    StageCompiler stageCompiler = compiled ? new StageCompiler(layout) : null;
+    HashMap<String, PipeStage> stages = new HashMap<>();
+    for (PipeStage stage: pipe) {
+      StageFunction fn = compiled ? stageCompiler.compile(stage) : new StageInterpreter(stage, layout);
+      runners.add(factory.create(stage, layout, fn));
+      stages.put(stage.getPipeName(), stage);
+    }
+    this.outputQueries = outputQueries;
+    this.outputSlots = new int[outputQueries.size()];
+    this.outputResultSlots = new int[outputQueries.size()][];
+    this.outputResults = new long[outputQueries.size()];
+    this.outputResultFields = new ArrayList<>();
+    for (int q = 0; q < outputSlots.length; q++) {
+      PipeStage outputStage = stages.get(outputQueries.get(q));
+      assert (outputStage != null); // output query must be part of the pipeline
+      outputSlots[q] = layout.slotOf(PipeConfigInfo.fieldTransformQueryId(outputQueries.get(q)));
+      outputResultFields.add(new ArrayList<>(outputStage.getFields()));
+      outputResultSlots[q] = new int[outputStage.getFields().size()];
+      for (int i = 0; i < outputResultSlots[q].length; i++) {
+        outputResultSlots[q][i] = layout.slotOf(outputStage.getFields().get(i));
+      }
+    }
+    this.outputSlot = outputSlots[0];
+    this.resultFields = outputResultFields.get(0);
+    this.resultSlots = outputResultSlots[0];
+  }
+
+  public StreamEngine(ArrayList<PipeStage> pipe, String outputQuery, boolean compiled,
+                      RunnerFactory factory) {
+    this(pipe, Arrays.asList(outputQuery), compiled, factory);
+  }
+
+  /// If `simulateCache` is set, groupbys run on a simulation of the switch's register table, of
+  /// the size the stage was compiled with (CacheSimulator), instead of an exact table.
+  public StreamEngine(ArrayList<PipeStage> pipe, String outputQuery, boolean compiled,
+                      boolean simulateCache) {
+    this(pipe, outputQuery, compiled, cacheFactory(simulateCache));
+  }
+
+  private static RunnerFactory cacheFactory(boolean simulateCache) {
+    return (stage, layout, fn) ->
+           (simulateCache && stage.getOp() == OperationType.GROUPBY) ?
+           new CacheSimulator(stage, layout, fn) :
+           StageRunner.create(stage, layout, fn);
+  }
+
+  public StreamEngine(ArrayList<PipeStage> pipe, String outputQuery, boolean compiled) {
+    this(pipe, outputQuery, compiled, false);
+  }
+
+  /// Computes every output query of the pipeline of `pc`.
+  public StreamEngine(PipeConstructor pc, boolean compiled) {
+    this(pc, compiled, false);
+  }
+
+  public StreamEngine(PipeConstructor pc, boolean compiled, boolean simulateCache) {
+    this(pc, compiled, cacheFactory(simulateCache));
+  }
+
+  public StreamEngine(PipeConstructor pc, boolean compiled, RunnerFactory factory) {
+    this(pc.getPipe(), pc.getOutputs(), compiled, factory);
+  }
+
+  /// Print every result tuple to `out`, one per line, in the order of getResultFields().
+  public void setResultOutput(PrintStream out) {
+    this.resultOut = out;
+  }
+
+  /// Duration of one tick of tin (1 us by default), e.g., the -tick of a packet capture
+  public void setTickNanos(long tickNanos) {
+    this.tickNanos = tickNanos;
+  }
+
+  /// Same as setResultOutput(out), with `prefix` before every result tuple, e.g., to tell apart the
+  /// results of several queries printed to one stream.
+  public void setResultOutput(PrintStream out, String prefix) {
+    this.resultOut = out;
+    this.resultPrefix = prefix;
+  }
+
+  /// Allocate a frame suitable for process()
+  public int[] newFrame() {
+    return new int[layout.size()];
+  }
+
+  /// Push one packet through the pipeline. The packet-log fields of `frame` must be filled in; all
+  /// other slots are reset here. Returns whether the packet is part of the query result.
+  public boolean process(int[] frame) {
+    Arrays.fill(frame, SlotLayout.numFields(), frame.length, 0);
+    for (StageRunner runner: runners) {
+      runner.process(frame);
+    }
+    return frame[outputSlot] != 0;
+  }
+
+  /// Allocate a batch suitable for processBatch()
+  public PacketBatch newBatch(int capacity) {
+    return new PacketBatch(layout, capacity);
+  }
+
+  /// Push a batch of packets through the pipeline, one stage at a time. The packet-log fields of
+  /// `batch` must be filled in; all other slots are reset here. Returns the number of packets that
+  /// are part of the query result.
+  public int processBatch(PacketBatch batch) {
+    processStages(batch, 0, runners.size());
+    return batch.countValid(outputSlot);
+  }
+
+  /// Push a batch of packets through stages `from` .. `to` - 1 of the pipeline, e.g., for one thread
+  /// of a PipelinedStreamEngine. Running the first stage resets all slots other than the packet-log
+  /// fields, as in processBatch().
+  public void processStages(PacketBatch batch, int from, int to) {
+    if (from == 0) {
+      batch.clearNonFields();
+    }
+    for (int s = from; s < to; s++) {
+      runners.get(s).processBatch(batch);
+    }
+  }
+
+  /// Number of result packets (of all output queries) in a batch that has been through every stage.
+  /// They are printed if result output is set.
+  public int collectResults(PacketBatch batch) {
+    int count = 0;
+    for (int q = 0; q < outputSlots.length; q++) {
+      int n = batch.countValid(outputSlots[q]);
+      if (n > 0 && resultOut != null) printResults(batch, q);
+      outputResults[q] += n;
+      count += n;
+    }
+    return count;
+  }
+
+  /// Count (and print, if result output is set) the results of a processed frame for every output
+  /// query. Returns the number of output queries the packet is part of.
+  private int collectResults(int[] frame) {
+    int count = 0;
+    for (int q = 0; q < outputSlots.length; q++) {
+      if (frame[outputSlots[q]] == 0) continue;
+      outputResults[q]++;
+      count++;
+      if (resultOut != null) {
+        resultOut.println(resultPrefix + outputPrefix(q) + formatResult(frame, outputResultSlots[q]));
+      }
+    }
+    return count;
+  }
+
+  /// Tells apart the results of the output queries of a pipeline with several of them
+  private String outputPrefix(int q) {
+    return (outputSlots.length > 1) ? outputQueries.get(q) + ": " : "";
+  }
+
+  /// Run the pipeline over every packet of `src`, and record throughput statistics.
+  public void run(PacketSource src) throws IOException {
+    int[] frame = newFrame();
+    packets = 0;
+    results = 0;
+    Arrays.fill(outputResults, 0);
+    long start = System.nanoTime();
+    while (src.next(frame)) {
+      packets++;
+      process(frame);
+      results += collectResults(frame);
+    }
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /// Same as run(), but packets are processed in columnar batches of `batchSize` packets.
+  public void runBatched(PacketSource src, int batchSize) throws IOException {
+    PacketBatch batch = newBatch(batchSize);
+    packets = 0;
+    results = 0;
+    Arrays.fill(outputResults, 0);
+    long start = System.nanoTime();
+    while (batch.fill(src) > 0) {
+      packets += batch.size();
+      processBatch(batch);
+      results += collectResults(batch);
+    }
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  private void printResults(PacketBatch batch, int q) {
+    StringBuilder sb = new StringBuilder();
+    for (int row = 0; row < batch.size(); row++) {
+      if (batch.get(outputSlots[q], row) == 0) continue;
+      sb.setLength(0);
+      sb.append(resultPrefix).append(outputPrefix(q));
+      for (int i = 0; i < outputResultSlots[q].length; i++) {
+        if (i > 0) sb.append(' ');
+        sb.append(batch.get(outputResultSlots[q][i], row));
+      }
+      resultOut.println(sb.toString());
+    }
+  }
+
+  /// The result tuple of a processed frame, in the order of getResultFields()
+  public String formatResult(int[] frame) {
+    return formatResult(frame, resultSlots);
+  }
+
+  private static String formatResult(int[] frame, int[] slots) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < slots.length; i++) {
+      if (i > 0) sb.append(' ');
+      sb.append(frame[slots[i]]);
+    }
+    return sb.toString();
+  }
+
+  public ArrayList<String> getResultFields() {
+    return resultFields;
+  }
+
+  public ArrayList<StageRunner> getRunners() {
+    return runners;
+  }
+
+  public SlotLayout getLayout() {
+    return layout;
+  }
+
+  public long getPackets() {
+    return packets;
+  }
+
+  public long getResults() {
+    return results;
+  }
+
+  public List<String> getOutputQueries() {
+    return outputQueries;
+  }
+
+  public ArrayList<String> getResultFields(int q) {
+    return outputResultFields.get(q);
+  }
+
+  /// Results of output query `q` in the last call to run() or runBatched()
+  public long getResults(int q) {
+    return outputResults[q];
+  }
+
+  /// Packets processed per second in the last call to run() or runBatched()
+  public double getThroughput() {
+    return (elapsedNanos == 0) ? 0 : packets * 1e9 / elapsedNanos;
+  }
+
+  /// Print the final state of every groupby (see GroupbyRunner.printTable()).
+  public void printTables(PrintStream out) {
+    for (StageRunner runner: runners) {
+      if (runner instanceof GroupbyRunner) {
+        ((GroupbyRunner)runner).printTable(out);
+      }
+    }
+  }
+
+  public String report() {
+    String res = String.format("Processed %d packets (%d results) in %.3f s: %.0f packets/s",
+                               packets, results, elapsedNanos / 1e9, getThroughput());
+    for (int q = 0; outputSlots.length > 1 && q < outputSlots.length; q++) {
+      res += "\nOutput " + outputQueries.get(q) + ": " + outputResults[q] + " results";
+    }
+    for (StageRunner runner: runners) {
+      if (runner instanceof GroupbyRunner) {
+        res += "\nGroupby " + runner.getStage().getPipeName() + ": " +
+               ((GroupbyRunner)runner).getTable().size() + " keys";
+      }
+      if (runner instanceof ExpiringGroupbyRunner) {
+        res += "\n" + ((ExpiringGroupbyRunner)runner).expiryReport();
+      }
+      if (runner instanceof CacheSimulator) {
+        res += "\n" + ((CacheSimulator)runner).accuracyReport(tickNanos);
+      }
+    }
+    return res;
+  }
+}
@@ -0,0 +1,35 @@
+package edu.mit.needlstk;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/// Read packet-log tuples from text: one packet per line, with whitespace-separated integer values
+/// for every field in Fields.fields order. The value `infinity` is accepted (e.g., tout of a dropped
+/// packet), and lines that are empty or start with `#` are skipped.
+public class TextPacketSource implements PacketSource {
+  private BufferedReader reader;
+  private long lineNum = 0;
+
+  public TextPacketSource(Reader reader) {
+    this.reader = new BufferedReader(reader);
+  }
+
+  public boolean next(int[] tuple) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNum++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] vals = line.split("\\s+");
+      if (vals.length != Fields.fields.size()) {
+        throw new RuntimeException("Packet log line " + lineNum + " has " + vals.length +
+                                   " values; expected one for each of " + Fields.fields);
+      }
+      for (int i = 0; i < vals.length; i++) {
+        tuple[i] = vals[i].equals("infinity") ? AugExpr.EXPR_INFINITY : Integer.parseInt(vals[i]);
+      }
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,62 @@
+package edu.mit.needlstk;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/// Output stream whose destination is chosen per thread. Compiler passes print their progress to
+/// System.out and System.err; once install() has put a ThreadOutput behind both, each thread running
+/// a compilation can send that output to a stream of its own (redirect()), so that concurrent
+/// compilations (see BatchCompiler, CompilerDaemon) neither interleave their output nor need to
+/// swap System.out while another compilation is printing to it.
+public class ThreadOutput extends OutputStream {
+  /// Discards everything written to it
+  public static final OutputStream DISCARD = new OutputStream() {
+    @Override public void write(int b) {}
+    @Override public void write(byte[] b, int off, int len) {}
+  };
+
+  private static ThreadLocal<OutputStream> target = new ThreadLocal<>();
+  private static boolean installed = false;
+
+  /// Where output goes for threads that have not redirected it
+  private OutputStream fallback;
+
+  private ThreadOutput(OutputStream fallback) {
+    this.fallback = fallback;
+  }
+
+  /// Put ThreadOutputs behind System.out and System.err, writing to the current ones by default.
+  public static synchronized void install() {
+    if (installed) return;
+    System.setOut(new PrintStream(new ThreadOutput(System.out), true));
+    System.setErr(new PrintStream(new ThreadOutput(System.err), true));
+    installed = true;
+  }
+
+  /// Send what the current thread prints to System.out and System.err to `out`, or back to where
+  /// they printed before install() if `out` is null. Has no effect before install().
+  public static void redirect(OutputStream out) {
+    if (out == null) {
+      target.remove();
+    } else {
+      target.set(out);
+    }
+  }
+
+  private OutputStream current() {
+    OutputStream out = target.get();
+    return (out == null) ? fallback : out;
+  }
+
+  @Override public void write(int b) throws IOException {
+    current().write(b);
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    current().write(b, off, len);
+  }
+
+  @Override public void flush() throws IOException {
+    current().flush();
+  }
+}
@@ -243,4 +243,25 @@ public class ThreeOpStmt {
     assert (type == StmtType.EMIT);
     return predVar;
   }
+
+  /// Accessors for the operands of each statement type
+  public AugPred getPred() {
+    assert (type == StmtType.PRED_ASSIGN);
+    return pred;
+  }
+
+  public AugExpr getExpr() {
+    assert (type == StmtType.EXPR_ASSIGN);
+    return expr;
+  }
+
+  public AugExpr getExprIf() {
+    assert (type == StmtType.TERNARY);
+    return exprIf;
+  }
+
+  public AugExpr getExprElse() {
+    assert (type == StmtType.TERNARY);
+    return exprElse;
+  }
 }
@@ -0,0 +1,597 @@
+package edu.mit.needlstk;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/// Seedable generator of synthetic but structured traffic, as a faster and more realistic
+/// alternative to RandomPacketSource (and to randomTuple() in the code emitted by
+/// PythonCodeGenerator). Packets belong to a fixed population of flows whose popularity follows a
+/// Zipf distribution. They arrive at the network by a configurable arrival process, and each
+/// crosses the switches of its flow's path. Every switch output port is a drop-tail FIFO queue
+/// that drains a fixed number of bytes per tick.
+///
+/// One tuple is produced per packet and switch, in the order in which packets arrive at switches,
+/// so tin is non-decreasing. For the tuple of a packet at a switch:
+///  - switch is the switch (1..switches), pktpath the index of the flow's path, inport and outport
+///    the previous and next switch on the path (0 for a host), and qid = outport;
+///  - qin is the number of packets in the queue when the packet arrives, tout is the tick at which
+///    its last byte leaves, and qtime = tout - tin. Dropped packets have infinite tout and qtime,
+///    and do not reach later switches. qout is always 0, as it would depend on later arrivals;
+///  - uid identifies the packet (it is the same at every switch), and tcpseq counts payload bytes
+///    of the flow.
+///
+/// Faults and extra traffic can be added with the primitives of ChaosMonkey: they can reroute
+/// packets as they enter the network, drop them at a switch, slow down queues, and inject packets
+/// of additional flows (see addFlow(), addPath() and inject()). Injected packets keep arriving until
+/// the end of their injection, even after the last of the `numPackets` background packets.
+public class TrafficGenerator implements PacketSource {
+  public enum ArrivalProcess {
+    /// Evenly spaced arrivals
+    CONSTANT,
+    /// Exponential inter-arrival times
+    POISSON,
+    /// Pareto inter-arrival times (shape 1.5), i.e., bursts separated by long gaps
+    PARETO
+  }
+
+  /// Parameters of the generated traffic, set from a spec string by parse().
+  public static class Config {
+    public int flows = 10000;
+    /// Zipf exponent of flow popularity; 0 makes all flows equally popular.
+    public double zipf = 1.0;
+    public ArrivalProcess arrivals = ArrivalProcess.POISSON;
+    /// Mean number of ticks between arrivals of packets at the network
+    public double interArrival = 1.0;
+    public int switches = 4;
+    /// Number of switches on each path, and number of distinct paths
+    public int hops = 1;
+    public int paths = 16;
+    /// Bytes drained per tick by each queue (1250 is 10 Gbit/s with ticks of 1 microsecond)
+    public double bytesPerTick = 1250;
+    /// Queue capacity in packets (0 for unbounded), and ticks between switches of a path
+    public int queueCapacity = 1024;
+    public int linkDelay = 1;
+    /// Fraction of small (64-byte) packets; the others are 1500 bytes.
+    public double smallPackets = 0.3;
+
+    /// Parse a comma-separated list of key=value settings, e.g., "flows=1000,zipf=1.2,hops=3";
+    /// keys are the names of the fields of Config.
+    public static Config parse(String spec) {
+      Config c = new Config();
+      for (String setting: spec.split(",")) {
+        if (setting.isEmpty()) continue;
+        String[] kv = setting.split("=");
+        if (kv.length != 2) {
+          throw new RuntimeException("Traffic setting " + setting +
+                                     " is not of the form key=value");
+        }
+        switch (kv[0]) {
+          case "flows": c.flows = Integer.parseInt(kv[1]); break;
+          case "zipf": c.zipf = Double.parseDouble(kv[1]); break;
+          case "arrivals": c.arrivals = ArrivalProcess.valueOf(kv[1].toUpperCase()); break;
+          case "interArrival": c.interArrival = Double.parseDouble(kv[1]); break;
+          case "switches": c.switches = Integer.parseInt(kv[1]); break;
+          case "hops": c.hops = Integer.parseInt(kv[1]); break;
+          case "paths": c.paths = Integer.parseInt(kv[1]); break;
+          case "bytesPerTick": c.bytesPerTick = Double.parseDouble(kv[1]); break;
+          case "queueCapacity": c.queueCapacity = Integer.parseInt(kv[1]); break;
+          case "linkDelay": c.linkDelay = Integer.parseInt(kv[1]); break;
+          case "smallPackets": c.smallPackets = Double.parseDouble(kv[1]); break;
+          default: throw new RuntimeException("Unknown traffic setting " + kv[0]);
+        }
+      }
+      if (c.flows < 1 || c.switches < 1 || c.hops < 1 || c.paths < 1 || c.bytesPerTick <= 0 ||
+          c.interArrival <= 0 || (c.hops > 1 && c.switches < 2)) {
+        throw new RuntimeException("Invalid traffic settings " + spec);
+      }
+      return c;
+    }
+  }
+
+  private static int SMALL_PKTLEN = 64;
+  private static int LARGE_PKTLEN = 1500;
+  /// Ethernet, IPv4 and TCP headers
+  private static int HEADER_BYTES = 54;
+  private static double LN2 = Math.log(2);
+  /// ln(1 + i / 2^LN_TABLE_BITS) for i = 0..2^LN_TABLE_BITS
+  private static int LN_TABLE_BITS = 12;
+  private static double[] LN_TABLE = new double[(1 << LN_TABLE_BITS) + 1];
+  static {
+    for (int i = 0; i < LN_TABLE.length; i++) {
+      LN_TABLE[i] = Math.log1p((double)i / (1 << LN_TABLE_BITS));
+    }
+  }
+
+  private Config config;
+  private SplittableRandom rng;
+  private long remaining;
+
+  /// Flow popularity, sampled in constant time by the alias method: slot s is taken with probability
+  /// aliasCut[s] / 2^24, else alias[s]
+  private int[] aliasCut;
+  private int[] alias;
+  /// Probability of a small packet, times 256
+  private int smallCut;
+  /// Header fields, path and last sequence number of each flow, FLOW_WIDTH ints per flow so that a
+  /// flow's state shares a cache line
+  private static int FLOW_WIDTH = 8;
+  private static int SRCIP = 0;
+  private static int DSTIP = 1;
+  private static int SRCPORT = 2;
+  private static int DSTPORT = 3;
+  private static int PROTO = 4;
+  private static int PATH = 5;
+  private static int TCPSEQ = 6;
+  private int[] flowState;
+  /// Switches of each path
+  private int[][] pathSwitches;
+  private int numPaths;
+  /// Number of flows, including those added by addFlow()
+  private int numFlows;
+
+  /// Per queue (switch and output port): departure time of the last packet, and the departure
+  /// times of the packets in the queue, in a circular buffer
+  private double[] lastDeparture;
+  private long[][] departures;
+  private int[] depHead;
+  private int[] depSize;
+
+  /// Time at which the next packet arrives at the network
+  private double nextArrival = 0;
+  private long uid = 0;
+  private long drops = 0;
+  private long faultDrops = 0;
+  private long rerouted = 0;
+  private long injected = 0;
+  /// Drops at each switch, for queue overflows and faults
+  private long[] dropsAt;
+
+  private ChaosMonkey.Primitive[] primitives = new ChaosMonkey.Primitive[0];
+  /// Injections: flows (used in turn), time of the next packet, end, ticks between packets, pktlen
+  private int[][] injFlows = new int[0][];
+  private int[] injNext = new int[0];
+  private double[] injTime = new double[0];
+  private long[] injEnd = new long[0];
+  private double[] injInterval = new double[0];
+  private int[] injLen = new int[0];
+
+  /// Packets in flight between switches, in a binary heap ordered by arrival time at their next
+  /// switch. The entries hold uid, flow, hop, pktlen, tcpseq and path. The next packet of injection
+  /// i is also kept in the heap, with hop -(i + 1).
+  private long[] heapTime = new long[64];
+  private long[] heapUid = new long[64];
+  private int[] heapFlow = new int[64];
+  private int[] heapHop = new int[64];
+  private int[] heapLen = new int[64];
+  private int[] heapSeq = new int[64];
+  private int[] heapPath = new int[64];
+  private int heapSize = 0;
+
+  private int switchSlot = Fields.fields.indexOf(Fields.switchHdr);
+  private int uidSlot = Fields.fields.indexOf(Fields.uidHdr);
+  private int srcipSlot = Fields.fields.indexOf(Fields.srcipHdr);
+  private int dstipSlot = Fields.fields.indexOf(Fields.dstipHdr);
+  private int srcportSlot = Fields.fields.indexOf(Fields.srcportHdr);
+  private int dstportSlot = Fields.fields.indexOf(Fields.dstportHdr);
+  private int tcpseqSlot = Fields.fields.indexOf(Fields.tcpseqHdr);
+  private int protoSlot = Fields.fields.indexOf(Fields.protoHdr);
+  private int inportSlot = Fields.fields.indexOf(Fields.inportHdr);
+  private int outportSlot = Fields.fields.indexOf(Fields.outportHdr);
+  private int payloadlenSlot = Fields.fields.indexOf(Fields.payloadlenHdr);
+  private int pktlenSlot = Fields.fields.indexOf(Fields.pktlenHdr);
+  private int qidSlot = Fields.fields.indexOf(Fields.qidHdr);
+  private int tinSlot = Fields.fields.indexOf(Fields.tinHdr);
+  private int toutSlot = Fields.fields.indexOf(Fields.toutHdr);
+  private int pktpathSlot = Fields.fields.indexOf(Fields.pktpathHdr);
+  private int qinSlot = Fields.fields.indexOf(Fields.qinHdr);
+  private int qoutSlot = Fields.fields.indexOf(Fields.qoutHdr);
+  private int qtimeSlot = Fields.fields.indexOf(Fields.qtimeHdr);
+
+  /// Generate `numPackets` packets (each producing one tuple per switch it reaches).
+  public TrafficGenerator(Config config, long numPackets, long seed) {
+    this.config = config;
+    this.rng = new SplittableRandom(seed);
+    this.remaining = numPackets;
+    buildPopularity();
+    buildFlows();
+    int numQueues = config.switches * (config.switches + 1);
+    this.lastDeparture = new double[numQueues];
+    Arrays.fill(lastDeparture, Double.NEGATIVE_INFINITY);
+    this.departures = new long[numQueues][];
+    this.depHead = new int[numQueues];
+    this.depSize = new int[numQueues];
+    this.dropsAt = new long[config.switches + 1];
+  }
+
+  /// Vose's alias tables for P(flow f) proportional to 1 / (f + 1)^zipf
+  private void buildPopularity() {
+    int n = config.flows;
+    double[] p = new double[n];
+    double total = 0;
+    for (int f = 0; f < n; f++) {
+      p[f] = Math.pow(f + 1, -config.zipf);
+      total += p[f];
+    }
+    double[] aliasProb = new double[n];
+    alias = new int[n];
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int numSmall = 0;
+    int numLarge = 0;
+    for (int f = 0; f < n; f++) {
+      p[f] = p[f] * n / total;
+      if (p[f] < 1) {
+        small[numSmall++] = f;
+      } else {
+        large[numLarge++] = f;
+      }
+    }
+    while (numSmall > 0 && numLarge > 0) {
+      int s = small[--numSmall];
+      int l = large[--numLarge];
+      aliasProb[s] = p[s];
+      alias[s] = l;
+      p[l] = (p[l] + p[s]) - 1;
+      if (p[l] < 1) {
+        small[numSmall++] = l;
+      } else {
+        large[numLarge++] = l;
+      }
+    }
+    while (numLarge > 0) aliasProb[large[--numLarge]] = 1;
+    while (numSmall > 0) aliasProb[small[--numSmall]] = 1;
+    aliasCut = new int[n];
+    for (int f = 0; f < n; f++) {
+      aliasCut[f] = (int)Math.round(aliasProb[f] * (1 << 24));
+    }
+    smallCut = (int)Math.round(config.smallPackets * 256);  }
+
+  private void buildFlows() {
+    int n = config.flows;
+    numFlows = n;
+    flowState = new int[n * FLOW_WIDTH];
+    for (int f = 0; f < n; f++) {
+      int base = f * FLOW_WIDTH;
+      flowState[base + SRCIP] = 0x0a000000 | rng.nextInt(1 << 16);
+      flowState[base + DSTIP] = 0x0a010000 | rng.nextInt(1 << 16);
+      flowState[base + SRCPORT] = 1024 + rng.nextInt(65536 - 1024);
+      flowState[base + DSTPORT] = (rng.nextInt(4) == 0) ? 1024 + rng.nextInt(65536 - 1024)
+                                                        : 80;
+      flowState[base + PROTO] = (rng.nextInt(10) == 0) ? 17 : 6;
+      flowState[base + PATH] = rng.nextInt(config.paths);
+      flowState[base + TCPSEQ] = rng.nextInt();
+    }
+    pathSwitches = new int[config.paths][config.hops];
+    numPaths = config.paths;
+    for (int[] path: pathSwitches) {
+      for (int h = 0; h < path.length; h++) {
+        do {
+          path[h] = 1 + rng.nextInt(config.switches);
+        } while (h > 0 && path[h] == path[h - 1]);
+      }
+    }
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  /// Add a path through `switches` (each in 1..switches), and return its index (pktpath).
+  public int addPath(int... switches) {
+    for (int sw: switches) {
+      if (sw < 1 || sw > config.switches) {
+        throw new RuntimeException("Path " + Arrays.toString(switches) + " leaves the network");
+      }
+    }
+    if (numPaths == pathSwitches.length) {
+      pathSwitches = Arrays.copyOf(pathSwitches, 2 * numPaths);
+    }
+    pathSwitches[numPaths] = switches.clone();
+    return numPaths++;
+  }
+
+  public int getNumPaths() {
+    return numPaths;
+  }
+
+  public int[] getPath(int path) {
+    return pathSwitches[path];
+  }
+
+  /// Add a flow that only sends injected packets (see inject()), and return its index.
+  public int addFlow(int srcip, int dstip, int srcport, int dstport, int proto, int path) {
+    if (numFlows * FLOW_WIDTH == flowState.length) {
+      flowState = Arrays.copyOf(flowState, 2 * flowState.length);
+    }
+    int base = numFlows * FLOW_WIDTH;
+    flowState[base + SRCIP] = srcip;
+    flowState[base + DSTIP] = dstip;
+    flowState[base + SRCPORT] = srcport;
+    flowState[base + DSTPORT] = dstport;
+    flowState[base + PROTO] = proto;
+    flowState[base + PATH] = path;
+    flowState[base + TCPSEQ] = 0;
+    return numFlows++;
+  }
+
+  public int getNumFlows() {
+    return numFlows;
+  }
+
+  public int getFlowPath(int flow) {
+    return flowState[flow * FLOW_WIDTH + PATH];
+  }
+
+  public void setFlowPath(int flow, int path) {
+    flowState[flow * FLOW_WIDTH + PATH] = path;
+  }
+
+  public void addPrimitive(ChaosMonkey.Primitive primitive) {
+    primitives = Arrays.copyOf(primitives, primitives.length + 1);
+    primitives[primitives.length - 1] = primitive;
+  }
+
+  /// Inject packets of `pktlen` bytes from `flows`, taken in turn, every `interval` ticks from
+  /// `start` until `end`.
+  public void inject(int[] flows, long start, long end, double interval, int pktlen) {
+    int i = injFlows.length;
+    injFlows = Arrays.copyOf(injFlows, i + 1);
+    injNext = Arrays.copyOf(injNext, i + 1);
+    injTime = Arrays.copyOf(injTime, i + 1);
+    injEnd = Arrays.copyOf(injEnd, i + 1);
+    injInterval = Arrays.copyOf(injInterval, i + 1);
+    injLen = Arrays.copyOf(injLen, i + 1);
+    injFlows[i] = flows.clone();
+    injTime[i] = start;
+    injEnd[i] = end;
+    injInterval[i] = interval;
+    injLen[i] = pktlen;
+    if (start < end) {
+      heapPush(start, 0, flows[0], -(i + 1), pktlen, 0, 0);
+    }
+  }
+
+  /// Schedule the packet of injection `i` after the one that was just taken from the heap.
+  private void scheduleInjection(int i) {
+    injTime[i] += injInterval[i];
+    injNext[i] = (injNext[i] + 1) % injFlows[i].length;
+    if ((long)injTime[i] < injEnd[i]) {
+      heapPush((long)injTime[i], 0, injFlows[i][injNext[i]], -(i + 1), injLen[i], 0, 0);
+    }
+  }
+
+  public boolean next(int[] tuple) {
+    boolean fresh = remaining > 0 && (heapSize == 0 || (long)nextArrival <= heapTime[0]);
+    if (! fresh && heapSize == 0) return false;
+    long time;
+    long pktUid = 0;
+    int flow;
+    int hop;
+    int pktlen;
+    int seq = 0;
+    int pathIdx = 0;
+    if (fresh) {
+      remaining--;
+      time = (long)nextArrival;
+      nextArrival += interArrival();
+      /// One draw picks the alias slot (high 32 bits), the packet size (8 bits), and whether the slot
+      /// or its alias is taken (low 24 bits).
+      long r = rng.nextLong();
+      int slot = (int)(((r >>> 32) * config.flows) >>> 32);
+      flow = ((int)(r & 0xffffff) < aliasCut[slot]) ? slot : alias[slot];
+      hop = 0;
+      pktlen = ((int)(r >>> 24 & 0xff) < smallCut) ? SMALL_PKTLEN : LARGE_PKTLEN;
+    } else {
+      time = heapTime[0];
+      pktUid = heapUid[0];
+      flow = heapFlow[0];
+      hop = heapHop[0];
+      pktlen = heapLen[0];
+      seq = heapSeq[0];
+      pathIdx = heapPath[0];
+      heapPop();
+      if (hop < 0) {
+        scheduleInjection(-hop - 1);
+        injected++;
+        hop = 0;
+      }
+    }
+    int base = flow * FLOW_WIDTH;
+    if (hop == 0) {
+      pktUid = ++uid;
+      seq = (flowState[base + TCPSEQ] += Math.max(0, pktlen - HEADER_BYTES));
+      pathIdx = flowState[base + PATH];
+      for (ChaosMonkey.Primitive p: primitives) {
+        pathIdx = p.route(flow, pathIdx, time);
+      }
+      if (pathIdx != flowState[base + PATH]) rerouted++;
+    }
+    int[] path = pathSwitches[pathIdx];
+    int sw = path[hop];
+    int outport = (hop + 1 < path.length) ? path[hop + 1] : 0;
+    int payload = Math.max(0, pktlen - HEADER_BYTES);
+    tuple[switchSlot] = sw;
+    tuple[uidSlot] = (int)pktUid;
+    tuple[srcipSlot] = flowState[base + SRCIP];
+    tuple[dstipSlot] = flowState[base + DSTIP];
+    tuple[srcportSlot] = flowState[base + SRCPORT];
+    tuple[dstportSlot] = flowState[base + DSTPORT];
+    tuple[protoSlot] = flowState[base + PROTO];
+    tuple[inportSlot] = (hop > 0) ? path[hop - 1] : 0;
+    tuple[outportSlot] = outport;
+    tuple[qidSlot] = outport;
+    tuple[payloadlenSlot] = payload;
+    tuple[pktlenSlot] = pktlen;
+    tuple[pktpathSlot] = pathIdx;
+    tuple[tinSlot] = (int)time;
+    tuple[qoutSlot] = 0;
+    tuple[tcpseqSlot] = seq;
+    boolean fault = false;
+    double drainScale = 1;
+    for (ChaosMonkey.Primitive p: primitives) {
+      fault |= p.drop(sw, outport, flow, time);
+      drainScale *= p.drainScale(sw, outport, time);
+    }
+    int q = sw * (config.switches + 1) + outport - (config.switches + 1);
+    if (enqueue(q, time, pktlen, fault, drainScale, tuple)) {
+      if (hop + 1 < path.length) {
+        heapPush(tuple[toutSlot] + (long)config.linkDelay, pktUid, flow, hop + 1, pktlen, seq,
+                 pathIdx);
+      }
+    } else {
+      if (fault) {
+        faultDrops++;
+      } else {
+        drops++;
+      }
+      dropsAt[sw]++;
+    }
+    return true;
+  }
+
+  private double interArrival() {
+    switch (config.arrivals) {
+      case CONSTANT:
+        return config.interArrival;
+      case POISSON:
+        return exponential() * config.interArrival;
+      case PARETO:
+        /// Shape 1.5 and scale interArrival / 3 give a mean of interArrival.
+        return config.interArrival / 3 / Math.pow(1 - rng.nextDouble(), 1 / 1.5);
+      default:
+        assert(false);
+        return 0;
+    }
+  }
+
+  /// Draw from the exponential distribution of mean 1, i.e., -ln(u) for u uniform in (0, 1]. With
+  /// u = 2^-(z+1) * x, where z counts the leading zeros of a random 64-bit u and x is in [1, 2),
+  /// -ln(u) = (z + 1) ln 2 - ln(x), and ln(x) is interpolated from a table. This is several times
+  /// faster than Math.log() and accurate to about 1e-8.
+  private double exponential() {
+    long bits = rng.nextLong();
+    if (bits == 0) return 64 * LN2;
+    int z = Long.numberOfLeadingZeros(bits);
+    long mantissa = bits << (z + 1);
+    int idx = (int)(mantissa >>> (64 - LN_TABLE_BITS));
+    double frac = ((mantissa << LN_TABLE_BITS) >>> 11) * 0x1.0p-53;
+    return (z + 1) * LN2 - (LN_TABLE[idx] + (LN_TABLE[idx + 1] - LN_TABLE[idx]) * frac);
+  }
+
+  /// Run a packet through queue `q`, filling qin, tout and qtime. Returns false if it is dropped,
+  /// because the queue is full or because of a `fault`. The queue drains `drainScale` times its
+  /// usual rate.
+  private boolean enqueue(int q, long time, int pktlen, boolean fault, double drainScale,
+                          int[] tuple) {
+    long[] deps = departures[q];
+    if (deps == null) {
+      deps = departures[q] = new long[64];
+    }
+    /// Packets that left by `time` are no longer in the queue.
+    while (depSize[q] > 0 && deps[depHead[q]] <= time) {
+      depHead[q] = (depHead[q] + 1) & (deps.length - 1);
+      depSize[q]--;
+    }
+    tuple[qinSlot] = depSize[q];
+    if (fault || (config.queueCapacity > 0 && depSize[q] >= config.queueCapacity)) {
+      tuple[toutSlot] = AugExpr.EXPR_INFINITY;
+      tuple[qtimeSlot] = AugExpr.EXPR_INFINITY;
+      return false;
+    }
+    double departure = ((time > lastDeparture[q]) ? time : lastDeparture[q]) +
+                       pktlen / (config.bytesPerTick * drainScale);
+    lastDeparture[q] = departure;
+    /// Round up; departures are positive, so this is Math.ceil() without its slow path.
+    long tout = (long)departure;
+    if (tout < departure) tout++;
+    tuple[toutSlot] = (int)tout;
+    tuple[qtimeSlot] = (int)(tout - time);
+    if (depSize[q] == deps.length) {
+      long[] bigger = new long[2 * deps.length];
+      for (int i = 0; i < depSize[q]; i++) {
+        bigger[i] = deps[(depHead[q] + i) & (deps.length - 1)];
+      }
+      deps = departures[q] = bigger;
+      depHead[q] = 0;
+    }
+    deps[(depHead[q] + depSize[q]) & (deps.length - 1)] = tout;
+    depSize[q]++;
+    return true;
+  }
+
+  private void heapPush(long time, long pktUid, int flow, int hop, int pktlen, int seq, int path) {
+    if (heapSize == heapTime.length) {
+      int cap = 2 * heapSize;
+      heapTime = Arrays.copyOf(heapTime, cap);
+      heapUid = Arrays.copyOf(heapUid, cap);
+      heapFlow = Arrays.copyOf(heapFlow, cap);
+      heapHop = Arrays.copyOf(heapHop, cap);
+      heapLen = Arrays.copyOf(heapLen, cap);
+      heapSeq = Arrays.copyOf(heapSeq, cap);
+      heapPath = Arrays.copyOf(heapPath, cap);
+    }
+    int i = heapSize++;
+    while (i > 0 && heapTime[(i - 1) / 2] > time) {
+      heapMove((i - 1) / 2, i);
+      i = (i - 1) / 2;
+    }
+    heapTime[i] = time;
+    heapUid[i] = pktUid;
+    heapFlow[i] = flow;
+    heapHop[i] = hop;
+    heapLen[i] = pktlen;
+    heapSeq[i] = seq;
+    heapPath[i] = path;
+  }
+
+  private void heapPop() {
+    int last = --heapSize;
+    int i = 0;
+    while (2 * i + 1 < last) {
+      int child = 2 * i + 1;
+      if (child + 1 < last && heapTime[child + 1] < heapTime[child]) child++;
+      if (heapTime[child] >= heapTime[last]) break;
+      heapMove(child, i);
+      i = child;
+    }
+    heapMove(last, i);
+  }
+
+  private void heapMove(int from, int to) {
+    heapTime[to] = heapTime[from];
+    heapUid[to] = heapUid[from];
+    heapFlow[to] = heapFlow[from];
+    heapHop[to] = heapHop[from];
+    heapLen[to] = heapLen[from];
+    heapSeq[to] = heapSeq[from];
+    heapPath[to] = heapPath[from];
+  }
+
+  /// Number of packets that entered the network, including injected ones
+  public long getPackets() {
+    return uid;
+  }
+
+  public long getInjected() {
+    return injected;
+  }
+
+  /// Drops because of full queues
+  public long getDrops() {
+    return drops;
+  }
+
+  /// Drops caused by chaos primitives
+  public long getFaultDrops() {
+    return faultDrops;
+  }
+
+  /// Drops of either kind at switch `sw`
+  public long getDropsAt(int sw) {
+    return dropsAt[sw];
+  }
+
+  /// Packets that a chaos primitive sent on another path than that of their flow
+  public long getRerouted() {
+    return rerouted;
+  }
+}
@@ -0,0 +1,47 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class BatchStageInterpreterTest extends TestCase {
+  private static final int[] SRCPORTS = {0, 0, 7, 7};
+  private static final int[] DSTPORTS = {0, 3, 0, 3};
+
+  /// srcport = dstport && srcport reads the column it writes to.
+  public void testAndReadsItsOwnResult() {
+    int[] result = run(new AugPred(Fields.dstportHdr).and(new AugPred(Fields.srcportHdr)));
+    assertTrue(Arrays.toString(result), Arrays.equals(new int[] {0, 0, 0, 1}, result));
+  }
+
+  public void testOrReadsItsOwnResult() {
+    int[] result = run(new AugPred(Fields.dstportHdr).or(new AugPred(Fields.srcportHdr)));
+    assertTrue(Arrays.toString(result), Arrays.equals(new int[] {0, 1, 1, 1}, result));
+  }
+
+  /// Run srcport = pred over one row per (srcport, dstport) pair, and return the srcport column.
+  private int[] run(AugPred pred) {
+    PipeConstructor pc = Queries.compile("R1 = filter(T, tout - tin > 1);");
+    PipeStage stage = pc.getPipe().get(0);
+    PipeConfigInfo ci = stage.getConfigInfo();
+    ci.preamble = new ThreeOpCode();
+    ci.code = new ThreeOpCode(new ArrayList<ThreeOpDecl>(),
+                              Arrays.asList(new ThreeOpStmt(Fields.srcportHdr, pred)));
+    ci.postamble = new ThreeOpCode();
+
+    SlotLayout layout = new SlotLayout(pc.getPipe());
+    PacketBatch b = new PacketBatch(layout, SRCPORTS.length);
+    b.setSize(SRCPORTS.length);
+    int srcport = layout.slotOf(Fields.srcportHdr);
+    int dstport = layout.slotOf(Fields.dstportHdr);
+    for (int i = 0; i < SRCPORTS.length; i++) {
+      b.set(srcport, i, SRCPORTS[i]);
+      b.set(dstport, i, DSTPORTS[i]);
+    }
+    new BatchStageInterpreter(stage, layout).exec(b);
+    int[] result = new int[SRCPORTS.length];
+    for (int i = 0; i < SRCPORTS.length; i++) {
+      result[i] = b.get(srcport, i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,111 @@
+package edu.mit.needlstk;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class ExpiringGroupbyRunnerTest extends TestCase {
+  private static final String EPOCH_COUNTS =
+      "def count([cnt], []):\n" +
+      "    cnt = cnt + 1;\n" +
+      "\n" +
+      "R1 = map(T, [epoch], [tin/128]);\n" +
+      "R2 = groupby(R1, [switch, epoch, srcip], count);\n";
+
+  public void testEpochKey() {
+    PipeConstructor pc = Queries.compile(EPOCH_COUNTS);
+    PipeStage groupby = groupbyOf(pc);
+    assertEquals(1, ExpiringGroupbyRunner.epochKeyIndex(pc.getPipe(), groupby));
+
+    PipeConstructor noEpoch = Queries.compile(
+        "def count([cnt], []):\n    cnt = cnt + 1;\n\nR1 = groupby(T, [switch, srcip], count);\n");
+    assertEquals(-1, ExpiringGroupbyRunner.epochKeyIndex(noEpoch.getPipe(), groupbyOf(noEpoch)));
+  }
+
+  /// Keys flushed as their epochs close, plus the keys left at the end, are the final table of an
+  /// exact run; and only the keys of the open epochs are held at once.
+  public void testFlushedKeysMatchExactTable() throws Exception {
+    PipeConstructor pc = Queries.compile(EPOCH_COUNTS);
+    TrafficGenerator.Config config = TrafficGenerator.Config.parse("flows=200");
+
+    StreamEngine exact = new StreamEngine(pc, true);
+    exact.run(new TrafficGenerator(config, 20000, 1));
+    ByteArrayOutputStream exactTable = Queries.buffer();
+    exact.printTables(Queries.printer(exactTable));
+
+    for (int lag = 0; lag <= 2; lag++) {
+      ByteArrayOutputStream flushed = Queries.buffer();
+      StreamEngine expiring = new StreamEngine(pc, true, ExpiringGroupbyRunner.factory(
+          pc.getPipe(), lag, Queries.printer(flushed)));
+      expiring.run(new TrafficGenerator(config, 20000, 1));
+      ByteArrayOutputStream rest = Queries.buffer();
+      expiring.printTables(Queries.printer(rest));
+
+      ExpiringGroupbyRunner runner = expiringRunnerOf(expiring);
+      List<String> keys = entries(rest);
+      String prefix = groupbyOf(pc).getPipeName() + " ";
+      for (String line: Queries.lines(flushed)) {
+        assertTrue(line.startsWith(prefix));
+        keys.add(line.substring(prefix.length()));
+      }
+      Collections.sort(keys);
+      assertEquals(entries(exactTable), keys);
+      assertEquals(0, runner.getLate());
+      assertTrue(runner.getExpired() > 0);
+      assertTrue(runner.getMaxKeys() < keys.size());
+    }
+  }
+
+  /// A packet of a closed epoch counts as late, and its key starts over.
+  public void testLateKeyStartsOver() throws Exception {
+    PipeConstructor pc = Queries.compile(EPOCH_COUNTS);
+    ByteArrayOutputStream flushed = Queries.buffer();
+    StreamEngine engine = new StreamEngine(pc, true, ExpiringGroupbyRunner.factory(
+        pc.getPipe(), 0, Queries.printer(flushed)));
+    engine.run(new Queries.ListSource()
+                   .add(Fields.tinHdr, 0)
+                   .add(Fields.tinHdr, 1)
+                   .add(Fields.tinHdr, 128)
+                   .add(Fields.tinHdr, 5)
+                   .add(Fields.tinHdr, 256));
+    ExpiringGroupbyRunner runner = expiringRunnerOf(engine);
+    assertEquals(1, runner.getLate());
+    assertEquals(3, runner.getExpired());
+    String name = groupbyOf(pc).getPipeName();
+    assertEquals(3, Queries.lines(flushed).size());
+    assertEquals(name + " 0 0 0 : 2", Queries.lines(flushed).get(0));
+    assertEquals(name + " 0 1 0 : 1", Queries.lines(flushed).get(1));
+    assertEquals(name + " 0 0 0 : 1", Queries.lines(flushed).get(2));
+  }
+
+  private static PipeStage groupbyOf(PipeConstructor pc) {
+    for (PipeStage stage: pc.getPipe()) {
+      if (stage.getOp() == OperationType.GROUPBY) {
+        return stage;
+      }
+    }
+    throw new AssertionError("No groupby in pipeline");
+  }
+
+  private static ExpiringGroupbyRunner expiringRunnerOf(StreamEngine engine) {
+    for (StageRunner runner: engine.getRunners()) {
+      if (runner instanceof ExpiringGroupbyRunner) {
+        return (ExpiringGroupbyRunner)runner;
+      }
+    }
+    throw new AssertionError("No expiring groupby in engine");
+  }
+
+  /// Entries of a printed table, without its header line
+  private static List<String> entries(ByteArrayOutputStream table) {
+    List<String> lines = new ArrayList<>();
+    for (String line: Queries.lines(table)) {
+      if (! line.startsWith("Groupby ")) {
+        lines.add(line);
+      }
+    }
+    Collections.sort(lines);
+    return lines;
+  }
+}
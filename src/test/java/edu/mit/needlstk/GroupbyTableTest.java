@@ -0,0 +1,162 @@
+package edu.mit.needlstk;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class GroupbyTableTest extends TestCase {
+  private static final int KEY_WIDTH = 2;
+  private static final int STATE_WIDTH = 3;
+
+  public void testInsertFindReadWrite() {
+    GroupbyTable table = new GroupbyTable(KEY_WIDTH, STATE_WIDTH);
+    int[] key = {10, 20};
+    assertEquals(-1, table.find(key));
+    int entry = table.insert(key);
+    assertEquals(1, table.size());
+    assertEquals(entry, table.find(key));
+    assertEquals(entry, table.insert(key));
+    assertEquals(1, table.size());
+
+    int[] state = new int[STATE_WIDTH];
+    table.readState(entry, state);
+    assertTrue(Arrays.equals(new int[] {0, 0, 0}, state));
+    table.writeState(entry, new int[] {1, 2, 3});
+    table.readState(table.find(new int[] {10, 20}), state);
+    assertTrue(Arrays.equals(new int[] {1, 2, 3}, state));
+
+    int[] readKey = new int[KEY_WIDTH];
+    table.readKey(entry, readKey);
+    assertTrue(Arrays.equals(key, readKey));
+    assertEquals(-1, table.find(new int[] {20, 10}));
+  }
+
+  public void testRemove() {
+    GroupbyTable table = new GroupbyTable(KEY_WIDTH, STATE_WIDTH);
+    int[] a = {1, 1};
+    int[] b = {2, 2};
+    table.writeState(table.insert(a), new int[] {1, 1, 1});
+    table.writeState(table.insert(b), new int[] {2, 2, 2});
+    table.remove(table.find(a));
+    assertEquals(1, table.size());
+    assertEquals(-1, table.find(a));
+    assertStateIs(table, b, 2);
+    /// A key inserted again starts from all zeros.
+    table.insert(a);
+    assertStateIs(table, a, 0);
+  }
+
+  /// Keys whose home slot is the last entry probe into the first entries; removing the head of such
+  /// a run must shift later entries back across the end of the table, and keep every key reachable.
+  public void testRemoveShiftsBackAcrossWraparound() {
+    GroupbyTable table = new GroupbyTable(1, 1);
+    int last = table.capacity() - 1;
+    List<int[]> atLast = keysWithHome(last, table.capacity(), 3);
+    int[] atFirst = keysWithHome(0, table.capacity(), 1).get(0);
+    for (int i = 0; i < atLast.size(); i++) {
+      assertEquals((last + i) & last, insertWithState(table, atLast.get(i), i + 1));
+    }
+    /// Displaced from slot 0 to the first free slot after the run
+    assertEquals(2, insertWithState(table, atFirst, 100));
+
+    table.remove(table.find(atLast.get(0)));
+    assertEquals(3, table.size());
+    assertEquals(-1, table.find(atLast.get(0)));
+    assertEquals(last, table.find(atLast.get(1)));
+    assertEquals(0, table.find(atLast.get(2)));
+    /// Moves into slot 1, which lies on its probe sequence from slot 0
+    assertEquals(1, table.find(atFirst));
+    assertFalse(table.isUsed(2));
+    assertStateIs(table, atLast.get(1), 2);
+    assertStateIs(table, atLast.get(2), 3);
+    assertStateIs(table, atFirst, 100);
+
+    /// An entry at its home slot is never moved before it.
+    table.remove(table.find(atLast.get(1)));
+    assertEquals(last, table.find(atLast.get(2)));
+    assertEquals(0, table.find(atFirst));
+    assertStateIs(table, atLast.get(2), 3);
+    assertStateIs(table, atFirst, 100);
+  }
+
+  /// Random inserts, updates and removals, through several grows, against a HashMap.
+  public void testMatchesHashMap() {
+    GroupbyTable table = new GroupbyTable(KEY_WIDTH, 1);
+    HashMap<List<Integer>, Integer> model = new HashMap<>();
+    Random rand = new Random(42);
+    int[] key = new int[KEY_WIDTH];
+    int[] state = new int[1];
+    for (int op = 0; op < 200000; op++) {
+      key[0] = rand.nextInt(64);
+      key[1] = rand.nextInt(128);
+      List<Integer> k = asList(key);
+      if (rand.nextInt(3) == 0) {
+        int entry = table.find(key);
+        assertEquals(model.containsKey(k), entry >= 0);
+        if (entry >= 0) {
+          table.remove(entry);
+          model.remove(k);
+        }
+      } else {
+        int entry = table.insert(key);
+        table.readState(entry, state);
+        assertEquals(model.containsKey(k) ? model.get(k).intValue() : 0, state[0]);
+        state[0]++;
+        table.writeState(entry, state);
+        model.put(k, state[0]);
+      }
+      assertEquals(model.size(), table.size());
+    }
+    assertTrue(table.capacity() > 1024);
+    int used = 0;
+    for (int entry = 0; entry < table.capacity(); entry++) {
+      if (! table.isUsed(entry)) continue;
+      used++;
+      table.readKey(entry, key);
+      table.readState(entry, state);
+      assertEquals(model.get(asList(key)).intValue(), state[0]);
+    }
+    assertEquals(model.size(), used);
+    table.clear();
+    assertEquals(0, table.size());
+    assertEquals(-1, table.find(key));
+  }
+
+  private static int insertWithState(GroupbyTable table, int[] key, int value) {
+    int entry = table.insert(key);
+    table.writeState(entry, new int[] {value});
+    return entry;
+  }
+
+  private static void assertStateIs(GroupbyTable table, int[] key, int value) {
+    int entry = table.find(key);
+    assertTrue(entry >= 0);
+    int[] state = new int[table.getStateWidth()];
+    table.readState(entry, state);
+    for (int r: state) {
+      assertEquals(value, r);
+    }
+  }
+
+  /// The first `count` one-field keys whose home slot is `home` in a table of `capacity` entries
+  private static List<int[]> keysWithHome(int home, int capacity, int count) {
+    List<int[]> keys = new ArrayList<>();
+    for (int k = 1; keys.size() < count; k++) {
+      int[] key = {k};
+      if ((GroupbyTable.hash(key) & (capacity - 1)) == home) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  private static List<Integer> asList(int[] key) {
+    List<Integer> res = new ArrayList<>();
+    for (int field: key) {
+      res.add(field);
+    }
+    return res;
+  }
+}
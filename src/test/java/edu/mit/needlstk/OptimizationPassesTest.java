@@ -0,0 +1,152 @@
+package edu.mit.needlstk;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/// Each optimization pass of Compiler.buildPipe() must leave the results and final groupby tables of
+/// a query unchanged: queries are run over the same traffic with and without the pass.
+public class OptimizationPassesTest extends TestCase {
+  private static final String[] QUERIES = {
+    "byte_counts.sql",
+    "flowlet_sum.sql",
+    "high_e2e_latency.sql",
+    "incast.sql",
+    "latency_ewma.sql",
+    "outcast.sql",
+    "project_example.sql",
+    "qin_buckets.sql",
+    "route_reconvergence.sql",
+    "tcp_oos.sql",
+  };
+
+  /// Programs with repeated subexpressions, which the example queries hardly have, and with
+  /// constant expressions
+  private static final String[] PROGRAMS = {
+    "def lat([c, s, m], [tin, tout, qin]):\n" +
+    "  if tout - tin > 10 {\n" +
+    "    c = c + 1;\n" +
+    "    s = s + (tout - tin) + qin * 2\n" +
+    "  } else {\n" +
+    "    m = (tout - tin) + qin * 2\n" +
+    "  }\n" +
+    "\n" +
+    "R1 = filter(T, (tout - tin) > 2 and tout - tin < 100000);\n" +
+    "R2 = groupby(R1, [srcip, switch], lat);\n",
+
+    "R1 = map(T, [a, b], [pktlen + qin, (qin + pktlen) * 2]);\n" +
+    "R2 = filter(R1, a > 10 and (pktlen + qin) < 5000);\n" +
+    "R3 = map(R2, [c], [(pktlen + qin) - a]);\n",
+
+    "def cnt([c, d], [tin]):\n" +
+    "  c = c + (tin / 4);\n" +
+    "  d = d + (tin / 4) * (tin / 4)\n" +
+    "\n" +
+    "R1 = map(T, [epoch], [tin / 128]);\n" +
+    "R2 = groupby(R1, [epoch, switch], cnt);\n",
+
+    "def f([c, s], [tin, tout]):\n" +
+    "  k = 4 * 0 + 1;\n" +
+    "  if (k == 1) {\n" +
+    "    c = c * 1 + 0;\n" +
+    "    if ((tout - tin) > 100 * k) { s = s + (tout - tin) / 2; }\n" +
+    "  }\n" +
+    "  else { c = c + 7; }\n" +
+    "  c = c + 1\n" +
+    "\n" +
+    "q1 = filter(T, 5 > 3 and qid == 1 + 0);\n" +
+    "q2 = map(q1, [d], [(tout - tin) * 1 - 0]);\n" +
+    "q3 = groupby(q2, [srcip, switch], f);\n",
+  };
+
+  public void testFusion() throws Exception {
+    Compiler.Options unfused = new Compiler.Options();
+    unfused.maxFusedStages = 1;
+    assertSameResults(compileAll(unfused), compileAll(new Compiler.Options()));
+  }
+
+  public void testCodeSimplification() throws Exception {
+    Compiler.Options without = new Compiler.Options();
+    without.simplifyCode = false;
+    assertSameResults(compileAll(without), compileAll(new Compiler.Options()));
+  }
+
+  public void testCommonSubexprElimination() throws Exception {
+    Compiler.Options without = new Compiler.Options();
+    without.eliminateCommonSubexprs = false;
+    assertSameResults(compileAll(without), compileAll(new Compiler.Options()));
+  }
+
+  public void testDeadCodeElimination() throws Exception {
+    Compiler.Options without = new Compiler.Options();
+    without.eliminateDeadCode = false;
+    assertSameResults(compileAll(without), compileAll(new Compiler.Options()));
+  }
+
+  public void testMapColumnGuards() throws Exception {
+    Compiler.Options without = new Compiler.Options();
+    without.guardMapColumns = false;
+    assertSameResults(compileAll(without), compileAll(new Compiler.Options()));
+  }
+
+  /// All passes at once, each working on the output of the ones before it
+  public void testAllPasses() throws Exception {
+    Compiler.Options none = new Compiler.Options();
+    none.maxFusedStages = 1;
+    none.simplifyCode = false;
+    none.eliminateCommonSubexprs = false;
+    none.eliminateDeadCode = false;
+    none.guardMapColumns = false;
+    assertSameResults(compileAll(none), compileAll(new Compiler.Options()));
+  }
+
+  private static List<PipeConstructor> compileAll(Compiler.Options options) throws Exception {
+    List<PipeConstructor> res = new ArrayList<>();
+    for (String query: QUERIES) {
+      res.add(Queries.compileExample(query, options));
+    }
+    for (String program: PROGRAMS) {
+      res.add(Queries.compile(program, options));
+    }
+    return res;
+  }
+
+  /// Check that each pipeline of `without` computes what the same pipeline of `with` does, and that
+  /// the pass changed the code of at least one of them.
+  private static void assertSameResults(List<PipeConstructor> without, List<PipeConstructor> with)
+      throws Exception {
+    boolean changed = false;
+    for (int i = 0; i < without.size(); i++) {
+      String name = (i < QUERIES.length) ? QUERIES[i] : "program " + (i - QUERIES.length);
+      assertEquals(name, run(without.get(i)), run(with.get(i)));
+      changed |= ! codeOf(without.get(i)).equals(codeOf(with.get(i)));
+    }
+    assertTrue("The pass changed no pipeline", changed);
+  }
+
+  /// Result fields, result tuples and final groupby tables of `pc` over generated traffic
+  private static List<String> run(PipeConstructor pc) throws Exception {
+    StreamEngine engine = new StreamEngine(pc, true);
+    ByteArrayOutputStream buf = Queries.buffer();
+    engine.setResultOutput(Queries.printer(buf));
+    engine.run(new TrafficGenerator(TrafficGenerator.Config.parse("flows=200,hops=3"), 5000, 7));
+    engine.printTables(Queries.printer(buf));
+    List<String> res = new ArrayList<>();
+    res.add(engine.getResultFields().toString());
+    res.addAll(Queries.lines(buf));
+    return res;
+  }
+
+  /// The code of every stage of `pc`
+  private static String codeOf(PipeConstructor pc) {
+    StringBuilder sb = new StringBuilder();
+    for (PipeStage stage: pc.getPipe()) {
+      PipeConfigInfo info = stage.getConfigInfo();
+      sb.append(stage.getPipeName()).append('\n');
+      sb.append(info.getPreamble().print());
+      sb.append(info.getCode().print());
+      sb.append(info.getPostamble().print());
+    }
+    return sb.toString();
+  }
+}
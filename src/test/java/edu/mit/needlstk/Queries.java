@@ -0,0 +1,89 @@
+package edu.mit.needlstk;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.antlr.v4.runtime.ANTLRFileStream;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
+
+/// Helpers to compile queries and collect what an engine prints, for tests
+final class Queries {
+  private Queries() {}
+
+  /// Build the pipeline of a query program, without the report of every compiler pass.
+  static PipeConstructor compile(String program) {
+    return compile(program, new Compiler.Options());
+  }
+
+  static PipeConstructor compile(String program, Compiler.Options options) {
+    return compile(new ANTLRInputStream(program), options);
+  }
+
+  /// Same as compile(), for a query of example_queries/
+  static PipeConstructor compileExample(String name) throws IOException {
+    return compileExample(name, new Compiler.Options());
+  }
+
+  static PipeConstructor compileExample(String name, Compiler.Options options) throws IOException {
+    return compile(new ANTLRFileStream("example_queries/" + name), options);
+  }
+
+  private static PipeConstructor compile(CharStream input, Compiler.Options options) {
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream quiet = new PrintStream(new OutputStream() {
+      @Override public void write(int b) {}
+    });
+    System.setOut(quiet);
+    System.setErr(quiet);
+    try {
+      return Compiler.buildPipe(input, options);
+    } finally {
+      System.setOut(out);
+      System.setErr(err);
+    }
+  }
+
+  /// Stream to collect printed lines into, see lines()
+  static ByteArrayOutputStream buffer() {
+    return new ByteArrayOutputStream();
+  }
+
+  static PrintStream printer(ByteArrayOutputStream buf) {
+    return new PrintStream(buf, true);
+  }
+
+  static List<String> lines(ByteArrayOutputStream buf) {
+    try {
+      String text = buf.toString("UTF-8");
+      return text.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(text.split("\n")));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /// Packets whose packet-log fields are all 0 but the given ones, e.g., to feed a hand-made
+  /// sequence of arrival times.
+  static class ListSource implements PacketSource {
+    private List<int[]> packets = new ArrayList<>();
+    private int next = 0;
+
+    ListSource add(String field, int value) {
+      int[] tuple = new int[SlotLayout.numFields()];
+      tuple[Fields.fields.indexOf(field)] = value;
+      packets.add(tuple);
+      return this;
+    }
+
+    @Override public boolean next(int[] tuple) {
+      if (next == packets.size()) return false;
+      System.arraycopy(packets.get(next++), 0, tuple, 0, SlotLayout.numFields());
+      return true;
+    }
+  }
+}
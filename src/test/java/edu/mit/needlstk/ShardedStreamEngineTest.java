@@ -0,0 +1,48 @@
+package edu.mit.needlstk;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class ShardedStreamEngineTest extends TestCase {
+  /// A stateless query (a result per packet) and groupbys that emit per packet or per key
+  private static final String[] QUERIES = {
+    "project_example.sql",
+    "qin_buckets.sql",
+    "running_example.sql",
+    "new_flow.sql",
+  };
+
+  /// Printed results must be those of the sequential engine, line by line in the same order.
+  public void testPrintedResultsMatchSequentialOrder() throws Exception {
+    TrafficGenerator.Config config = TrafficGenerator.Config.parse("flows=500,hops=3");
+    for (String query: QUERIES) {
+      PipeConstructor pc = Queries.compileExample(query);
+      assertTrue(query, ShardedStreamEngine.isShardable(pc.getPipe()));
+
+      ByteArrayOutputStream sequential = Queries.buffer();
+      StreamEngine engine = new StreamEngine(pc, true);
+      engine.setResultOutput(Queries.printer(sequential));
+      engine.run(new TrafficGenerator(config, 100000, 3));
+      List<String> expected = Queries.lines(sequential);
+      assertFalse(query, expected.isEmpty());
+
+      for (int numShards: new int[] {2, 4, 7}) {
+        ByteArrayOutputStream sharded = Queries.buffer();
+        ShardedStreamEngine shards = new ShardedStreamEngine(pc, true, numShards);
+        shards.setResultOutput(Queries.printer(sharded));
+        shards.run(new TrafficGenerator(config, 100000, 3));
+        List<String> actual = Queries.lines(sharded);
+        assertEquals(query, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(query + " on " + numShards + " shards, line " + i,
+                       expected.get(i), actual.get(i));
+        }
+        assertEquals(engine.getResults(), shards.getResults());
+      }
+    }
+  }
+
+  public void testUnshardableQuery() throws Exception {
+    assertFalse(ShardedStreamEngine.isShardable(Queries.compileExample("incast.sql").getPipe()));
+  }
+}
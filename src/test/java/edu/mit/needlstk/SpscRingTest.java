@@ -0,0 +1,56 @@
+package edu.mit.needlstk;
+import junit.framework.TestCase;
+
+public class SpscRingTest extends TestCase {
+  public void testCapacityIsPowerOfTwo() {
+    assertEquals(1, new SpscRing<Integer>(1).capacity());
+    assertEquals(8, new SpscRing<Integer>(8).capacity());
+    assertEquals(16, new SpscRing<Integer>(9).capacity());
+  }
+
+  public void testFifoWithinCapacity() {
+    SpscRing<Integer> ring = new SpscRing<>(4);
+    assertNull(ring.poll());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4));
+    assertEquals(Integer.valueOf(0), ring.poll());
+    assertTrue(ring.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(Integer.valueOf(i), ring.poll());
+    }
+    assertNull(ring.poll());
+  }
+
+  /// One producer and one consumer thread pass many more elements than the ring holds; the consumer
+  /// must see every element exactly once, in order.
+  public void testConcurrentProducerConsumerKeepOrder() throws Exception {
+    final int count = 1000000;
+    final SpscRing<Integer> ring = new SpscRing<>(64);
+    final Throwable[] failure = new Throwable[1];
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i < count; i++) {
+        ring.put(i);
+      }
+    });
+    Thread consumer = new Thread(() -> {
+      try {
+        for (int i = 0; i < count; i++) {
+          assertEquals(i, ring.take().intValue());
+        }
+        assertNull(ring.poll());
+      } catch (Throwable t) {
+        failure[0] = t;
+      }
+    });
+    producer.start();
+    consumer.start();
+    producer.join(60000);
+    consumer.join(60000);
+    assertFalse(producer.isAlive() || consumer.isAlive());
+    if (failure[0] != null) {
+      throw new AssertionError("Consumer saw elements out of order", failure[0]);
+    }
+  }
+}